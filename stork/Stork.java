@@ -33,7 +33,15 @@ public class Stork extends Command {
   // A class for storing Stork configuration settings.
   public static class Settings {
     public int max_jobs = 10;
+    public int max_jobs_per_user = 0;
+    public int max_jobs_per_host = 0;
+    public int max_jobs_per_pair = 0;
+    public String host_limits = null;
+    public String queue_policy = "fair";
     public int max_attempts = 10;
+    public double retry_delay = 5;
+    public double max_retry_delay = 600;
+    public int breaker_threshold = 5;
     public int max_history = 10;
 
     public String libexec = "libexec";
@@ -48,6 +56,9 @@ public class Stork extends Command {
     public boolean registration = false;
 
     public double request_timeout = 5.0;
+
+    public int dispatch_threads = 1;
+    public int dispatch_inline = 64;
   }
 
   // Try to get the version and build time from the build tag.
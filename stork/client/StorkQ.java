@@ -100,15 +100,21 @@ public class StorkQ extends StorkClient {
       bar[i] = '=';
     if (prog.done() > 0)
       bar[j] = (prog.done() != prog.total()) ? '>' : '=';
-    return "    ["+new String(bar)+"] "+prog.toPercent();
+    return "    ["+new String(bar)+"] "+prog.toPercentString();
   } private void formatJobAd(Ad ad) {
     System.out.printf("%3d  %-12s  %8s  %8s  %9s  %s\n",
         ad.getInt("job_id"), ad.get("status", "(unknown)"),
         time(ad.getAd("queue_timer")), time(ad.getAd("run_timer")),
         Throughput.prettySize(ad.getLong("progress.bytes.total")),
         Throughput.format(ad.getLong("progress.bytes.avg")));
-    if (ad.getInt("progress.bytes.avg") > 0)
-      System.out.println(progressBar(ad.getAd("progress.bytes"), 50));
+    if (ad.getInt("progress.bytes.avg") > 0) {
+      String bar = progressBar(ad.getAd("progress.bytes"), 50);
+      if (ad.has("progress.eta"))
+        bar += "  ETA "+Time.format(1000*ad.getLong("progress.eta"));
+      if (!ad.getBoolean("progress.scanned"))
+        bar += " (still counting)";
+      System.out.println(bar);
+    }
 
     System.out.println("    "+ad.get("src.uri"));
     System.out.println("    "+ad.get("dest.uri"));
@@ -2,6 +2,7 @@ package stork.feather;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 import stork.feather.util.*;
 
@@ -10,13 +11,54 @@ import stork.feather.util.*;
  * operations and executing asynchronous handlers. All handling operations are
  * performed in a separate dispatch thread. It supports callbacks defined in
  * subclasses, chaining of results, deadlines, and back-cancellation.
+ * <p/>
+ * Each {@code Bell} belongs to a {@link Dispatcher} lane, and its handlers and
+ * promises are always run in that lane in the order they were dispatched.
+ * <p/>
+ * Ringing, promising and checking the state of a {@code Bell} never block.
+ * The state of a {@code Bell} is held in a single atomic word which is either
+ * the top of a stack of promised {@code Bell}s, while unrung, or the outcome
+ * of the {@code Bell}, once rung. Only threads waiting in {@link #get()} or
+ * {@link #sync()} take the monitor of the {@code Bell}.
  *
  * @param <T> the supertype of objects that can ring this {@code Bell}.
  */
 public class Bell<T> implements Future<T> {
-  private Object object;  // May contain T or Throwable.
-  private byte state = 0;  // 0 = unrung, 1 = thenned, 2 = done, 3 = failed
-  private List<Bell<? super T>> promises = Collections.emptyList();
+  // While unrung, this is the top of the promise stack, or null if there are
+  // no promises. Once rung, it is the Rung holding the outcome.
+  private volatile Object state = null;
+  private volatile int thenned = 0;  // Set once then() has been called.
+  private volatile int waiters = 0;  // Threads blocked in get() or sync().
+  private int lane = Dispatcher.currentLane();
+  private volatile boolean settled = false;  // Ring tasks have all run.
+  private volatile TimerWheel.Timeout timeout;  // The earliest deadline.
+
+  private static final AtomicReferenceFieldUpdater<Bell,Object> STATE =
+    AtomicReferenceFieldUpdater.newUpdater(Bell.class, Object.class, "state");
+  private static final AtomicIntegerFieldUpdater<Bell> THENNED =
+    AtomicIntegerFieldUpdater.newUpdater(Bell.class, "thenned");
+  private static final AtomicIntegerFieldUpdater<Bell> WAITERS =
+    AtomicIntegerFieldUpdater.newUpdater(Bell.class, "waiters");
+
+  // The outcome of a rung bell.
+  private static final class Rung {
+    final Object object;  // May contain T or Throwable.
+    final boolean failed;
+    Rung(Object object, boolean failed) {
+      this.object = object;
+      this.failed = failed;
+    }
+  }
+
+  // An entry in the promise stack.
+  private static final class Node {
+    final Bell bell;
+    final Node next;
+    Node(Bell bell, Node next) {
+      this.bell = bell;
+      this.next = next;
+    }
+  }
 
   /** Create an unrung {@code Bell}. */
   public Bell() { }
@@ -27,14 +69,22 @@ public class Bell<T> implements Future<T> {
   /** Create a {@code Bell} rung with {@code error}. */
   public Bell(Throwable error) { ring(error); }
 
+  // Get the outcome, or null if unrung.
+  private Rung rung() {
+    Object s = state;
+    return (s instanceof Rung) ? (Rung) s : null;
+  }
+
   // Get the object as a T.
   private T object() {
-    return (isSuccessful()) ? (T) object : null;
+    Rung r = rung();
+    return (r != null && !r.failed) ? (T) r.object : null;
   }
 
   // Get the object as a Throwable.
   private Throwable error() {
-    return (isFailed()) ? (Throwable) object : null;
+    Rung r = rung();
+    return (r != null && r.failed) ? (Throwable) r.object : null;
   }
 
   /**
@@ -74,19 +124,50 @@ public class Bell<T> implements Future<T> {
    * @param error The error to ring the {@code Bell} with.
    * @return This {@code Bell}.
    */
-  private synchronized Bell<T> ring(T object, Throwable error) {
-    if (!isDone()) {
-      state = (error == null) ? (byte) 2 : 3;
-      this.object = (error == null) ? object : error;
-      dispatchHandlers();
-      dispatchPromises(promises);
-      promises = Collections.emptyList();
+  private Bell<T> ring(T object, Throwable error) {
+    tryRing(object, error);
+    return this;
+  }
+
+  // Ring the bell if it has not been rung. Return true if this call rang it.
+  private boolean tryRing(T object, Throwable error) {
+    Rung rung = (error == null) ? new Rung(object, false)
+                                : new Rung(error, true);
+    Object s;
+    do {
+      s = state;
+      if (s instanceof Rung)
+        return false;
+    } while (!STATE.compareAndSet(this, s, rung));
+
+    // Release the deadline task and whatever it refers to.
+    TimerWheel.Timeout t = timeout;
+    if (t != null)
+      t.cancel();
+
+    dispatchHandlers();
+    dispatchPromises(this, reverse((Node) s), lane).dispatch();
+
+    // Only take the monitor if someone might be waiting on it.
+    if (waiters > 0) synchronized (this) {
       notifyAll();
-    } return this;
+    } return true;
+  }
+
+  // Turn a promise stack into a list in the order the promises were made.
+  private static List reverse(Node node) {
+    if (node == null)
+      return Collections.emptyList();
+    if (node.next == null)
+      return Collections.singletonList(node.bell);
+    LinkedList list = new LinkedList();
+    for (; node != null; node = node.next)
+      list.addFirst(node.bell);
+    return list;
   }
 
   private void dispatchHandlers() {
-    new Task() {
+    new Task(lane) {
       public void run() {
         // Call the handlers.
         if (isFailed()) try {
@@ -106,34 +187,48 @@ public class Bell<T> implements Future<T> {
     }.dispatch();
   }
 
-  // Dispatcher task for thenning a bell with an object.
+  // Dispatcher task for thenning a bell with an object. If source is given,
+  // it is marked settled once its promises have been thenned.
   private static class DispatchDone<V> extends Task {
+    final Bell source;
     final V object;
     final List<Bell> bells;
-    DispatchDone(List<Bell> bells, V object) {
+    DispatchDone(Bell source, int lane, List<Bell> bells, V object) {
+      super(lane);
+      this.source = source;
       this.bells = bells;
       this.object = object;
     } public void run() {
       for (Bell b : bells) then(b);
+      if (source != null) source.settled = true;
     } public void then(Bell b) {
       b.then(object, null);
     }
   } private static class DispatchFail extends DispatchDone<Throwable> {
-    DispatchFail(List<Bell> bells, Throwable error) {
-      super(bells, error);
+    DispatchFail(Bell source, int lane, List<Bell> bells, Throwable error) {
+      super(source, lane, bells, error);
     } public void then(Bell b) {
       b.then(null, object);
     }
   }
 
+  // Promises made after ringing run in this bell's lane so they still follow
+  // its handlers, unless this is a shared bell with no handlers to follow.
+  // Until the ring tasks have run, they may be sitting in the lane's queue,
+  // so the promise must be queued behind them rather than run inline.
   private void dispatchPromise(Bell<? super T> bell) {
     List<Bell<? super T>> list = (List) Collections.singletonList(bell);
-    dispatchPromises(list);
-  } private void dispatchPromises(List<Bell<? super T>> bells) {
+    Task task = dispatchPromises(null, list, (lane == SHARED) ? bell.lane : lane);
+    if (settled)
+      task.dispatch();
+    else
+      task.enqueue();
+  } private Task dispatchPromises(Bell source, List<Bell<? super T>> bells,
+                                  int lane) {
     if (isFailed())
-      new DispatchFail((List) bells, error()).dispatch();
+      return new DispatchFail(source, lane, (List) bells, error());
     else
-      new DispatchDone((List) bells, object()).dispatch();
+      return new DispatchDone(source, lane, (List) bells, object());
   }
 
   /**
@@ -145,11 +240,8 @@ public class Bell<T> implements Future<T> {
    * {@code false} otherwise.
    * @see Future#cancel(boolean)
    */
-  public synchronized boolean cancel(boolean mayInterruptIfRunning) {
-    if (isDone())
-      return false;
-    ring(null, new CancellationException());
-    return true;
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    return !isDone() && tryRing(null, new CancellationException());
   }
 
   /**
@@ -168,46 +260,61 @@ public class Bell<T> implements Future<T> {
    * CancellationException}.
    * @see Future#isCancelled
    */
-  public synchronized boolean isCancelled() {
-    return isFailed() && error() instanceof CancellationException;
-  }
-
-  /** Return {@code true} if the {@code Bell} is unrung. */
-  private synchronized boolean isUnrung() {
-    return state == 0;
+  public boolean isCancelled() {
+    return error() instanceof CancellationException;
   }
 
   /** Return {@code true} if the {@code Bell} has been rung. */
-  public final synchronized boolean isDone() {
-    return state >= 2;
+  public final boolean isDone() {
+    return state instanceof Rung;
   }
 
   /** Return {@code true} if the {@code Bell} rang successfully. */
-  public final synchronized boolean isSuccessful() {
-    return isDone() && state == 2;
+  public final boolean isSuccessful() {
+    Rung r = rung();
+    return r != null && !r.failed;
   }
 
   /** Return {@code true} if the {@code Bell} failed. */
-  public final synchronized boolean isFailed() {
-    return isDone() && state == 3;
+  public final boolean isFailed() {
+    Rung r = rung();
+    return r != null && r.failed;
   }
 
   /** Wait for the {@code Bell} to be rung, then return the value. */
-  public synchronized T get() throws InterruptedException, ExecutionException {
-    while (!isDone())
-      wait();
-    return getOrThrow();
+  public T get() throws InterruptedException, ExecutionException {
+    if (!isDone()) {
+      WAITERS.incrementAndGet(this);
+      try {
+        synchronized (this) {
+          while (!isDone())
+            wait();
+        }
+      } finally {
+        WAITERS.decrementAndGet(this);
+      }
+    } return getOrThrow();
   }
 
   /**
    * Wait for the {@code Bell} to be rung up to the specified time, then return the
    * value.
    */
-  public synchronized T get(long timeout, TimeUnit unit)
+  public T get(long timeout, TimeUnit unit)
   throws InterruptedException, ExecutionException, TimeoutException {
-    if (!isDone())
-      unit.timedWait(this, timeout);
-    if (!isDone())
+    if (!isDone()) {
+      long end = System.nanoTime() + unit.toNanos(timeout);
+      WAITERS.incrementAndGet(this);
+      try {
+        synchronized (this) {
+          long left;
+          while (!isDone() && (left = end-System.nanoTime()) > 0)
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+      } finally {
+        WAITERS.decrementAndGet(this);
+      }
+    } if (!isDone())
       throw new TimeoutException();
     return getOrThrow();
   }
@@ -228,11 +335,20 @@ public class Bell<T> implements Future<T> {
    * convenient for the caller. It blocks uninterruptably and throws unchecked
    * exceptions.
    */
-  public synchronized T sync() {
-    while (!isDone()) try {
-      wait();
-    } catch (InterruptedException e) {
-      // Ignore it.
+  public T sync() {
+    if (!isDone()) {
+      WAITERS.incrementAndGet(this);
+      try {
+        synchronized (this) {
+          while (!isDone()) try {
+            wait();
+          } catch (InterruptedException e) {
+            // Ignore it.
+          }
+        }
+      } finally {
+        WAITERS.decrementAndGet(this);
+      }
     } if (!isFailed()) {
       return object();
     } if (error() instanceof RuntimeException) {
@@ -241,10 +357,9 @@ public class Bell<T> implements Future<T> {
   }
 
   // Run then() handlers and discard any exceptions.
-  private synchronized void then(T object, Throwable error) {
-    if (state >= 1) return;
-
-    state = 1;  // Set to thenned state.
+  private void then(T object, Throwable error) {
+    if (isDone() || !THENNED.compareAndSet(this, 0, 1))
+      return;
 
     if (error == null) try {
       then(object);
@@ -331,35 +446,33 @@ public class Bell<T> implements Future<T> {
    * @param bell the {@code Bell} to promise to this {@code Bell}.
    * @return The value passed in for {@code bell}.
    */
-  public synchronized <V extends Bell<? super T>> V promise(V bell) {
-    if (bell.isDone()) {
+  public <V extends Bell<? super T>> V promise(V bell) {
+    if (bell.isDone())
       return bell;  // Don't be silly...
-    } if (isDone()) {
-      dispatchPromise(bell);  // We've already rung, dispatch.
-    } else switch (promises.size()) {
-      case 0:  // This is an immutable empty list. Change to singleton.
-        promises = (List) Collections.singletonList(bell);
-        break;
-      case 1:  // This is the singleton. Make a mutable list.
-        promises = new LinkedList<Bell<? super T>>(promises);
-      default:
-        promises.add(bell);
-    } return bell;
+    while (true) {
+      Object s = state;
+      if (s instanceof Rung) {
+        dispatchPromise(bell);  // We've already rung, dispatch.
+        return bell;
+      } if (STATE.compareAndSet(this, s, new Node(bell, (Node) s))) {
+        return bell;
+      }
+    }
   }
 
   /**
    * Return a {@code Bell} promised to this {@code Bell} which will run the
    * given handler on success.
    */
-  public synchronized Bell<T> promise(BellHandler.Done done) {
-    return (Bell<T>) fromHandler(done);
+  public Bell<T> promise(BellHandler.Done done) {
+    return (Bell<T>) promise(fromHandler(done));
   }
 
   /**
    * Return a {@code Bell} promised to this {@code Bell} which will run the
    * given handler on failure.
    */
-  public synchronized Bell<T> promise(BellHandler.Fail fail) {
+  public Bell<T> promise(BellHandler.Fail fail) {
     return (Bell<T>) promise(fromHandler(fail));
   }
 
@@ -367,7 +480,7 @@ public class Bell<T> implements Future<T> {
    * Return a {@code Bell} promised to this {@code Bell} which will run the
    * given handler on ring.
    */
-  public synchronized Bell<T> promise(BellHandler.Always always) {
+  public Bell<T> promise(BellHandler.Always always) {
     return (Bell<T>) promise(fromHandler(always));
   }
 
@@ -530,13 +643,26 @@ public class Bell<T> implements Future<T> {
    * @param deadline the time in seconds after call time that the {@code Bell}
    * may remain unresolved.
    */
-  public synchronized Bell<T> deadline(double deadline) {
-    if (!isDone()) new Task() {
+  public Bell<T> deadline(double deadline) {
+    if (!isDone()) timeout(deadline, new Task(lane) {
       public void run() { ring(new TimeoutException()); }
-    }.dispatch(deadline); 
+    });
     return this;
   }
 
+  // Run task after delay unless this bell rings first. Only the earliest of
+  // multiple deadlines is kept.
+  private void timeout(double delay, Task task) {
+    TimerWheel.Timeout t = new TimerWheel.Timeout(task, delay), old = timeout;
+    if (old != null && !old.isCancelled() && old.deadline <= t.deadline)
+      return;
+    timeout = t.start();
+    if (old != null)
+      old.cancel();
+    if (isDone())
+      t.cancel();  // We rang while the timeout was being set.
+  }
+
   /**
    * Check if this {@code Bell} has at least one promise and all promises have
    * completed. This can be used by subclasses to implement backward-flowing
@@ -551,17 +677,43 @@ public class Bell<T> implements Future<T> {
    * @return {@code true} if there are one or more promised {@code Bell}s and they have
    * all completed; {@code false} otherwise.
    */
-  public synchronized boolean promisesCompleted() {
-    if (promises == null || promises.size() == 0)
+  public boolean promisesCompleted() {
+    Object s = state;
+    if (!(s instanceof Node))
       return false;
-    for (Bell b : promises)
-      if (!b.isDone()) return false;
+    for (Node n = (Node) s; n != null; n = n.next)
+      if (!n.bell.isDone()) return false;
     return true;
   }
 
+  /**
+   * Pin this {@code Bell} to the dispatch lane associated with {@code key}.
+   * All {@code Bell}s pinned to equal keys have their handlers and promises
+   * run on the same dispatch thread in the order they were dispatched. This
+   * should be called before the {@code Bell} is rung.
+   *
+   * @param key an object identifying the lane, such as a session or channel.
+   * @return This {@code Bell}.
+   * @see Dispatcher
+   */
+  public final Bell<T> affinity(Object key) {
+    lane = Dispatcher.laneFor(key);
+    return this;
+  }
+
+  // Lane marker for the shared bells below, which dispatch late promises in
+  // the lane of the promised bell instead.
+  private static final int SHARED = -1;
+
+  private static Bell shared(Bell bell) {
+    bell.lane = SHARED;
+    bell.settled = true;
+    return bell;
+  }
+
   // Used in rungBell() and failedBell()...
-  private final static Bell rungBell   = new Bell().ring();
-  private final static Bell failedBell = new Bell().ring((Throwable)null);
+  private final static Bell rungBell   = shared(new Bell().ring());
+  private final static Bell failedBell = shared(new Bell().ring((Throwable)null));
 
   /**
    * A static {@code Bell} that has already been rung.
@@ -590,11 +742,11 @@ public class Bell<T> implements Future<T> {
    * ring.
    */
   public static Bell<?> timerBell(final double deadline) {
-    return (Bell<?>) new Bell() {{
-      new Task() {
-        public void run() { ring(); }
-      }.dispatch(deadline); 
-    }};
+    final Bell bell = new Bell();
+    bell.timeout(deadline, new Task(bell.lane) {
+      public void run() { bell.ring(); }
+    });
+    return (Bell<?>) bell;
   }
 
   /**
@@ -655,14 +807,14 @@ public class Bell<T> implements Future<T> {
       return Bell.rungBell();
     if (len == 1) for (Bell b : bells)
       if (b != null) return b;
-    Bell bell = new Bell() {
-      int failed = 0;
-      public void then(Throwable t) {
-        if (++failed >= len) ring(t);
+    final Bell bell = new Bell();
+    final AtomicInteger failed = new AtomicInteger();
+    for (Bell b : bells) if (b != null) b.new Promise() {
+      public void done() { bell.ring(); }
+      public void fail(Throwable t) {
+        if (failed.incrementAndGet() >= len) bell.ring(t);
       }
     };
-    for (Bell b : bells)
-      if (b != null) b.promise(bell);
     return bell;
   }
 
@@ -690,14 +842,15 @@ public class Bell<T> implements Future<T> {
       return Bell.rungBell();
     if (len == 1) for (Bell b : bells)
       if (b != null) return b;
-    Bell bell = new Bell() {
-      int succeeded = 0;
-      public void then(Object o) {
-        if (++succeeded >= len) ring();
+    final Bell bell = new Bell();
+    final AtomicInteger succeeded = new AtomicInteger();
+    for (Bell b : bells) if (b != null) b.new Promise() {
+      public void done() {
+        if (succeeded.incrementAndGet() >= len) bell.ring();
+      } public void fail(Throwable t) {
+        bell.ring(t);
       }
     };
-    for (Bell b : bells)
-      if (b != null) b.promise(bell);
     return bell;
   }
 
@@ -725,14 +878,13 @@ public class Bell<T> implements Future<T> {
       return Bell.rungBell();
     if (len == 1) for (Bell b : bells)
       if (b != null) return b;
-    Bell bell = new Bell() {
-      int finished = 0;
+    final Bell bell = new Bell();
+    final AtomicInteger finished = new AtomicInteger();
+    for (Bell b : bells) if (b != null) b.new Promise() {
       public void always() {
-        if (++finished >= len) ring();
+        if (finished.incrementAndGet() >= len) bell.ring();
       }
     };
-    for (Bell b : bells)
-      if (b != null) b.promise(bell);
     return bell;
   }
 
@@ -792,50 +944,3 @@ public class Bell<T> implements Future<T> {
     if (!isDone()) cancel();
   }
 }
-
-/** A task for the dispatch loop. */
-abstract class Task implements Runnable {
-  final void dispatch() {
-    Dispatcher.dispatch(this);
-  } final void dispatch(double delay) {
-    Dispatcher.dispatch(this, delay);
-  }
-  public abstract void run();
-}
-
-/** A dispatch loop used internally. */
-final class Dispatcher {
-  // Keep the thread pool at size 1 for now until we can figure out how to
-  // better control ordering...
-  private static final ScheduledThreadPoolExecutor pool =
-    new ScheduledThreadPoolExecutor(1);
-
-  // Wrap a runnable for safety.
-  private static Runnable wrap(final Runnable r) {
-    return new Runnable() {
-      public void run() {
-        try {
-          r.run();
-        } catch (Exception e) {
-          System.out.print("Exception in bell loop:");
-          e.printStackTrace();
-        }
-      }
-    };
-  }
-
-  /**
-   * Schedule {@code runnable} to be executed as soon as possible.
-   */
-  static synchronized void dispatch(final Runnable runnable) {
-    //pool.schedule(wrap(runnable), (long)1E3, TimeUnit.MICROSECONDS);
-    pool.schedule(wrap(runnable), 0, TimeUnit.MICROSECONDS);
-  }
-
-  /**
-   * Schedule {@code runnable} to be executed after a delay.
-   */
-  static synchronized void dispatch(Runnable runnable, double delay) {
-    pool.schedule(wrap(runnable), (long)(delay*1E6), TimeUnit.MICROSECONDS);
-  }
-}
@@ -0,0 +1,217 @@
+package stork.feather;
+
+import java.util.*;
+
+/**
+ * A record of how far a {@code Transfer} has gotten, so that a later {@code
+ * Transfer} between the same {@code Resource}s can pick up where it left off.
+ * It holds the paths which have been transferred completely and, for files
+ * which were in progress, how many bytes from the start of the file have been
+ * written to the destination.
+ * <p/>
+ * A path recorded as done covers everything below it, so once a directory
+ * has been recorded, what was recorded inside it is forgotten. Its size
+ * therefore follows the directories still in progress rather than the number
+ * of files transferred.
+ * <p/>
+ * Offsets are a hint. A destination may not have stored everything it was
+ * sent, so a {@code Transfer} resuming a file should not resume past what the
+ * destination actually has. An offset is also forgotten if the size of its
+ * file changes.
+ * <p/>
+ * A {@code Checkpoint} can be encoded as a string and decoded again, so it
+ * can be saved with whatever is keeping track of the transfer.
+ */
+public class Checkpoint {
+  // Both are sorted so everything below a path can be found together.
+  private final TreeSet<String> done = new TreeSet<String>();
+  private final TreeMap<String, Partial> partial =
+    new TreeMap<String, Partial>();
+
+  // A file in progress: its size, the number of bytes written from its
+  // start, and ranges written beyond that, keyed by start.
+  private static class Partial {
+    final long size;
+    long offset;
+    TreeMap<Long, Long> ahead;
+
+    Partial(long size, long offset) {
+      this.size = size;
+      this.offset = offset;
+    }
+  }
+
+  /**
+   * Check if the resource at {@code path} has been transferred completely,
+   * either by itself or as part of a directory above it.
+   *
+   * @param path the path of the resource relative to the transfer root.
+   * @return {@code true} if the resource has been transferred.
+   */
+  public synchronized boolean isDone(Path path) {
+    String key = path.toString();
+    while (true) {
+      if (done.contains(key))
+        return true;
+      int i = key.lastIndexOf('/');
+      if (i < 0 || key.equals("/"))
+        return false;
+      key = (i == 0) ? "/" : key.substring(0, i);
+    }
+  }
+
+  /**
+   * Record that the resource at {@code path} has been transferred
+   * completely. If it is a directory, this should only be done once
+   * everything in it has been, and what was recorded for anything in it is
+   * forgotten.
+   *
+   * @param path the path of the resource relative to the transfer root.
+   */
+  public synchronized void done(Path path) {
+    String key = path.toString();
+    partial.remove(key);
+    if (isDone(path))
+      return;
+    String below = key.endsWith("/") ? key : key+"/";
+    String end = below+Character.MAX_VALUE;
+    done.subSet(below, end).clear();
+    partial.subMap(below, end).clear();
+    done.add(key);
+  }
+
+  /**
+   * Record that a file of {@code size} bytes at {@code path} is being
+   * transferred. If the file was in progress with a different size, its
+   * offset is forgotten.
+   *
+   * @param path the path of the file relative to the transfer root.
+   * @param size the size of the file.
+   */
+  public synchronized void started(Path path, long size) {
+    String key = path.toString();
+    Partial p = partial.get(key);
+    if (p == null || p.size != size)
+      partial.put(key, new Partial(size, 0));
+  }
+
+  /**
+   * Get the number of bytes from the start of a file which have been written
+   * to the destination.
+   *
+   * @param path the path of the file relative to the transfer root.
+   * @param size the size of the file now.
+   * @return The number of bytes written, or zero if nothing is known to have
+   * been written or the file's size has changed.
+   */
+  public synchronized long offset(Path path, long size) {
+    Partial p = partial.get(path.toString());
+    return (p == null || p.size != size) ? 0 : p.offset;
+  }
+
+  /**
+   * Record that {@code length} bytes of a file starting at {@code offset}
+   * have been written to the destination. Ranges may be recorded in any
+   * order. Nothing is recorded for a file which was not {@link
+   * #started(Path,long) started}.
+   *
+   * @param path the path of the file relative to the transfer root.
+   * @param offset the offset the range starts at.
+   * @param length the length of the range.
+   */
+  public synchronized void written(Path path, long offset, long length) {
+    Partial p = partial.get(path.toString());
+    if (p == null || offset < 0 || length <= 0)
+      return;
+    long end = offset+length;
+
+    if (offset > p.offset) {
+      if (p.ahead == null)
+        p.ahead = new TreeMap<Long, Long>();
+      Long e = p.ahead.get(offset);
+      p.ahead.put(offset, (e == null) ? end : Math.max(e, end));
+      return;
+    } p.offset = Math.max(p.offset, end);
+
+    // Take in whatever ranges now continue from the offset.
+    while (p.ahead != null && !p.ahead.isEmpty()) {
+      Map.Entry<Long, Long> e = p.ahead.firstEntry();
+      if (e.getKey() > p.offset)
+        break;
+      p.ahead.pollFirstEntry();
+      p.offset = Math.max(p.offset, e.getValue());
+    } if (p.ahead != null && p.ahead.isEmpty())
+      p.ahead = null;
+  }
+
+  /** Check if nothing has been recorded. */
+  public synchronized boolean isEmpty() {
+    return done.isEmpty() && partial.isEmpty();
+  }
+
+  /** Forget everything that has been recorded. */
+  public synchronized void clear() {
+    done.clear();
+    partial.clear();
+  }
+
+  /**
+   * Encode this {@code Checkpoint} as a string, one line per path. Line
+   * breaks and backslashes in paths are escaped with backslashes. Files in
+   * progress with nothing written are left out.
+   *
+   * @return This {@code Checkpoint} as a string.
+   */
+  public synchronized String encode() {
+    StringBuilder sb = new StringBuilder();
+    for (String path : done)
+      sb.append('=').append(escape(path)).append('\n');
+    for (Map.Entry<String, Partial> e : partial.entrySet()) {
+      Partial p = e.getValue();
+      if (p.offset > 0) sb.append('>').append(p.offset).append(' ')
+        .append(p.size).append(' ').append(escape(e.getKey())).append('\n');
+    } return sb.toString();
+  }
+
+  /**
+   * Decode a {@code Checkpoint} encoded with {@link #encode()}. Lines which
+   * can't be decoded are ignored.
+   *
+   * @param string an encoded {@code Checkpoint}.
+   * @return The decoded {@code Checkpoint}.
+   */
+  public static Checkpoint decode(String string) {
+    Checkpoint cp = new Checkpoint();
+    if (string != null) for (String line : string.split("\n")) try {
+      if (line.startsWith("=")) {
+        cp.done.add(unescape(line.substring(1)));
+      } else if (line.startsWith(">")) {
+        String[] s = line.substring(1).split(" ", 3);
+        long offset = Long.parseLong(s[0]), size = Long.parseLong(s[1]);
+        cp.partial.put(unescape(s[2]), new Partial(size, offset));
+      }
+    } catch (Exception e) {
+      // Skip it. The file will just be transferred again.
+    } return cp;
+  }
+
+  // Escape a path so that it fits on one line.
+  private static String escape(String path) {
+    return path.replace("\\", "\\\\").replace("\n", "\\n");
+  }
+
+  // Undo escape(String).
+  private static String unescape(String path) {
+    StringBuilder sb = new StringBuilder(path.length());
+    for (int i = 0; i < path.length(); i++) {
+      char c = path.charAt(i);
+      if (c == '\\' && i+1 < path.length())
+        c = (path.charAt(++i) == 'n') ? '\n' : path.charAt(i);
+      sb.append(c);
+    } return sb.toString();
+  }
+
+  public synchronized String toString() {
+    return done.size()+" done, "+partial.size()+" in progress";
+  }
+}
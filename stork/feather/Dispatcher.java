@@ -0,0 +1,240 @@
+package stork.feather;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The dispatch loop which runs {@code Bell} handlers and promises. Work is
+ * divided among a number of <i>lanes</i>, each of which is served by exactly
+ * one thread. Every {@code Bell} belongs to a lane, and all of the handlers and
+ * promise notifications of a {@code Bell} run in that lane in the order they
+ * were dispatched.
+ * <p/>
+ * A {@code Bell} created from within a dispatch thread inherits the lane of
+ * that thread, so chains of {@code Bell}s created while handling a pipeline or
+ * session stay on the same thread. A {@code Bell} created on any other thread
+ * is assigned a lane based on the identity of that thread, which preserves the
+ * relative ordering of everything created on, for instance, a single I/O
+ * thread. A {@code Bell} may also be pinned to the lane of an arbitrary key
+ * with {@link Bell#affinity(Object)}.
+ * <p/>
+ * The dispatcher starts with one lane, which reproduces the strict global
+ * ordering of a single-threaded dispatch loop.
+ * <p/>
+ * Tasks dispatched from a lane's own thread, such as the handlers of a {@code
+ * Bell} rung by another handler or promises made on an already rung {@code
+ * Bell}, take an inline fast path: they are run on the same thread as soon as
+ * the current task returns, without going through the executor. Running them
+ * after the current task rather than recursively guarantees that handlers
+ * never see partially constructed {@code Bell}s. Up to {@link
+ * #inline(int)} tasks are chained this way before falling back to the
+ * executor, which lets other work queued for the lane make progress.
+ */
+public final class Dispatcher {
+  private static volatile ScheduledThreadPoolExecutor[] lanes = create(1);
+  private static volatile int inline = 64;
+
+  private Dispatcher() { }
+
+  // A thread serving exactly one lane. Only this thread touches its inline
+  // queue, so it needs no synchronization.
+  private static class DispatchThread extends Thread {
+    final int lane;
+    final ScheduledThreadPoolExecutor[] pools;
+    final ArrayDeque<Runnable> local = new ArrayDeque<Runnable>();
+    boolean running = false;
+    int budget = 0;
+
+    DispatchThread(Runnable r, int lane, ScheduledThreadPoolExecutor[] pools) {
+      super(r, "feather dispatch "+lane);
+      this.lane = lane;
+      this.pools = pools;
+    }
+  }
+
+  // Create an array of single-threaded lanes.
+  private static ScheduledThreadPoolExecutor[] create(int n) {
+    final ScheduledThreadPoolExecutor[] pools =
+      new ScheduledThreadPoolExecutor[n];
+    for (int i = 0; i < n; i++) {
+      final int lane = i;
+      pools[i] = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          return new DispatchThread(r, lane, pools);
+        }
+      });
+    } return pools;
+  }
+
+  /**
+   * Set the number of dispatch threads. Tasks which have already been
+   * dispatched will finish on the old threads, which will exit once they have
+   * run out of work.
+   *
+   * @param threads the number of dispatch threads to use.
+   * @throws IllegalArgumentException if {@code threads} is less than one.
+   */
+  public static synchronized void threads(int threads) {
+    if (threads < 1)
+      throw new IllegalArgumentException("threads must be positive");
+    if (threads == lanes.length)
+      return;
+    ScheduledThreadPoolExecutor[] old = lanes;
+    lanes = create(threads);
+    for (ScheduledThreadPoolExecutor pool : old)
+      pool.shutdown();
+  }
+
+  /**
+   * Get the number of dispatch threads.
+   *
+   * @return The number of dispatch threads.
+   */
+  public static int threads() {
+    return lanes.length;
+  }
+
+  /**
+   * Set the maximum number of tasks which may be chained on the inline fast
+   * path before falling back to the executor. Setting this to zero disables
+   * the fast path.
+   *
+   * @param limit the inline task limit.
+   * @throws IllegalArgumentException if {@code limit} is negative.
+   */
+  public static void inline(int limit) {
+    if (limit < 0)
+      throw new IllegalArgumentException("limit must not be negative");
+    inline = limit;
+  }
+
+  /**
+   * Get the maximum number of tasks which may be chained on the inline fast
+   * path.
+   *
+   * @return The inline task limit.
+   */
+  public static int inline() {
+    return inline;
+  }
+
+  // Get the lane a Bell created on the current thread should belong to.
+  static int currentLane() {
+    Thread t = Thread.currentThread();
+    if (t instanceof DispatchThread)
+      return ((DispatchThread) t).lane;
+    return (int) t.getId() & Integer.MAX_VALUE;
+  }
+
+  // Get the lane for an arbitrary key.
+  static int laneFor(Object key) {
+    return key.hashCode() & Integer.MAX_VALUE;
+  }
+
+  // Run a runnable, reporting any exceptions.
+  private static void runSafely(Runnable r) {
+    try {
+      r.run();
+    } catch (Exception e) {
+      System.out.print("Exception in bell loop:");
+      e.printStackTrace();
+    }
+  }
+
+  // Wrap a runnable for safety. When it returns, run anything that was put on
+  // the inline queue while it was running.
+  private static Runnable wrap(final Runnable r) {
+    return new Runnable() {
+      public void run() {
+        DispatchThread t = (DispatchThread) Thread.currentThread();
+        t.running = true;
+        t.budget = inline;
+        try {
+          runSafely(r);
+          Runnable next;
+          while ((next = t.local.poll()) != null)
+            runSafely(next);
+        } finally {
+          t.running = false;
+        }
+      }
+    };
+  }
+
+  /**
+   * Schedule {@code runnable} to be executed in {@code lane} as soon as
+   * possible, taking the inline fast path if the caller is running in that
+   * lane.
+   */
+  static void dispatch(Runnable runnable, int lane) {
+    Thread t = Thread.currentThread();
+    if (t instanceof DispatchThread) {
+      DispatchThread dt = (DispatchThread) t;
+      if (dt.running && dt.budget > 0 && dt.pools == lanes &&
+          lane % dt.pools.length == dt.lane) {
+        dt.budget--;
+        dt.local.add(runnable);
+        return;
+      }
+    } enqueue(runnable, lane);
+  }
+
+  /**
+   * Schedule {@code runnable} to be executed in {@code lane} as soon as
+   * possible, behind anything already queued for the lane. Delayed tasks are
+   * scheduled with {@link TimerWheel} rather than here.
+   */
+  static void enqueue(Runnable runnable, int lane) {
+    Runnable r = wrap(runnable);
+    while (true) try {
+      ScheduledThreadPoolExecutor[] l = lanes;
+      l[lane % l.length].execute(r);
+      return;
+    } catch (RejectedExecutionException e) {
+      // The lanes were replaced while we were dispatching. Try again.
+    }
+  }
+
+  /**
+   * Measure the throughput of the dispatcher with increasing numbers of
+   * threads. Each chain is a sequence of {@code Bell}s pinned to its own lane
+   * which perform a small amount of work in each handler.
+   */
+  public static void main(String[] args) {
+    int max    = args.length > 0 ? Integer.parseInt(args[0]) :
+                 Runtime.getRuntime().availableProcessors();
+    int chains = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+    int length = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+
+    for (int n = 1; n <= max; n *= 2) {
+      threads(n);
+      long start = System.nanoTime();
+      List<Bell> ends = new ArrayList<Bell>();
+      for (int c = 0; c < chains; c++) {
+        Bell end = new Bell();
+        step(c, 1, length, end);
+        ends.add(end);
+      }
+      for (Bell end : ends)
+        end.sync();
+      double s = (System.nanoTime()-start)/1E9;
+      System.out.printf("threads=%d: %.0f handlers/s%n", n, chains*length/s);
+    } System.exit(0);
+  }
+
+  // Ring a bell whose handler does some work and then rings the next one.
+  private static void step(final Object key, final int i, final int length,
+                           final Bell end) {
+    new Bell<Integer>() {
+      public void done(Integer n) {
+        int sum = n;
+        for (int j = 0; j < 1000; j++)
+          sum = 31*sum + j;
+        if (i >= length)
+          end.ring(sum);
+        else
+          step(key, i+1, length, end);
+      }
+    }.affinity(key).ring(i);
+  }
+}
@@ -13,6 +13,8 @@ public class Emitter<T> extends Bell {
   private boolean queueHasEmits = false;
   private static final Bell endOfEmits = new Bell().ring();
   private boolean finalized = false;
+  private Bell drained;  // Rings when fewer than limit emits are queued.
+  private int limit;
 
   // When done, finalize and clear the queue.
   {
@@ -88,6 +90,10 @@ public class Emitter<T> extends Bell {
         bell.cancel();
       else
         b.promise(bell);
+      if (drained != null && queue.size() < limit) {
+        drained.ring();
+        drained = null;
+      }
     } else if (isDone()) {
       bell.cancel();
     } else {
@@ -96,6 +102,25 @@ public class Emitter<T> extends Bell {
     } return bell;
   }
 
+  /**
+   * Get a {@code Bell} which rings once fewer than {@code n} emitted items
+   * are waiting to be taken. A producer can use this to avoid getting too far
+   * ahead of the consumer.
+   *
+   * @param n the number of waiting items to allow.
+   * @return A {@code Bell} which rings once fewer than {@code n} emitted
+   * items are waiting, or when this emitter is finalized.
+   */
+  public final synchronized Bell drained(int n) {
+    if (finalized || !queueHasEmits || queue.size() < n)
+      return Bell.rungBell();
+    if (drained == null || n < limit)
+      limit = n;
+    if (drained == null)
+      drained = new Bell();
+    return drained;
+  }
+
   // Upon ringing, cancel any queued bells.
   private final synchronized void finalizeRemaining(Throwable error) {
     if (finalized)
@@ -106,6 +131,9 @@ public class Emitter<T> extends Bell {
       b.ring(error);
     else for (Bell b : queue)
       b.cancel();
+    if (drained != null)
+      drained.ring();
+    drained = null;
     finalized = true;
   }
 
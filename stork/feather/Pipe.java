@@ -164,6 +164,72 @@ public class Pipe {
     } throw new RuntimeException("The pipeline is finished.");
   }
 
+  /**
+   * Drain a {@code Region} of a file through the pipeline. By default, this
+   * reads the {@code Region} into a {@code Slice} and drains it with {@link
+   * #drain(Slice)}, so subclasses which only handle {@code Slice}s need not
+   * be aware of {@code Region}s. Subclasses which can move a {@code Region}
+   * without copying it, or which pass data through unchanged, should override
+   * this and {@link #acceptsRegions()}.
+   *
+   * @param region a {@code Region} being drained through the pipeline.
+   * @return A {@code Bell} that rings when the pipeline is ready for more
+   * data, and the {@code Region} may no longer be accessed, or {@code null}
+   * if more data is ready to be drained immediately.
+   * @throws Exception if {@code Pipe} is unable to drain {@code region} for
+   * some reason known immediately.
+   */
+  protected Bell drain(Region region) throws Exception {
+    return drain(region.read());
+  }
+
+  /**
+   * Pass a {@code Region} downstream without reading it. Subclasses which
+   * override {@link #drain(Region)} to inspect {@code Region}s should call
+   * this to pass them on.
+   *
+   * @param region a {@code Region} being drained through the pipeline.
+   * @return A {@code Bell} that rings when the pipeline is ready for more
+   * data.
+   */
+  protected final synchronized Bell forward(Region region) {
+    if (!finished) try {
+      Bell bell = downstream().drain(region);
+      if (bell == null)
+        bell = Bell.rungBell();
+      return lastDrain = bell;
+    } catch (Exception e) {
+      return lastDrain = new Bell(e);
+    } throw new RuntimeException("The pipeline is finished.");
+  }
+
+  /**
+   * Check if this {@code Pipe} can drain {@code Region}s without reading them
+   * into memory. {@code Tap}s may use this to decide whether to emit {@code
+   * Region}s, and how large to make them. By default, this returns {@code
+   * false}.
+   *
+   * @return {@code true} if {@code Region}s drained to this {@code Pipe} will
+   * not be copied into user space; {@code false} otherwise.
+   */
+  protected boolean acceptsRegions() {
+    return false;
+  }
+
+  /**
+   * Check if this {@code Pipe} can drain {@code Slice}s in any order, placing
+   * each according to its {@linkplain Slice#offset() offset}. {@code Tap}s
+   * which receive data out of order, such as over parallel streams, may use
+   * this to decide whether to reassemble it before draining it. By default,
+   * this returns {@code false}.
+   *
+   * @return {@code true} if {@code Slice}s drained to this {@code Pipe} may
+   * arrive out of order; {@code false} otherwise.
+   */
+  protected boolean acceptsUnordered() {
+    return false;
+  }
+
   /**
    * Called when an upstream {@code Pipe} encounters an {@code Throwable} while
    * draining. By default, this propagates the {@code Throwable} downstream for
@@ -220,6 +286,27 @@ public class Pipe {
     }
   }
 
+  /**
+   * Cut short the flow of data through this {@code Pipe}, for instance because
+   * the transfer it is part of was stopped. Unlike {@link #finish(Throwable)},
+   * this does not wait for what has been drained already, and is not passed
+   * along the pipeline; whatever stops the transfer aborts each {@code Pipe}
+   * in it. Once called, no more {@code Slice}s will be drained through this
+   * {@code Pipe}, and finishing it does nothing.
+   * <p/>
+   * Subclasses which hold on to files, connections or sessions should
+   * override this to let go of them, and return a {@code Bell} which rings
+   * once they have.
+   *
+   * @param error the reason the flow of data was cut short.
+   * @return A {@code Bell} which rings once this {@code Pipe} has stopped
+   * using whatever it moved data with, or {@code null} if it has already.
+   */
+  protected synchronized Bell abort(Throwable error) {
+    finished = true;
+    return null;
+  }
+
   /**
    * Retrieve the pipeline as a {@code List}. This is intended to be used for
    * debugging purposes primarily, and the returned {@code List} is purely
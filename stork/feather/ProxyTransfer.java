@@ -2,6 +2,7 @@ package stork.feather;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 import stork.feather.util.*;
 
@@ -13,55 +14,143 @@ import stork.feather.util.*;
  */
 public class ProxyTransfer<S extends Resource<?,S>, D extends Resource<?,D>>
 extends Transfer<S,D> {
-  private LinkedList<Pending> queue = new LinkedList<Pending>();
+  /**
+   * The most data transfers which may wait for a turn to start. Crawling the
+   * source pauses while this many are waiting, until half of them have
+   * started.
+   */
+  public int max_queued = 1024;
+
+  private Crawler<S> crawler;
+  private Queue<Pending> queue = new ArrayDeque<Pending>();
+  private Bell drained;  // Rings to resume crawling.
   private Time timer;
   private Progress progress = new Progress();
   private Throughput throughput = new Throughput();
+  private Boolean random;  // Whether the destination is random access.
   
-  // A pending transfer and a bell to ring when it starts.
+  // A data transfer waiting for its turn to start.
   private static class Pending {
-    final Bell bell;
     final Path path;
-    protected Pending(Path path) {
-      this(new Bell(), path);
-    } protected Pending(Bell bell, Path path) {
-      this.bell = bell;
+    final long size;
+    Pending(Path path, long size) {
       this.path = path;
+      this.size = size;
     }
   }
 
-  // Sets of ongoing transfers and listings.
+  // Set of ongoing data transfers, and the pipes between their taps and
+  // sinks, which are aborted if the transfer is stopped.
   private Set<Path> transfers = new HashSet<Path>();
-  private Set<Path> listings = new HashSet<Path>();
+  private Set<Pipe> pipes = new HashSet<Pipe>();
+
+  // Bells for the crawler which ring once the data transfers of queued files
+  // have ended, so it knows when everything in a directory has finished.
+  private Map<Path, Bell> ending = new HashMap<Path, Bell>();
+
+  // The first failure, and how many resources failed to transfer.
+  private Throwable failure;
+  private Path failedPath;
+  private int failures = 0;
+
+  // Directories with something in them which failed.
+  private Set<Path> failedDirs = new HashSet<Path>();
 
   /**
    * Create a {@code ProxyTransfer} that will transfer from {@code source} to
-   * {@code destination}.
+   * {@code destination}. The transfer begins once {@link #starter} is rung.
    *
    * @param source the source {@code Resource}.
    * @param destination the destination {@code Resource}.
    */
   public ProxyTransfer(S source, D destination) {
     super(source, destination);
-    starter.ring();
   }
 
+  // The source is crawled breadth-first, and each file found is queued to
+  // have its data transferred. Directories are created before anything is
+  // transferred into them, and are recorded in the checkpoint once
+  // everything in them has been transferred.
   protected Bell start() {
     System.out.println("Transfer starting...");
     timer = new Time();
-    return transfer(Path.ROOT);
+    crawler = new Crawler<S>(source, true) {
+      protected Bell operate(Path path, S src, Stat stat) {
+        return found(path, stat);
+      } protected void failed(Path path, Throwable t) {
+        ProxyTransfer.this.fail(path, t);
+      } protected void finished(Path path, Stat stat) {
+        if (stat.dir)
+          dirFinished(path);
+      } public void done() {
+        checkIfComplete();
+      } public void fail(Throwable t) {
+        stopper.ring(t);
+      }
+    };
+    crawler.start();
+    return null;
   }
 
-  protected void stop() {
-    timer.stop();
-    System.out.println("Transfer complete.");
-    System.out.println("Total:  "+progress);
-    System.out.println("Avg.Th: "+progress.rate(timer));
+  // Stop crawling, drop the data transfers which haven't started, and abort
+  // the ones which have. The returned bell rings once every tap and sink has
+  // let go of what it was using.
+  protected Bell stop() {
+    List<Pipe> aborted;
+    synchronized (this) {
+      if (crawler != null)
+        crawler.cancel();
+      queue.clear();
+      aborted = new ArrayList<Pipe>(pipes);
+      pipes.clear();
+    }
+
+    // Stop what passes between each tap and sink first, then the ends.
+    Throwable error = new CancellationException("The transfer was stopped.");
+    List<Bell> bells = new ArrayList<Bell>();
+    for (Pipe pipe : aborted) for (Pipe p : Arrays.asList(
+        pipe, pipe.tap(), pipe.sink())) try {
+      bells.add(p.abort(error));
+    } catch (Exception e) {
+      // Then there is nothing more to do for it.
+    }
+
+    if (timer != null) {
+      timer.stop();
+      System.out.println("Transfer complete.");
+      System.out.println("Total:  "+progress);
+      System.out.println("Avg.Th: "+progress.rate(timer));
+    } return Bell.wait(bells);
   }
 
+  /**
+   * Called when the resource at {@code path} could not be transferred. The
+   * rest of the transfer carries on, but once it is done, the {@code
+   * Transfer} is stopped with an error.
+   *
+   * @param path the path of the resource relative to the transfer root.
+   * @param t the reason the resource could not be transferred.
+   */
   protected void fail(Path path, Throwable t) {
     System.out.println("Transfer failed! "+path);
     t.printStackTrace();
+    synchronized (this) {
+      if (failures++ == 0) {
+        failure = t;
+        failedPath = path;
+      }
+      // Mark the path and the directories above it, stopping at one which
+      // was already marked, since those above it are too.
+      for (Path p = path; failedDirs.add(p) && !p.isRoot(); p = p.up());
+    }
+  }
+
+  // Record a directory in the checkpoint once everything in it has been
+  // transferred, which lets the checkpoint forget what is in it.
+  private synchronized void dirFinished(Path path) {
+    Checkpoint cp = checkpoint();
+    if (cp != null && !isDone() && !failedDirs.contains(path))
+      cp.done(path);
   }
 
   // Check if we're able to start a data transfer according to the configured
@@ -71,134 +160,356 @@ extends Transfer<S,D> {
     return c <= 0 || transfers.size() < c;
   }
 
-  // The total number of tasks pending.
+  // The total number of tasks pending, counting the crawl as one.
   private synchronized int pendingTasks() {
-    return queue.size() + transfers.size() + listings.size();
+    return queue.size() + transfers.size() + (crawler.isDone() ? 0 : 1);
   }
 
   // Check if the transfer is complete. If there are no more pending tasks,
-  // declare the transfer to be complete.
+  // declare the transfer to be complete, or failed if anything in it failed.
   private synchronized void checkIfComplete() {
-    if (pendingTasks() <= 0) {
+    if (pendingTasks() > 0)
+      return;
+    if (failures == 0) {
       stopper.ring();
+    } else {
+      String msg = failure.getMessage();
+      if (msg == null)
+        msg = failure.toString();
+      if (failures > 1)
+        msg = failures+" resources failed, first "+failedPath+": "+msg;
+      else
+        msg = failedPath+": "+msg;
+      stopper.ring(new RuntimeException(msg, failure));
     }
   }
 
-  // Transfer a resource given its path, and return a bell that rings when the
-  // transfer begins.
-  private synchronized Bell transfer(final Path path) {
-    if (isDone()) {
-      return Bell.rungBell();
-    } if (!canStartDataTransfer()) {
-      return enqueueTransfer(path, false);
-    } try {
-      transferStarted(path);
-      return transfer0(path).new Promise() {
+  // Called by the crawler for each resource found in the source. Resources
+  // which the checkpoint says were transferred already are skipped.
+  private Bell found(final Path path, Stat stat) {
+    if (isDone())
+      return null;
+    if (stat.link != null)
+      throw new RuntimeException("Cannot transfer links.");
+    Checkpoint cp = checkpoint();
+    if (cp != null && cp.isDone(path)) {
+      if (stat.file)
+        skipped(stat.size);
+      return null;
+    } if (stat.dir)
+      return mkdir(path);
+    if (stat.file)
+      return enqueueTransfer(path, stat.size);
+    return null;
+  }
+
+  // Create a directory at the destination. Some destinations refuse to
+  // create a directory which is already there, which is fine too.
+  private Bell mkdir(Path path) {
+    final D dest = destination.select(path);
+    return dest.mkdir().new AsBell<Object>() {
+      public Bell<Object> convert(D d) {
+        return new Bell<Object>(d);
+      } public Bell<Object> convert(final Throwable t) {
+        return dest.stat().new As<Object>() {
+          public Object convert(Stat stat) throws Throwable {
+            if (!stat.dir) throw t;
+            return stat;
+          } public Object convert(Throwable e) throws Throwable {
+            throw t;
+          }
+        };
+      }
+    };
+  }
+
+  // Report a file which was transferred by an earlier transfer.
+  private void skipped(long size) {
+    Listener l = listener();
+    if (l != null) {
+      l.resumed(size);
+      l.fileDone();
+    }
+  }
+
+  // Put a data transfer in the transfer queue, pausing the crawler if the
+  // queue is full, and start what transfers can be started. The returned bell
+  // rings once the data transfer has ended, successfully or not.
+  private synchronized Bell enqueueTransfer(Path path, long size) {
+    Bell bell = new Bell();
+    ending.put(path, bell);
+    queue.add(new Pending(path, size));
+    if (drained == null && queue.size() >= max_queued)
+      crawler.pauseUntil(drained = new Bell());
+    popTransfers();
+    return bell;
+  }
+
+  // Remove resource paths from the transfer queue and begin transferring them.
+  private synchronized void popTransfers() {
+    while (!isDone() && canStartDataTransfer()) {
+      Pending pending = queue.poll();
+      if (pending == null)
+        break;
+      transfer(pending.path, pending.size);
+    } if (drained != null && queue.size() <= max_queued/2) {
+      drained.ring();
+      drained = null;
+    }
+  }
+
+  // Start transferring the data of a resource.
+  private synchronized void transfer(final Path path, long size) {
+    transferStarted(path);
+    try {
+      transferData(path, size).new Promise() {
         public void fail(Throwable t) {
-          transferEnded(path);
           ProxyTransfer.this.fail(path, t);
+          transferEnded(path);
         }
       };
     } catch (Exception e) {
+      fail(path, e);
       transferEnded(path);
-      return new Bell(e);
     }
-  } private synchronized Bell transfer0(final Path path) {
-    if (isDone())
-      return Bell.rungBell();
+  }
 
-    final S src  = source.select(path);
-    final D dest = destination.select(path);
+  /**
+   * Transfer a resource once it is known to be a data resource. By default,
+   * the data is proxied from the source's {@code Tap}s into the destination's
+   * {@code Sink}. If the destination can take data in any order, the source
+   * may split the resource into ranges which are transferred in parallel.
+   * If the {@code Checkpoint} has part of the resource written already, the
+   * transfer resumes from there instead.
+   * <p/>
+   * Subclasses may override this to move the data some other way. They
+   * should report data as it is moved with {@link #transferred(long)}, call
+   * {@link #transferSucceeded(Path)} if the data was all moved, and call
+   * {@link #transferEnded(Path)} once the data transfer has completed. If
+   * the returned {@code Bell} fails, the resource is taken to have failed
+   * and ended, and neither should be called.
+   *
+   * @param path the path of the resource relative to the transfer root.
+   * @param size the size of the resource, as reported by its {@code Stat}.
+   * @return A {@code Bell} which rings once the data transfer has started,
+   * or fails if it could not be done.
+   */
+  protected synchronized Bell transferData(final Path path, final long size) {
+    Checkpoint cp = checkpoint();
+    long offset = 0;
+    if (cp != null) {
+      offset = cp.offset(path, size);
+      cp.started(path, size);
+    } if (offset <= 0)
+      return transferData(path, size, 0);
 
-    // Stat the source to see what it is.
-    return src.stat().new AsBell<Object>() {
+    // The destination may not have kept everything it was sent, so resume
+    // from no further than what it has.
+    final long hint = offset;
+    Bell<Stat> stat;
+    try {
+      stat = destination.select(path).stat();
+    } catch (Exception e) {
+      return transferData(path, size, 0);
+    } return stat.new AsBell<Object>() {
       public Bell<Object> convert(Stat stat) {
-        Bell b = Bell.rungBell();
-        if (stat.link != null)
-          throw new RuntimeException("Cannot transfer links.");
-        if (stat.dir)
-          b = b.and(dest.mkdir()).and(transferList(path));
-        if (stat.file)
-          b = b.and(transferData(path));
-        else
-          transferEnded(path);
-        return b;
+        return transferData(path, size, Math.min(hint, stat.size));
+      } public Bell<Object> convert(Throwable t) {
+        return transferData(path, size, 0);
       }
     };
   }
 
-  // If we are not yet able to start a transfer, put it in the transfer queue.
-  private synchronized Bell enqueueTransfer(Path path, boolean first) {
-    Pending pending = new Pending(path);
-    if (first)
-      queue.addFirst(pending);
-    else
-      queue.add(pending);
-    return pending.bell;
-  }
-
-  // Remove resource paths from the transfer queue and begin transferring them.
-  private synchronized void popTransfers() {
-    while (canStartDataTransfer()) {
-      Pending pending = queue.poll();
-      if (pending == null)
-        return;
-      transfer(pending.path).promise(pending.bell);
+  // Transfer the data of a resource starting at offset.
+  private synchronized Bell transferData(Path path, long size, long offset) {
+    S src = source.select(path);
+    D dest = destination.select(path);
+    List<Tap<S>> taps = null;
+    List<Sink<D>> sinks = new ArrayList<Sink<D>>();
+    if (offset > 0) try {
+      taps = Collections.singletonList(src.tap(offset));
+      sinks.add(dest.sink(offset));
+      resumed(offset);
+    } catch (UnsupportedOperationException e) {
+      // Then start over.
+      taps = null;
+      offset = 0;
+      sinks.clear();
+    } if (taps == null) {
+      taps = random() ?
+        src.taps(size) : Collections.singletonList(src.tap());
+      for (int i = 0; i < taps.size(); i++)
+        sinks.add(dest.sink());
     }
+
+    // Nothing is started until every tap and sink is in hand, so that from
+    // here on the taps alone decide when the resource has ended.
+    AtomicInteger left = new AtomicInteger(taps.size());
+    AtomicBoolean failed = new AtomicBoolean();
+    List<Bell> bells = new ArrayList<Bell>(taps.size());
+    for (int i = 0; i < taps.size(); i++)
+      bells.add(transferData(path, taps.get(i), sinks.get(i), offset,
+                             left, failed));
+    return Bell.all(bells);
   }
 
-  // Transfer a resource once we know it's a data resource.
-  private synchronized Bell transferData(final Path path) {
-    return source.select(path).tap().attach(new Pipe() {
+  // Drain a tap for a resource into a sink for the resource, recording in the
+  // checkpoint what the sink has taken. Slices without offsets are assumed to
+  // follow on from start. The transfer of the resource ends once the last of
+  // its taps has finished, and only the first of them to fail is reported.
+  // The returned bell does not fail, since the tap's failure is handled here.
+  private Bell transferData(final Path path, Tap<S> tap, Sink<D> sink,
+                            final long start, final AtomicInteger left,
+                            final AtomicBoolean failed) {
+    final Checkpoint cp = checkpoint();
+    final Bell bell = new Bell();
+    final Pipe pipe = new Pipe() {
+      private long next = start;  // Where the next unplaced slice goes.
+      private boolean ended = false;
+
+      // A sink which fails to start fails the tap, but the tap may not say
+      // so when it finishes.
       protected Bell start() throws Exception {
-        return super.start();
+        return super.start().new Promise() {
+          public void fail(Throwable t) { ended(t); }
+        };
       } protected Bell drain(Slice slice) throws Exception {
-        progress.add(slice.length());
-        throughput.update(slice.length());
-        return super.drain(slice);
+        long len = slice.length();
+        long off = (slice.offset() >= 0) ? slice.offset() : next;
+        next = off+len;
+        transferred(len);
+        return written(super.drain(slice), off, len);
+      } protected Bell drain(Region region) {
+        transferred(region.count());
+        next = region.position()+region.count();
+        return written(forward(region), region.position(), region.count());
+      } protected boolean acceptsRegions() {
+        return downstream().acceptsRegions();
+      } protected boolean acceptsUnordered() {
+        return downstream().acceptsUnordered();
       } protected void finish() {
         super.finish();
-        transferEnded(path);
-      } protected void finish(Exception e) {
-        fail(path, e);
+        ended(null);
+      } protected void finish(Throwable t) {
+        super.finish(t);
+        ended(t);
       }
-    }).attach(destination.select(path).sink()).tap().start();
-  }
 
-  // Transfer directory listing.
-  private synchronized Bell transferList(final Path path) {
-    Emitter<String> emitter = source.select(path).list();
-    final Bell bell = new Bell();
-    listingStarted(path);
-    emitter.new ForEach() {
-      public void each(String name) {
-        enqueueTransfer(path.appendLiteral(name), true);
-      } public void always() {
-        listingEnded(path);
+      // Record a range in the checkpoint once the sink has taken it.
+      private Bell written(Bell bell, final long off, final long len) {
+        if (cp != null && bell != null) bell.new Promise() {
+          public void done() { cp.written(path, off, len); }
+        };
+        return bell;
+      }
+
+      // A tap cut short by stopping the transfer may still say it finished,
+      // so nothing is taken to have succeeded once the transfer has stopped.
+      private void ended(Throwable t) {
+        synchronized (this) {
+          if (ended) return;
+          ended = true;
+        } pipeEnded(this);
+        if (t != null && failed.compareAndSet(false, true))
+          fail(path, t);
+        if (left.decrementAndGet() != 0)
+          return;
+        if (!failed.get() && !isDone())
+          transferSucceeded(path);
+        transferEnded(path);
       }
     };
-    return Bell.rungBell();
+    synchronized (this) {
+      if (isDone())
+        return Bell.rungBell();
+      pipes.add(pipe);
+    }
+    tap.attach(pipe).attach(sink).tap().start().new Promise() {
+      public void always() { bell.ring(); }
+    };
+    return bell;
+  }
+
+  /**
+   * Record that {@code bytes} bytes of data have been moved from the source
+   * to the destination.
+   *
+   * @param bytes the number of bytes moved.
+   */
+  protected void transferred(long bytes) {
+    progress.add(bytes);
+    throughput.update(bytes);
+    Listener l = listener();
+    if (l != null)
+      l.transferred(bytes);
+  }
+
+  /**
+   * Record that {@code bytes} bytes of data were moved by an earlier transfer
+   * and will not be moved again.
+   *
+   * @param bytes the number of bytes skipped.
+   */
+  protected void resumed(long bytes) {
+    Listener l = listener();
+    if (l != null)
+      l.resumed(bytes);
+  }
+
+  /**
+   * Check if the destination's {@code Sink}s write {@code Slice}s wherever
+   * their offsets say, in which case several {@code Sink}s may write parts of
+   * the same resource at once.
+   */
+  public synchronized boolean random() {
+    if (random == null) try {
+      random = destination.sink().acceptsUnordered();
+    } catch (Exception e) {
+      random = false;
+    } return random;
+  }
+
+  // Called when a pipe between a tap and a sink is done with.
+  private synchronized void pipeEnded(Pipe pipe) {
+    pipes.remove(pipe);
   }
 
   // Called whenever a data transfer starts or completes.
   private synchronized void transferStarted(Path path) {
     System.out.println("Starting transfer: "+path);
     transfers.add(path);
-  } private synchronized void transferEnded(Path path) {
-    transfers.remove(path);
-    popTransfers();
-    checkIfComplete();
   }
 
-  // Called whenever a listing starts or completes.
-  private synchronized void listingStarted(Path path) {
-    System.out.println("Starting listing: "+path);
-    listings.add(path);
-  } private synchronized void listingEnded(Path path) {
-    listings.remove(path);
+  /**
+   * Called when all of the data of the resource at {@code path} has been
+   * moved, before {@link #transferEnded(Path)}. This records the resource as
+   * done in the {@code Checkpoint}, if there is one.
+   *
+   * @param path the path of the resource relative to the transfer root.
+   */
+  protected void transferSucceeded(Path path) {
+    Checkpoint cp = checkpoint();
+    if (cp != null)
+      cp.done(path);
+  }
+
+  /**
+   * Called when the data transfer of the resource at {@code path} has
+   * completed, successfully or not.
+   *
+   * @param path the path of the resource relative to the transfer root.
+   */
+  protected synchronized void transferEnded(Path path) {
+    Listener l = listener();
+    if (transfers.remove(path) && l != null)
+      l.fileDone();
+    Bell bell = ending.remove(path);
+    if (bell != null)
+      bell.ring();
     popTransfers();
     checkIfComplete();
   }
+
 /*
   { printDebug(); }
 
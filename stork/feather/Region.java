@@ -0,0 +1,98 @@
+package stork.feather;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+import io.netty.buffer.*;
+
+/**
+ * A {@code Region} is a segment of a file which a {@link Tap} can emit in
+ * place of a {@link Slice} when the pipeline is able to move the data without
+ * copying it into user space, for instance by having the kernel send it
+ * directly to a socket or another file. A {@code Region} does not own its
+ * {@code FileChannel}; the {@code Tap} which emitted it keeps the channel open
+ * until the {@code Bell} returned from draining it rings.
+ * <p/>
+ * A {@code Pipe} which does not handle {@code Region}s receives them as
+ * {@code Slice}s read from the file, so emitting a {@code Region} is always
+ * safe, if not always fast.
+ *
+ * @see Pipe#drain(Region)
+ */
+public class Region {
+  private final FileChannel channel;
+  private final long position, count;
+
+  /**
+   * Create a {@code Region} covering {@code count} bytes of {@code channel}
+   * starting at {@code position}.
+   *
+   * @param channel the {@code FileChannel} the data is in.
+   * @param position the position of the data in the file.
+   * @param count the number of bytes in the {@code Region}.
+   */
+  public Region(FileChannel channel, long position, long count) {
+    this.channel = channel;
+    this.position = position;
+    this.count = count;
+  }
+
+  /** Get the {@code FileChannel} this {@code Region} is in. */
+  public FileChannel channel() { return channel; }
+
+  /** Get the position of this {@code Region} in its file. */
+  public long position() { return position; }
+
+  /** Get the length of this {@code Region} in bytes. */
+  public long count() { return count; }
+
+  /**
+   * Transfer the whole {@code Region} to {@code target} using {@link
+   * FileChannel#transferTo(long, long, WritableByteChannel)}. This blocks
+   * until every byte has been accepted by {@code target}, and so should only
+   * be called with blocking channels.
+   *
+   * @param target the channel to write the data to.
+   * @return The number of bytes transferred.
+   * @throws IOException if an I/O error occurs or the file is shorter than
+   * the {@code Region}.
+   */
+  public long transferTo(WritableByteChannel target) throws IOException {
+    long done = 0;
+    while (done < count) {
+      long n = channel.transferTo(position+done, count-done, target);
+      if (n <= 0 && position+done >= channel.size())
+        throw new EOFException("File ended before end of region.");
+      done += n;
+    } return done;
+  }
+
+  /**
+   * Read this {@code Region} into a pooled {@code Slice}. The caller owns the
+   * returned {@code Slice}, as with any other drained {@code Slice}.
+   *
+   * @return A {@code Slice} containing the data in this {@code Region}.
+   * @throws IOException if an I/O error occurs or the file is shorter than
+   * the {@code Region}.
+   */
+  public Slice read() throws IOException {
+    int len = (int) count;
+    ByteBuf buf = Slice.allocator().ioBuffer(len);
+    try {
+      ByteBuffer nio = buf.nioBuffer(0, len);
+      while (nio.hasRemaining()) {
+        if (channel.read(nio, position+nio.position()) < 0)
+          throw new EOFException("File ended before end of region.");
+      } buf.writerIndex(len);
+      return new Slice(buf, position);
+    } catch (IOException e) {
+      buf.release();
+      throw e;
+    }
+  }
+
+  public String toString() {
+    return "Region("+position+"+"+count+")";
+  }
+}
@@ -190,6 +190,31 @@ public class Resource<S extends Session<S,R>, R extends Resource<S,R>> {
     throw new UnsupportedOperationException();
   }
 
+  /**
+   * Get metadata for each sub-{@code Resource} under this {@code Resource},
+   * emitted as it becomes available. Implementations which can read a
+   * listing incrementally should override this, so that very large
+   * collections can be listed without holding the whole listing in memory.
+   * By default, this emits the files from {@link #stat()} once it rings.
+   *
+   * @return An {@code Emitter} that emits a {@code Stat} for each
+   * sub-{@code Resource}.
+   * @throws UnsupportedOperationException if listing is not supported.
+   */
+  public Emitter<Stat> listStats() {
+    final Emitter<Stat> emitter = new Emitter<Stat>();
+    stat().new Promise() {
+      public void done(Stat s) {
+        if (s.files != null)
+          emitter.emitAll(s.files);
+        emitter.ring();
+      } public void fail(Throwable t) {
+        emitter.ring(t);
+      }
+    };
+    return emitter;
+  }
+
   /**
    * Create this resource as a directory on the storage system. If the resource
    * cannot be created, or already exists and is not a directory, the returned
@@ -248,6 +273,60 @@ public class Resource<S extends Session<S,R>, R extends Resource<S,R>> {
     throw new UnsupportedOperationException();
   }
 
+  /**
+   * Return a {@code Sink} that will drain data for this {@code Resource},
+   * keeping the first {@code offset} bytes already there and writing from
+   * that point on. This is used to resume an interrupted transfer. By
+   * default, this returns {@link #sink()} if {@code offset} is zero.
+   *
+   * @param offset the number of bytes to keep.
+   * @return A {@code Sink} which drains {@code Slice}s to this {@code
+   * Resource} from {@code offset}.
+   * @throws UnsupportedOperationException if this {@code Resource} does not
+   * support writing from an offset.
+   */
+  public Sink<R> sink(long offset) {
+    if (offset != 0)
+      throw new UnsupportedOperationException();
+    return sink();
+  }
+
+  /**
+   * Return a {@code Tap} that will emit data from this {@code Resource},
+   * starting {@code offset} bytes in. The {@code Slice}s it emits carry their
+   * offsets. By default, this returns {@link #tap()} if {@code offset} is
+   * zero.
+   *
+   * @param offset the number of bytes to skip.
+   * @return A {@code Tap} which emits {@code Slice}s from this {@code
+   * Resource} from {@code offset}.
+   * @throws UnsupportedOperationException if this {@code Resource} does not
+   * support reading from an offset.
+   */
+  public Tap<R> tap(long offset) {
+    if (offset != 0)
+      throw new UnsupportedOperationException();
+    return tap();
+  }
+
+  /**
+   * Return {@code Tap}s which together emit the data of this {@code
+   * Resource}, each covering a separate range of it, so that a large {@code
+   * Resource} can be read over several connections at once. The {@code
+   * Slice}s they emit carry their offsets, and so should only be drained to
+   * {@code Sink}s which accept data in any order. By default, this returns
+   * just {@link #tap()}.
+   *
+   * @param size the size of this {@code Resource} in bytes.
+   * @return A {@code List} of {@code Tap}s which together emit this {@code
+   * Resource}.
+   * @throws UnsupportedOperationException if this {@code Resource} does not
+   * support reading.
+   */
+  public List<Tap<R>> taps(long size) {
+    return Collections.singletonList(tap());
+  }
+
   /**
    * Initiate a transfer from this {@code Resource} to {@code resource} using
    * whatever method is deemed most appropriate by the implementation.  The
@@ -41,9 +41,30 @@ public abstract class Session<S extends Session<S,R>, R extends Resource<S,R>> {
   /** The authentication factor used for this endpoint. */
   public final Credential credential;
 
+  /**
+   * The most listings a {@link Crawler} keeps in flight at once when
+   * crawling through this {@code Session}.
+   */
+  public int max_listings = 4;
+
+  /**
+   * Copy the settings of {@code session} onto this {@code Session}. This is
+   * done when this {@code Session} is handed out by a {@link
+   * stork.feather.util.SessionPool} in place of {@code session}. Subclasses
+   * with settings of their own should override this to copy them as well.
+   *
+   * @param session the {@code Session} to copy settings from.
+   */
+  public void copySettings(Session session) {
+    max_listings = session.max_listings;
+  }
+
   // If we've already started initializing, this will be non-null.
   private volatile Bell initializeBell;
 
+  // The pool this session was opened in, if any.
+  private volatile SessionPool pool;
+
   // Rung on close. Avoid letting this leak out.
   private final Bell<S> onClose = new Bell<S>() {
     public void always() { Session.this.cleanup(); }
@@ -105,7 +126,11 @@ public abstract class Session<S extends Session<S,R>, R extends Resource<S,R>> {
    * will always be returned. It will also return a failed {@code Bell} if the
    * {@code Session} is closed.
    */
-  final synchronized Bell<S> mediatedInitialize() {
+  final Bell<S> mediatedInitialize() {
+    // Most calls find the session already initializing, so avoid the monitor.
+    Bell ib = initializeBell;
+    return (ib != null) ? ib : mediatedInitialize0();
+  } private synchronized Bell<S> mediatedInitialize0() {
     if (initializeBell != null) {
       return initializeBell;
     } try {
@@ -147,6 +172,21 @@ public abstract class Session<S extends Session<S,R>, R extends Resource<S,R>> {
    */
   protected void cleanup() { }
 
+  /**
+   * Check that this {@code Session} is still usable, for instance after it
+   * has sat idle in a pool for a while. Implementations which hold a
+   * connection should override this to exercise it in some cheap way. By
+   * default, this only checks that the {@code Session} has not been closed.
+   *
+   * @return A {@code Bell} which rings with this {@code Session} if it is
+   * still usable, or fails if it is not.
+   */
+  public Bell<S> check() {
+    if (isClosed())
+      return new Bell<S>(new IllegalStateException("Session is closed."));
+    return new Bell<S>((S) this);
+  }
+
   protected void finalize() { close(); }
 
   /**
@@ -180,7 +220,7 @@ public abstract class Session<S extends Session<S,R>, R extends Resource<S,R>> {
    *
    * @param bell the {@code Bell} to promise the closing of this channel to.
    */
-  public final synchronized void closeWhen(Bell bell) {
+  public final void closeWhen(Bell bell) {
     bell.new Promise() {
       public void done()            { close(); }
       public void fail(Throwable t) { close(t); }
@@ -192,7 +232,7 @@ public abstract class Session<S extends Session<S,R>, R extends Resource<S,R>> {
    *
    * @return {@code true} if closing has begun; {@code false} otherwise.
    */
-  public final synchronized boolean isClosed() {
+  public final boolean isClosed() {
     return onClose.isDone();
   }
 
@@ -221,6 +261,28 @@ public abstract class Session<S extends Session<S,R>, R extends Resource<S,R>> {
     return onClose.promise(bell);
   }
 
+  /**
+   * Get the {@code SessionPool} this {@code Session} was opened in, so that
+   * whoever holds it can lease more {@code Session}s to the same host from
+   * the same pool.
+   *
+   * @return The {@code SessionPool}, or {@code null} if this {@code Session}
+   * is not pooled.
+   */
+  public final SessionPool pool() {
+    return pool;
+  }
+
+  /**
+   * Record the {@code SessionPool} this {@code Session} was opened in. This
+   * is called by the {@code SessionPool}.
+   *
+   * @param pool the {@code SessionPool} this {@code Session} is in.
+   */
+  public final void pool(SessionPool pool) {
+    this.pool = pool;
+  }
+
   public String toString() {
     return uri.toString();
   }
@@ -6,7 +6,9 @@ import stork.feather.util.*;
  * A {@code Sink} is a destination for {@link Slice}s emitted by {@link Tap}s.
  * It is the {@code Sink}'s responsibility to "drain" {@code Slice}s to the
  * associated physical resource (or other data consumer). {@code Slice}s should
- * be drained as soon as possible to, and be retained only if necessary.
+ * be drained as soon as possible to, and be retained only if necessary. A
+ * {@code Sink} owns every {@code Slice} drained to it, and must release it
+ * once the data has been written or discarded.
  *
  * @see Tap
  * @see Slice
@@ -50,7 +52,8 @@ public abstract class Sink<D extends Resource> extends Pipe {
    * {@code pause()} should be called, and {@code resume()} should be called
    * when the channel is free to transmit data again.
    *
-   * @param slice a {@code Slice} being drained through the pipeline.
+   * @param slice a {@code Slice} being drained through the pipeline, which
+   * the {@code Sink} must {@linkplain Slice#release() release} when done.
    * @throws IllegalStateException if this method is called when the pipeline
    * has not been initialized.
    */
@@ -10,11 +10,26 @@ import io.netty.util.*;
  * by a {@link Tap}, and is the fundamental unit of data transfer in a proxy
  * pipeline. Slices encapsulate a byte buffer and optionally an offset
  * indicating the location of the data within the originating resource.
+ * <p/>
+ * The buffer of a {@code Slice} is reference counted, and a {@code Slice}
+ * holds one reference to it. Draining a {@code Slice} into a {@link Pipe}
+ * hands that reference downstream along with the {@code Slice}, and the
+ * {@code Pipe} which consumes the {@code Slice}, usually the {@link Sink}, is
+ * responsible for calling {@link #release()} once it no longer needs the
+ * data, even if the data could not be written. A {@code Pipe} which wishes to
+ * keep a {@code Slice} after passing it on must {@link #retain()} it first.
+ * <p/>
+ * {@code Tap}s should fill buffers obtained from {@link #allocator()}, which
+ * recycles released buffers rather than leaving them to the garbage
+ * collector.
  */
 public class Slice {
   private final long offset;
   private final ByteBuf buffer;
 
+  private static final ByteBufAllocator allocator =
+    PooledByteBufAllocator.DEFAULT;
+
   /**
    * An empty slice with no specified offset.
    */
@@ -139,7 +154,10 @@ public class Slice {
    * @return The data as a byte array.
    */
   public final byte[] asBytes() {
-    return buffer.hasArray() ? buffer.array() : asBytes(new byte[length()]);
+    if (buffer.hasArray() && buffer.arrayOffset() == 0 &&
+        buffer.readerIndex() == 0 && buffer.array().length == length())
+      return buffer.array();
+    return asBytes(new byte[length()]);
   }
 
   /**
@@ -151,10 +169,55 @@ public class Slice {
    * @return The {@code byte[]} passed in as {@code array}.
    */
   public final byte[] asBytes(byte[] array) {
-    buffer.getBytes(0, array);
+    int len = Math.min(array.length, length());
+    buffer.getBytes(buffer.readerIndex(), array, 0, len);
     return array;
   }
 
+  /**
+   * Get the allocator {@code Tap}s should use to obtain buffers for {@code
+   * Slice}s. Buffers from this allocator are pooled, and are returned to the
+   * pool when the last {@code Slice} referring to them is released.
+   *
+   * @return The pooled {@code ByteBufAllocator} used for {@code Slice}s.
+   */
+  public static ByteBufAllocator allocator() {
+    return allocator;
+  }
+
+  /**
+   * Add a reference to the buffer of this {@code Slice}. This must be
+   * balanced by a call to {@link #release()}.
+   *
+   * @return This {@code Slice}.
+   */
+  public Slice retain() {
+    buffer.retain();
+    return this;
+  }
+
+  /**
+   * Drop a reference to the buffer of this {@code Slice}. The buffer is
+   * returned to its pool once every reference has been released, after which
+   * the {@code Slice} must not be used.
+   *
+   * @return {@code true} if the buffer was deallocated as a result of this
+   * call; {@code false} otherwise.
+   */
+  public boolean release() {
+    return buffer.release();
+  }
+
+  /**
+   * Get the number of outstanding references to the buffer of this {@code
+   * Slice}.
+   *
+   * @return The reference count of the buffer.
+   */
+  public int refCnt() {
+    return buffer.refCnt();
+  }
+
   /**
    * Check if a {@code Slice} is empty.
    *
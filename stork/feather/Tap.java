@@ -62,6 +62,39 @@ public abstract class Tap<S extends Resource> extends Pipe {
     }
   }
 
+  /**
+   * Drain a {@code Region} to the attached pipeline. This should only be
+   * done if {@link #regionsAccepted()} returns {@code true}, though it will
+   * still work otherwise.
+   */
+  protected Bell drain(Region region) {
+    return forward(region);
+  }
+
+  /**
+   * Check if the pipeline attached to this {@code Tap} can drain {@code
+   * Region}s without reading them into memory.
+   *
+   * @return {@code true} if {@code Region}s should be emitted; {@code false}
+   * otherwise.
+   */
+  protected final boolean regionsAccepted() {
+    Pipe pipe = downstream();
+    return pipe != null && pipe.acceptsRegions();
+  }
+
+  /**
+   * Check if the pipeline attached to this {@code Tap} can drain {@code
+   * Slice}s out of order.
+   *
+   * @return {@code true} if {@code Slice}s may be emitted in the order they
+   * arrive; {@code false} if they must be emitted in order of offset.
+   */
+  protected final boolean unorderedAccepted() {
+    Pipe pipe = downstream();
+    return pipe != null && pipe.acceptsUnordered();
+  }
+
   public final Bell start() {
     return start0().new Promise() {
       public void fail(Throwable t) { finish(t); }
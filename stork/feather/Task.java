@@ -0,0 +1,17 @@
+package stork.feather;
+
+/**
+ * A task for the dispatch loop, run in a particular lane. Tasks dispatched
+ * from that lane's own thread may take the inline fast path.
+ */
+abstract class Task implements Runnable {
+  private final int lane;
+  Task(int lane) {
+    this.lane = lane;
+  } final void dispatch() {
+    Dispatcher.dispatch(this, lane);
+  } final void enqueue() {
+    Dispatcher.enqueue(this, lane);
+  }
+  public abstract void run();
+}
@@ -0,0 +1,163 @@
+package stork.feather;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * A hashed timing wheel used to time out {@code Bell}s. Timeouts are hashed by
+ * their deadline tick into a fixed ring of buckets, so scheduling and
+ * cancelling a timeout take constant time regardless of how many are pending.
+ * A single timer thread advances the wheel once per tick and hands expired
+ * tasks off to their dispatch lane.
+ * <p/>
+ * Cancelling a timeout drops its reference to its task immediately, so a
+ * {@code Bell} which rings before its deadline can be collected right away.
+ * The empty timeout is unlinked from the wheel on the next tick.
+ * <p/>
+ * The timer thread parks indefinitely when there are no pending timeouts.
+ */
+final class TimerWheel {
+  private static final long TICK = TimeUnit.MILLISECONDS.toNanos(10);
+  private static final int  SIZE = 512;  // Must be a power of two.
+  private static final int  MASK = SIZE-1;
+  private static final long START = System.nanoTime();
+
+  // Timeouts waiting to be put on the wheel or taken off of it. These are the
+  // only structures touched by threads other than the timer thread.
+  private static final Queue<Timeout> added =
+    new ConcurrentLinkedQueue<Timeout>();
+  private static final Queue<Timeout> removed =
+    new ConcurrentLinkedQueue<Timeout>();
+
+  // The wheel itself, owned by the timer thread.
+  private static final Timeout[] buckets = new Timeout[SIZE];
+  private static long tick = 0;  // The next tick to be processed.
+  private static int count = 0;  // Timeouts on the wheel.
+
+  private static volatile boolean idle = false;
+  private static final Thread thread = new Thread("feather timer") {
+    { setDaemon(true); start(); }
+    public void run() {
+      while (true) try {
+        advance();
+      } catch (Exception e) {
+        System.out.print("Exception in timer loop:");
+        e.printStackTrace();
+      }
+    }
+  };
+
+  private TimerWheel() { }
+
+  /**
+   * A task scheduled to run after a delay. A {@code Timeout} is created
+   * unscheduled so that its deadline can be inspected before it is started.
+   */
+  static final class Timeout {
+    final long deadline;  // In ticks since START.
+    private volatile Task task;
+    private long rounds;
+    private int bucket = -1;  // -1 if not on the wheel.
+    private Timeout prev, next;
+
+    /** Create a timeout which will run {@code task} after {@code delay}. */
+    Timeout(Task task, double delay) {
+      long d = System.nanoTime() - START + (long) (delay*1E9);
+      this.deadline = (d + TICK - 1) / TICK;
+      this.task = task;
+    }
+
+    /** Put the timeout on the wheel. */
+    Timeout start() {
+      added.add(this);
+      if (idle) LockSupport.unpark(thread);
+      return this;
+    }
+
+    /** Cancel the timeout, releasing its task. */
+    void cancel() {
+      if (task == null)
+        return;
+      task = null;
+      removed.add(this);
+    }
+
+    /** Check if the timeout has been cancelled or has fired. */
+    boolean isCancelled() {
+      return task == null;
+    }
+  }
+
+  // Run one iteration of the timer loop.
+  private static void advance() {
+    long now = (System.nanoTime() - START) / TICK;
+
+    transfer();
+    if (count == 0) {
+      tick = now+1;
+    } else while (tick <= now) {
+      expire(tick++);
+    }
+
+    if (count == 0) {
+      idle = true;
+      if (added.isEmpty())
+        LockSupport.park();
+      idle = false;
+    } else {
+      LockSupport.parkNanos(START + tick*TICK - System.nanoTime());
+    }
+  }
+
+  // Move newly added timeouts onto the wheel and unlink cancelled ones.
+  private static void transfer() {
+    Timeout t;
+    while ((t = added.poll()) != null) {
+      if (t.isCancelled() || t.bucket >= 0)
+        continue;
+      long when = Math.max(t.deadline, tick);
+      t.rounds = (when - tick) / SIZE;
+      t.bucket = (int) (when & MASK);
+      t.next = buckets[t.bucket];
+      if (t.next != null)
+        t.next.prev = t;
+      buckets[t.bucket] = t;
+      count++;
+    } while ((t = removed.poll()) != null) {
+      unlink(t);
+    }
+  }
+
+  // Fire the timeouts in the bucket for tick which are due this round.
+  private static void expire(long tick) {
+    Timeout t = buckets[(int) (tick & MASK)];
+    while (t != null) {
+      Timeout next = t.next;
+      if (t.rounds > 0) {
+        t.rounds--;
+      } else {
+        Task task = t.task;
+        t.task = null;
+        unlink(t);
+        if (task != null)
+          task.enqueue();
+      } t = next;
+    }
+  }
+
+  // Remove a timeout from its bucket, if it is on the wheel.
+  private static void unlink(Timeout t) {
+    if (t.bucket < 0)
+      return;
+    if (t.prev != null)
+      t.prev.next = t.next;
+    else
+      buckets[t.bucket] = t.next;
+    if (t.next != null)
+      t.next.prev = t.prev;
+    t.prev = t.next = null;
+    t.bucket = -1;
+    count--;
+  }
+}
@@ -40,20 +40,104 @@ public abstract class Transfer<S extends Resource, D extends Resource> {
     }
   };
 
+  // Rings once the transfer has stopped and quiesced.
+  private final Bell quiesced = new Bell();
+
   /** Ring this {@code Bell} to stop the transfer. */
   public final Bell stopper = new Bell() {
-    public void always() { stop(); }
+    public void always() {
+      Bell bell;
+      try {
+        bell = stop();
+      } catch (Throwable t) {
+        bell = null;
+      } if (bell == null)
+        bell = Bell.rungBell();
+      bell.new Promise() {
+        public void always() { quiesced.ring(); }
+      };
+    }
   };
 
   // If we get paused, a bell will be placed here to resume the transfer.
   private Bell<Transfer<S,D>> pauseBell;
 
+  private volatile Listener listener;
+  private volatile Checkpoint checkpoint;
+
+  /**
+   * Something which wants to be told as a {@code Transfer} moves data, for
+   * instance to keep track of its progress.
+   */
+  public interface Listener {
+    /**
+     * Called when {@code bytes} bytes of data have been moved.
+     *
+     * @param bytes the number of bytes moved.
+     */
+    void transferred(long bytes);
+
+    /**
+     * Called when {@code bytes} bytes of data are found to have been moved by
+     * an earlier {@code Transfer}, and so will not be moved again.
+     *
+     * @param bytes the number of bytes skipped.
+     */
+    void resumed(long bytes);
+
+    /** Called when the data of a file has finished transferring. */
+    void fileDone();
+  }
+
   /** Get the source {@code Resource}. */
   public final S source() { return source; }
 
   /** Get the destination {@code Resource}. */
   public final D destination() { return destination; }
 
+  /**
+   * Set the {@code Listener} to be told as this {@code Transfer} moves data.
+   * This should be done before the {@code Transfer} is started.
+   *
+   * @param listener the {@code Listener} to tell, or {@code null}.
+   * @return This {@code Transfer}.
+   */
+  public final Transfer<S,D> listen(Listener listener) {
+    this.listener = listener;
+    return this;
+  }
+
+  /**
+   * Get the {@code Listener} set with {@link #listen(Listener)}.
+   *
+   * @return The {@code Listener}, or {@code null} if none was set.
+   */
+  protected final Listener listener() {
+    return listener;
+  }
+
+  /**
+   * Set the {@code Checkpoint} this {@code Transfer} should resume from and
+   * record its progress in. This should be done before the {@code Transfer}
+   * is started. Implementations which can't resume may ignore it.
+   *
+   * @param checkpoint the {@code Checkpoint} to use, or {@code null}.
+   * @return This {@code Transfer}.
+   */
+  public final Transfer<S,D> checkpoint(Checkpoint checkpoint) {
+    this.checkpoint = checkpoint;
+    return this;
+  }
+
+  /**
+   * Get the {@code Checkpoint} set with {@link #checkpoint(Checkpoint)}.
+   *
+   * @return The {@code Checkpoint}, or {@code null} if none was set.
+   */
+  protected final Checkpoint checkpoint() {
+    return checkpoint;
+  }
+
   /**
    * Called when this {@code Transfer} is started. This method may return a
    * {@code Bell} which will ring when the {@code Transfer} is ready, or {@code
@@ -76,8 +160,16 @@ public abstract class Transfer<S extends Resource, D extends Resource> {
    * This is called when the {@code Transfer} has been terminated. Once
    * stopped, the transfer cannot be started again. This may be called before
    * {@link #start()} if the transfer is canceled before it starts.
+   * <p/>
+   * Anything the transfer still has going should be cut short here. This
+   * method may return a {@code Bell} which will ring once nothing the
+   * transfer started is still running, or {@code null} to indicate that
+   * nothing is.
+   *
+   * @return A {@code Bell} which rings when the {@code Transfer} has
+   * quiesced, or {@code null} if it has already.
    */
-  protected void stop() { }
+  protected Bell stop() { return null; }
 
   /**
    * Pause the transfer temporarily. {@code resume()} should be called to
@@ -159,4 +251,15 @@ public abstract class Transfer<S extends Resource, D extends Resource> {
   public final Bell<Transfer<S,D>> onStop() {
     return stopper.as(this);
   }
+
+  /**
+   * Return a {@code Bell} which rings once the {@code Transfer} has stopped
+   * and nothing it started is still running. Only then may the sessions it
+   * used be used for something else.
+   *
+   * @return A {@code Bell} which rings when the {@code Transfer} quiesces.
+   */
+  public final Bell<Transfer<S,D>> onQuiesce() {
+    return quiesced.as(this);
+  }
 }
@@ -0,0 +1,83 @@
+package stork.feather.util;
+
+/**
+ * Chooses how much data a {@code Tap} should read into each {@code Slice}
+ * based on how long the pipeline takes to drain it. Small chunks keep the
+ * pipeline responsive but spend most of their time on per-{@code Slice}
+ * overhead, while large chunks amortize that overhead but tie up memory and
+ * delay pausing. The chunk size starts small and doubles while chunks drain
+ * quickly and throughput keeps up, and halves when chunks start taking too
+ * long to drain.
+ * <p/>
+ * A {@code ChunkSizer} is meant to be used by a single {@code Tap} and is not
+ * thread-safe.
+ */
+public class ChunkSizer {
+  // Chunks which drain faster than this are too small to be efficient.
+  private static final long FAST = 20000000L;  // 20ms
+  // Chunks which drain slower than this are making the pipeline sluggish.
+  private static final long SLOW = 250000000L;  // 250ms
+
+  private final int min, max;
+  private int size;
+  private long start = -1;
+  private double lastRate = 0;  // Bytes per ns at the previous size.
+
+  /**
+   * Create a {@code ChunkSizer} which starts at {@code initial} bytes and
+   * stays between {@code min} and {@code max} bytes.
+   *
+   * @param initial the initial chunk size.
+   * @param min the smallest chunk size to use.
+   * @param max the largest chunk size to use.
+   */
+  public ChunkSizer(int initial, int min, int max) {
+    this.min = Math.max(1, min);
+    this.max = Math.max(this.min, max);
+    this.size = clamp(initial);
+  }
+
+  /**
+   * Get the size the next chunk should be.
+   *
+   * @return The chunk size in bytes.
+   */
+  public int size() {
+    return size;
+  }
+
+  /** Record that a chunk has just been drained into the pipeline. */
+  public void started() {
+    start = System.nanoTime();
+  }
+
+  /**
+   * Record that the pipeline is ready for more data after a chunk of {@code
+   * bytes} was drained, and adjust the chunk size accordingly.
+   *
+   * @param bytes the number of bytes in the chunk.
+   */
+  public void drained(int bytes) {
+    if (start < 0)
+      return;
+    long time = Math.max(1, System.nanoTime()-start);
+    double rate = (double) bytes / time;
+    start = -1;
+
+    // Only judge full-sized chunks; the tail of a file says nothing.
+    if (bytes < size) {
+      return;
+    } if (time > SLOW) {
+      size = clamp(size/2);
+      lastRate = 0;
+    } else if (time < FAST && rate >= lastRate*3/4) {
+      lastRate = rate;
+      size = clamp(size*2);
+    }
+  }
+
+  // Keep a size within bounds.
+  private int clamp(long s) {
+    return (int) Math.max(min, Math.min(max, s));
+  }
+}
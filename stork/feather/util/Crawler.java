@@ -9,16 +9,70 @@ import stork.feather.*;
  * crawling proceeds in an order according to some traversal mechanism and
  * optionally produces a result. {@code Crawler} extends {@code Bell}, and will
  * ring with the root {@code Resource} when crawling has finished.
+ * <p/>
+ * Collections are listed with {@link Resource#listStats()}, and everything
+ * in them is operated on as its entry arrives, without being stat'd again.
+ * Only a limited number of listings are kept in flight at once, and the
+ * collections waiting to be listed are taken either breadth-first or
+ * depth-first. Whatever consumes the operations can hold the crawler back
+ * with {@link #pauseUntil(Bell)}, which also stops entries being taken from
+ * listings in flight.
  *
  * @param <R> The {@code Resource} type this {@code Crawler} operates on.
  */
 public abstract class Crawler<R extends Resource<?,R>> extends Bell<R> {
+  /**
+   * The most listings kept in flight at once. This defaults to the {@code
+   * Session}'s {@link Session#max_listings}.
+   */
+  public int concurrency;
+
+  /**
+   * Whether to list the most recently found collection next, rather than the
+   * one found earliest.
+   */
+  public boolean depth_first = false;
+
+  /**
+   * Whether to operate on a collection only once everything in it has been
+   * operated on, as when removing it, rather than before listing it.
+   */
+  public boolean bottom_up = false;
+
   private final R root;
   private final Path pattern;
   private final boolean recursive;
-  private int mode = 0;
   private boolean started = false;
-  private volatile int count = 0;
+
+  // Collections waiting to be listed, and the number being listed.
+  private final Deque<Node> unlisted = new ArrayDeque<Node>();
+  private int listings = 0;
+
+  // Crawling waits for this to ring.
+  private Bell resumed = Bell.rungBell();
+
+  // A resource found while crawling. A node has finished once it has been
+  // operated on and, if it is being listed, its listing and every node found
+  // in it have finished.
+  private class Node {
+    final Node parent;
+    final Path path;
+    final R resource;
+    final Stat stat;
+    int pending = 1;  // The listing, and unfinished nodes found in it.
+
+    Node(Node parent, Path path, Stat stat) {
+      this.parent = parent;
+      this.path = path;
+      this.resource = root.select(path);
+      this.stat = stat;
+    }
+
+    // Check if the node should be listed.
+    boolean isCollection() {
+      return stat.dir && stat.link == null && (recursive || parent == null);
+    }
+  }
 
   /**
    * Create a {@code Crawler} which will perform operations on the physical
@@ -44,63 +98,227 @@ public abstract class Crawler<R extends Resource<?,R>> extends Bell<R> {
     root = resource.trunk();
     pattern = resource.path;
     this.recursive = recursive;
+    concurrency = root.session.max_listings;
   }
 
   /** Start the crawling process. */
-  public synchronized void start() {
-    if (!started)
-      crawl(Path.ROOT);
-    started = true;
+  public void start() {
+    synchronized (this) {
+      if (started)
+        return;
+      started = true;
+    } Bell<Stat> stat;
+    try {
+      stat = root.stat();
+    } catch (Throwable t) {
+      stat = new Bell<Stat>(t);
+    } stat.new Promise() {
+      public void done(Stat stat) {
+        visit(new Node(null, Path.ROOT, stat));
+      } public void fail(Throwable t) {
+        Crawler.this.ring(t);
+      }
+    };
   }
 
-  private synchronized int count(int d) {
-    count += d;
-    if (count == 0) ring(root);
-    return count;
+  /**
+   * Hold off listing collections and taking entries from listings until
+   * {@code bell} rings. This may be used to keep the crawler from getting too
+   * far ahead of whatever consumes its operations. Operations already under
+   * way are not affected.
+   *
+   * @param bell a {@code Bell} which rings when crawling may continue.
+   */
+  public synchronized void pauseUntil(Bell bell) {
+    if (bell == null || bell.isDone())
+      return;
+    resumed = Bell.all(resumed, bell);
+    resumed.new Promise() {
+      public void always() { startListings(); }
+    };
+  }
+
+  /**
+   * Called when operating on or listing the resource at {@code path} fails,
+   * other than the root. Crawling goes on without it. By default, this does
+   * nothing; subclasses may ring the crawler to stop crawling.
+   *
+   * @param path the selection {@code Path} of the resource relative to the
+   * root {@code Resource} of the {@code Crawler}.
+   * @param error the cause of the failure.
+   */
+  protected void failed(Path path, Throwable error) { }
+
+  /**
+   * Called when the resource at {@code path} has finished, which is once it
+   * has been operated on and, if it is a collection being crawled, once
+   * everything found in it has finished as well. This is called whether or
+   * not the operations succeeded. By default, this does nothing.
+   *
+   * @param path the selection {@code Path} of the resource relative to the
+   * root {@code Resource} of the {@code Crawler}.
+   * @param stat the {@code Stat} of the resource, as found by listing its
+   * parent.
+   */
+  protected void finished(Path path, Stat stat) { }
+
+  // Report a failure involving a node. Failures at the root are fatal.
+  private void failed(Node node, Throwable error) {
+    if (node.parent == null)
+      ring(error);
+    else
+      failed(node.path, error);
   }
 
-  private void crawl(final Path path) {
-    count(1);
-    final R resource = root.select(path);
-    if (!isDone()) resource.stat().new Promise() {
-      public void done(final Stat stat) {
-        if (Crawler.this.isDone())
+  // Begin operating on a node, or listing it if it is operated on last.
+  private void visit(final Node node) {
+    if (isDone()) {
+      return;
+    } if (bottom_up && node.isCollection()) {
+      enqueue(node);
+    } else doOperate(node).new Promise() {
+      public void done() {
+        if (node.isCollection())
+          enqueue(node);
+        else
+          finished(node);
+      } public void fail(Throwable t) {
+        failed(node, t);
+        finished(node);
+      }
+    };
+  }
+
+  // Called when a node's listing or a node found in it has finished. Once
+  // everything has, the node itself has finished, save for operating on it if
+  // that is done last.
+  private void childFinished(final Node node) {
+    synchronized (this) {
+      if (--node.pending > 0)
+        return;
+    } if (!bottom_up) {
+      finished(node);
+    } else doOperate(node).new Promise() {
+      public void fail(Throwable t) {
+        failed(node, t);
+      } public void always() {
+        finished(node);
+      }
+    };
+  }
+
+  // Called when a node has finished.
+  private void finished(Node node) {
+    finished(node.path, node.stat);
+    if (node.parent != null)
+      childFinished(node.parent);
+    else
+      ring(root);
+  }
+
+  // Queue a collection to be listed.
+  private void enqueue(Node node) {
+    synchronized (this) {
+      if (depth_first)
+        unlisted.addFirst(node);
+      else
+        unlisted.addLast(node);
+    } startListings();
+  }
+
+  // Start as many listings as are allowed.
+  private void startListings() {
+    while (true) {
+      Node node;
+      synchronized (this) {
+        if (isDone() || !resumed.isDone())
+          return;
+        if (listings >= Math.max(1, concurrency) || unlisted.isEmpty())
           return;
+        node = unlisted.poll();
+        listings++;
+      } list(node);
+    }
+  }
 
-        // The pattern we'll use for matching below. TODO
-        //Path tp = pattern.truncate(resource.path.length()+1);
-
-        // Perform the operation on the resource.
-        Bell op = doOperate(path, resource).new Promise() {
-          public void done() {
-            if (Crawler.this.isDone())
-              return;
-            // Crawl subresources that match the path.
-            if (stat.link == null && stat.files != null) {
-              for (Stat s : stat.files) {
-                Path sub = resource.path.appendLiteral(s.name);
-                crawl(sub);
-              }
-            }
+  // List a collection, visiting each entry as it arrives.
+  private void list(Node node) {
+    Emitter<Stat> entries;
+    try {
+      entries = node.resource.listStats();
+    } catch (Throwable t) {
+      entries = new Emitter<Stat>();
+      entries.ring(t);
+    } take(node, entries);
+  }
+
+  // Take the next entry from a listing once crawling may continue.
+  private void take(final Node node, final Emitter<Stat> entries) {
+    entries.get().new Promise() {
+      public void done(Stat stat) {
+        if (stat == null || stat.name == null)
+          return;
+        synchronized (Crawler.this) {
+          node.pending++;
+        } visit(new Node(node, node.path.appendLiteral(stat.name), stat));
+      } public void fail(Throwable t) {
+        // The entries have run out, or the listing failed.
+        entries.new Promise() {
+          public void fail(Throwable t) {
+            failed(node, t);
           } public void always() {
-            count(-1);
+            listed(node);
           }
         };
-      } public void fail(Throwable t) {
-        if (resource == root)
-          Crawler.this.ring(t);
+      } public void always() {
+        if (!isSuccessful() || Crawler.this.isDone())
+          return;
+        Bell bell;
+        synchronized (Crawler.this) {
+          bell = resumed;
+        } bell.new Promise() {
+          public void always() { take(node, entries); }
+        };
       }
     };
   }
 
-  private Bell doOperate(Path p, R r) {
-    Bell b1, b2, b3;
-    try { b1 = operate(p, r); } catch (Throwable t) { b1 = null; }
-    try { b2 = operate(p);    } catch (Throwable t) { b2 = null; }
-    try { b3 = operate(r);    } catch (Throwable t) { b3 = null; }
-    return Bell.all(b1, b2, b3);
+  // Called when a listing has finished.
+  private void listed(Node node) {
+    synchronized (this) {
+      listings--;
+    } startListings();
+    childFinished(node);
+  }
+
+  // Perform the operations on a node.
+  private Bell doOperate(Node node) {
+    Bell b0, b1, b2, b3;
+    try {
+      b0 = operate(node.path, node.resource, node.stat);
+      b1 = operate(node.path, node.resource);
+      b2 = operate(node.path);
+      b3 = operate(node.resource);
+    } catch (Throwable t) {
+      return new Bell(t);
+    } return Bell.all(b0, b1, b2, b3);
   }
 
+  /**
+   * An operation that will be performed when a {@code Resource} is found.
+   * Generally, only one {@code operate(...)} method should be overridden in a
+   * subclass.
+   *
+   * @param path the selection {@code Path} of {@code resource} relative to the
+   * root {@code Resource} of the {@code Crawler}.
+   * @param resource the {@code Resource} to operate on.
+   * @param stat the {@code Stat} of {@code resource}, as found by listing its
+   * parent.
+   * @return A {@code Bell} that will ring when the operation is complete, or
+   * {@code null} if the operation completed instantly.
+   */
+  protected Bell operate(Path path, R resource, Stat stat) { return null; }
+
   /**
    * An operation that will be performed when a {@code Resource} is found.
    * Generally, only one {@code operate(...)} method should be overridden in a
@@ -145,12 +363,9 @@ public abstract class Crawler<R extends Resource<?,R>> extends Bell<R> {
     new Crawler<LocalResource>(s.root(), true) {
       long size = 0;
 
-      public Bell operate(final Path path, final LocalResource r) {
-        return r.stat().new Promise() {
-          public void done(Stat s) { if (s.file) size += s.size; }
-          public void fail(Throwable t) { System.out.println(path+" failed..."); }
-          public void always() { System.out.println(size); }
-        };
+      public Bell operate(Path path, LocalResource r, Stat s) {
+        if (s.file) size += s.size;
+        return null;
       } public void done() {
         System.out.println("Done crawling. Total size: "+size);
       } public void fail(Throwable t) {
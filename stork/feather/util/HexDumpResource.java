@@ -53,12 +53,11 @@ class HexDumpSink extends Sink<HexDumpResource> {
   }
 
   public Bell drain(Slice slice) {
-    ByteBuf buf = slice.asByteBuf();
-    //destination().out.println(ByteBufUtil.hexDump(buf));
+    //destination().out.println(ByteBufUtil.hexDump(slice.asByteBuf()));
     //destination().out.println(slice.length());
     total += slice.length();
     HexDumpResource.throughput.update(slice.length());
-    buf.release();
+    slice.release();
     return null;
   }
 
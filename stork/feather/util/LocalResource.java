@@ -4,6 +4,9 @@ import java.io.*;
 import java.nio.*;
 import java.nio.channels.*;
 
+import io.netty.buffer.*;
+import io.netty.util.internal.*;
+
 import stork.feather.*;
 
 /** A {@code Resource} produced by a {@code LocalSession}. */
@@ -89,21 +92,46 @@ public class LocalResource extends Resource<LocalSession,LocalResource> {
 
         if (!file.exists())
           throw new RuntimeException("Resource does not exist: "+file);
-
-        Stat stat = new Stat(file.getName());
-        stat.size = file.length();
-        stat.file = file.isFile();
-        stat.dir = file.isDirectory();
-        
-        File sym = resolveLink(file);
-        if (sym != null)
-          stat.link = Path.create(file.toString());
-        stat.time = file.lastModified();
-        return stat;
+        return stat(file);
       }
     }.start().detach();
   }
 
+  // Get the metadata of a file.
+  private Stat stat(File file) {
+    Stat stat = new Stat(file.getName());
+    stat.size = file.length();
+    stat.file = file.isFile();
+    stat.dir = file.isDirectory();
+    
+    File sym = resolveLink(file);
+    if (sym != null)
+      stat.link = Path.create(file.toString());
+    stat.time = file.lastModified();
+    return stat;
+  }
+
+  // Each file is stat'd and emitted in turn as the directory is read.
+  public Emitter<Stat> listStats() {
+    final Emitter<Stat> emitter = new Emitter<Stat>();
+    new ThreadBell<Stat>(session.executor) {
+      { string = path().toString(); }
+      public Stat run() {
+        File file = file();
+
+        String[] files = file.list();
+        if (files == null)
+          throw new RuntimeException("Resource is not a directory: "+file);
+        for (String name : files) {
+          if (emitter.isDone())
+            break;
+          emitter.emit(stat(new File(file, name)));
+        } return null;
+      }
+    }.start().promise(emitter);
+    return emitter;
+  }
+
   public Emitter<String> list() {
     final Emitter<String> emitter = new Emitter<String>();
     new ThreadBell<String>(session.executor) {
@@ -137,6 +165,14 @@ public class LocalResource extends Resource<LocalSession,LocalResource> {
   public Sink<LocalResource> sink() {
     return new LocalSink(this);
   }
+
+  public Tap<LocalResource> tap(long offset) {
+    return new LocalTap(this, offset);
+  }
+
+  public Sink<LocalResource> sink(long offset) {
+    return new LocalSink(this, offset);
+  }
 }
 
 class LocalTap extends Tap<LocalResource> {
@@ -145,22 +181,22 @@ class LocalTap extends Tap<LocalResource> {
   private RandomAccessFile raf;
   private FileChannel channel;
   private long offset = 0, remaining = 0;
-  private long chunkSize = 4096;
-
-  // Small hack to take advantage of NIO features.
-  private WritableByteChannel nioToFeather = new WritableByteChannel() {
-    public int write(ByteBuffer buffer) {
-      Slice slice = new Slice(buffer);
-      pause = drain(slice);
-      return slice.length();
-    }
-
-    public void close() { }
-    public boolean isOpen() { return true; }
-  };
+  private ChunkSizer sizer;
+  private int last = 0;      // Size of the chunk being drained.
+  private int reserved = 0;  // Memory reserved for the chunk being drained.
+  private long regionSize = 16 << 20;  // When the sink can take regions.
+  private MappedWindow window;  // The mapped part of the file, if mapping.
+  private BellLoop loop;  // Sends the chunks, once started.
+  private final Bell closed = new Bell();  // Rings once the file is closed.
 
   // State of the current transfer.
-  public LocalTap(LocalResource root) { super(root); }
+  public LocalTap(LocalResource root) { this(root, 0); }
+
+  // Start reading offset bytes into the file.
+  public LocalTap(LocalResource root, long offset) {
+    super(root);
+    this.offset = offset;
+  }
 
   public Bell start(Bell bell) throws Exception {
     if (!file.exists())
@@ -173,33 +209,156 @@ class LocalTap extends Tap<LocalResource> {
     // Set up state.
     raf = new RandomAccessFile(file, "r");
     channel = raf.getChannel();
-    remaining = file.length();
-
-    // When bell rings, start a loop to send all chunks.
-    new BellLoop(this) {
+    remaining = Math.max(0, file.length()-offset);
+    channel.position(offset);
+    LocalSession s = source().session;
+    sizer = new ChunkSizer(s.chunk_size, 4096, s.max_chunk_size);
+
+    // When bell rings, start a loop to send all chunks. If the pipeline can
+    // move file regions without copying them, send those instead. Otherwise,
+    // map large files rather than reading them.
+    final boolean regions = regionsAccepted();
+    final boolean mapped = !regions &&
+      s.mmap_threshold > 0 && remaining >= s.mmap_threshold;
+    loop = new BellLoop(this) {
       public Bell lock() {
         return pause;
       } public boolean condition() {
         return remaining > 0;
       } public void body() throws Exception {
-        long len = remaining < chunkSize ? remaining : chunkSize;
-        len = channel.transferTo(offset, len, nioToFeather);
+        if (regions) {
+          long len = remaining < regionSize ? remaining : regionSize;
+          pause = drain(new Region(channel, offset, len));
+          offset += len;
+          remaining -= len;
+          return;
+        }
+
+        // The last chunk has drained, so learn from it and give back its
+        // memory before reading the next one.
+        if (last > 0)
+          sizer.drained(last);
+        unreserve();
+
+        if (mapped) {
+          if (window == null || offset >= window.end)
+            mapWindow();
+          int len = (int) Math.min(sizer.size(), window.end-offset);
+          ByteBuf buf = window.slice((int) (offset-window.start), len);
+          sizer.started();
+          pause = drain(new Slice(buf.retain(), offset));
+          last = len;
+          offset += len;
+          remaining -= len;
+          return;
+        }
+
+        int len = (int) Math.min(sizer.size(), remaining);
+        len = reserved = source().session.reserve(len, Math.min(len, 4096));
+
+        ByteBuf buf = Slice.allocator().ioBuffer(len);
+        try {
+          len = buf.writeBytes(channel, len);
+        } catch (Exception e) {
+          buf.release();
+          throw e;
+        } if (len < 0) {
+          // The file was truncated while we were reading it.
+          buf.release();
+          remaining = 0;
+          return;
+        }
+        sizer.started();
+        pause = drain(new Slice(buf, offset));
+        last = len;
         offset += len;
         remaining -= len;
-      } public void always() {
+      } public void done() {
         finish();
+      } public void fail(Throwable t) {
+        finish(t);
       }
-    }.start(bell);
+    };
+    loop.start(bell);
 
     return bell;
   }
 
+  // Map the next window of the file, letting go of the current one.
+  private void mapWindow() throws IOException {
+    unmapWindow();
+    long size = Math.min(remaining, source().session.mmap_window);
+    window = new MappedWindow(
+      channel.map(FileChannel.MapMode.READ_ONLY, offset, size), offset);
+  }
+
+  // Drop the tap's reference to the current window. It is unmapped once the
+  // slices taken from it have been released too.
+  private void unmapWindow() {
+    if (window != null)
+      window.release();
+    window = null;
+  }
+
+  // Give back the memory reserved for the last chunk.
+  private void unreserve() {
+    source().session.unreserve(reserved);
+    reserved = 0;
+  }
+
+  // Stop sending chunks. The returned bell rings once the file is closed.
+  protected synchronized Bell abort(Throwable error) {
+    super.abort(error);
+    if (loop == null)
+      return null;
+    loop.ring(error);
+    return closed;
+  }
+
   protected void finish() {
+    close();
+    super.finish();
+  }
+
+  protected void finish(Throwable t) {
+    close();
+    super.finish(t);
+  }
+
+  // Let go of the file and the memory held for the last chunk.
+  private synchronized void close() {
+    unreserve();
+    unmapWindow();
     try {
       raf.close();
       channel.close();
     } catch (Exception e) { }
-    super.finish();
+    closed.ring();
+  }
+}
+
+/**
+ * A buffer over a mapped window of a file. Slices of it share its reference
+ * count, and the window is unmapped as soon as the count drops to zero rather
+ * than whenever the garbage collector gets around to it. This is a composite
+ * of one buffer since Netty will not otherwise wrap a read-only mapping in a
+ * buffer whose deallocation can be hooked.
+ */
+class MappedWindow extends CompositeByteBuf {
+  private final MappedByteBuffer mapped;
+  final long start, end;  // The region of the file mapped.
+
+  MappedWindow(MappedByteBuffer mapped, long start) {
+    super(UnpooledByteBufAllocator.DEFAULT, true, 2,
+          Unpooled.wrappedBuffer(mapped));
+    this.mapped = mapped;
+    this.start = start;
+    this.end = start + mapped.capacity();
+  }
+
+  protected void deallocate() {
+    super.deallocate();
+    PlatformDependent.freeDirectBuffer(mapped);
   }
 }
 
@@ -208,10 +367,15 @@ class LocalSink extends Sink<LocalResource> {
   private RandomAccessFile raf;
   private FileChannel channel;
   private long offset = 0, remaining = 0;
-  private long chunkSize = 4096;
 
   // State of the current transfer.
-  public LocalSink(LocalResource root) { super(root); }
+  public LocalSink(LocalResource root) { this(root, 0); }
+
+  // Start writing offset bytes into the file, keeping what is before it.
+  public LocalSink(LocalResource root, long offset) {
+    super(root);
+    this.offset = offset;
+  }
 
   public Bell start() {
     return new ThreadBell(destination().session.executor) {
@@ -227,6 +391,7 @@ class LocalSink extends Sink<LocalResource> {
         raf = new RandomAccessFile(file, "rw");
         channel = raf.getChannel();
         remaining = file.length();
+        channel.position(offset);
 
         return null;
       }
@@ -236,17 +401,58 @@ class LocalSink extends Sink<LocalResource> {
   public Bell drain(final Slice slice) {
     return new ThreadBell(destination().session.executor) {
       public Object run() throws Exception {
-        channel.write(slice.asByteBuf().nioBuffer());
-        slice.asByteBuf().release();
+        try {
+          // Slices which know where they belong are written there, so they
+          // may arrive in any order.
+          ByteBuffer buffer = slice.asByteBuf().nioBuffer();
+          long position = slice.offset();
+          while (buffer.hasRemaining()) {
+            if (position < 0)
+              channel.write(buffer);
+            else
+              position += channel.write(buffer, position);
+          }
+        } finally {
+          slice.release();
+        }
+        return null;
+      }
+    }.start();
+  }
+
+  public Bell drain(final Region region) {
+    return new ThreadBell(destination().session.executor) {
+      public Object run() throws Exception {
+        region.transferTo(channel);
         return null;
       }
     }.start();
   }
 
+  protected boolean acceptsRegions() {
+    return true;
+  }
+
+  protected boolean acceptsUnordered() {
+    return true;
+  }
+
   protected void finish() {
     try {
       raf.close();
       channel.close();
     } catch (Exception e) { }
   }
+
+  // Close the file once the writes already under way are done. Writes are
+  // run in order, so this waits for them.
+  protected Bell abort(Throwable error) {
+    super.abort(error);
+    return new ThreadBell(destination().session.executor) {
+      public Object run() {
+        finish();
+        return null;
+      }
+    }.start();
+  }
 }
@@ -2,6 +2,7 @@ package stork.feather.util;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 import stork.feather.*;
 
@@ -22,6 +23,25 @@ public class LocalSession extends Session<LocalSession,LocalResource> {
     new ScheduledThreadPoolExecutor(1);
   final Path path;
 
+  // Transfer options. These may be set from the options of a job. Taps start
+  // reading chunk_size bytes at a time, and adapt up to max_chunk_size as the
+  // pipeline allows. The chunks being drained from all of the taps of this
+  // session at once are kept within memory_budget bytes, where possible.
+  //
+  // Local sessions aren't pooled, so each job gets a session of its own, and
+  // the budget bounds the reads of that job's transfer alone.
+  public int chunk_size = 64 << 10;
+  public int max_chunk_size = 4 << 20;
+  public long memory_budget = 64 << 20;
+
+  // Files of at least mmap_threshold bytes are read by mapping mmap_window
+  // bytes of the file at a time instead of copying them into buffers. A
+  // threshold of zero or less disables mapping.
+  public long mmap_threshold = 256 << 20;
+  public int mmap_window = 64 << 20;
+
+  private final AtomicLong buffered = new AtomicLong();
+
   /** Create a {@code LocalSession} at the system root. */
   public LocalSession() { this(Path.ROOT); }
 
@@ -31,10 +51,38 @@ public class LocalSession extends Session<LocalSession,LocalResource> {
     this.path = path;
   }
 
+  public void copySettings(Session session) {
+    super.copySettings(session);
+    if (!(session instanceof LocalSession))
+      return;
+    LocalSession s = (LocalSession) session;
+    chunk_size = s.chunk_size;
+    max_chunk_size = s.max_chunk_size;
+    memory_budget = s.memory_budget;
+    mmap_threshold = s.mmap_threshold;
+    mmap_window = s.mmap_window;
+  }
+
   public LocalResource select(Path path) {
     return new LocalResource(this, path);
   }
 
+  // Reserve memory for a chunk of up to size bytes, and return the size the
+  // chunk should be. This never returns less than min, so a tap can always
+  // make progress even when the budget is exhausted.
+  int reserve(int size, int min) {
+    if (memory_budget > 0) {
+      long free = memory_budget - buffered.get();
+      size = (int) Math.max(min, Math.min(size, free));
+    } buffered.addAndGet(size);
+    return size;
+  }
+
+  // Return memory reserved for a chunk.
+  void unreserve(int size) {
+    buffered.addAndGet(-size);
+  }
+
   protected void finalize() {
     executor.shutdown();
   }
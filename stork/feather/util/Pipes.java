@@ -40,7 +40,8 @@ public final class Pipes {
       public Bell start(Bell bell) {
         return bell.new Promise() {
           public void done() {
-            if (s != null) drain(s);
+            // The resource keeps its own reference for the next tap.
+            if (s != null) drain(s.retain());
             finish();
           }
         };
@@ -0,0 +1,422 @@
+package stork.feather.util;
+
+import java.util.*;
+
+import stork.feather.*;
+
+/**
+ * A {@code SessionPool} holds on to initialized {@code Session}s after they
+ * have been used so that later operations on the same endpoint with the same
+ * credential can reuse them instead of connecting and authenticating again.
+ * {@code Session}s are leased from the pool, and must be released back to the
+ * pool once the lease holder is finished with them.
+ * <p/>
+ * The number of {@code Session}s open to any one host, whether leased or
+ * idle, is limited. Once the limit is reached, lease requests wait their turn
+ * in the order they were made, though an idle {@code Session} goes to the
+ * earliest request it can satisfy. Idle {@code Session}s are closed after a
+ * while, and {@code Session}s which have been idle for some time are checked
+ * with {@link Session#check()} before being handed out again. A reused
+ * {@code Session} takes on the settings of the one it was leased in place of,
+ * so settings made for one lease don't carry over to the next.
+ * <p/>
+ * Someone who needs several {@code Session}s to the same host at once should
+ * lease them together with {@link #lease(Session...)}. Leasing them one at a
+ * time while holding the others can leave several lease holders each waiting
+ * on the others for the host's last {@code Session}s.
+ * <p/>
+ * {@code Session}s without a host, such as those to the local file system,
+ * are neither pooled nor limited. Leasing one just initializes it, and
+ * releasing it closes it.
+ */
+public class SessionPool {
+  /** The most {@code Session}s which may be open to one host. */
+  public int max_per_host = 4;
+
+  /** Seconds an idle {@code Session} is kept before it is closed. */
+  public double idle_timeout = 300;
+
+  /** Seconds a {@code Session} may be idle before it is checked on lease. */
+  public double check_after = 30;
+
+  private final Map<String, Host> hosts = new HashMap<String, Host>();
+
+  // Leased sessions without a host, which are closed on release.
+  private final Set<Session> unpooled =
+    Collections.newSetFromMap(new IdentityHashMap<Session, Boolean>());
+
+  // The sessions open to a host, and the leases waiting on them.
+  private class Host {
+    final String name;
+    final Set<Session> open =
+      Collections.newSetFromMap(new IdentityHashMap<Session, Boolean>());
+    final LinkedList<Idle> idle = new LinkedList<Idle>();  // Newest first.
+    final LinkedList<Lease> waiting = new LinkedList<Lease>();
+
+    Host(String name) { this.name = name; }
+
+    // Find the newest idle session equivalent to session which isn't in
+    // claimed, forgetting any that have closed but haven't been forgotten
+    // yet.
+    Idle find(Session session, Set<Idle> claimed) {
+      for (Iterator<Idle> it = idle.iterator(); it.hasNext();) {
+        Idle i = it.next();
+        if (i.session.isClosed())
+          it.remove();
+        else if (!claimed.contains(i) && i.session.equals(session))
+          return i;
+      } return null;
+    }
+  }
+
+  // A session sitting idle in the pool, and when it was put there.
+  private static class Idle {
+    final Session session;
+    final long since = System.nanoTime();
+
+    Idle(Session session) { this.session = session; }
+
+    double idleTime() { return (System.nanoTime()-since)/1E9; }
+  }
+
+  // A request for sessions equivalent to the given ones, all to one host.
+  // If the pool has to open a new session for the request, it will use the
+  // given one. The request is granted all at once or not at all.
+  private static class Lease extends Bell<List<Session>> {
+    final List<Session> sessions;
+
+    Lease(List<Session> sessions) { this.sessions = sessions; }
+  }
+
+  /**
+   * Lease a {@code Session} equivalent to {@code session} from the pool. If
+   * there is no idle {@code Session} to reuse and there is room for another
+   * {@code Session} to the host, {@code session} itself is initialized and
+   * handed out. The leased {@code Session} must be given back with {@link
+   * #release(Session)}.
+   *
+   * @param session a {@code Session} describing the endpoint and credential
+   * wanted, which will be used if a new {@code Session} has to be opened.
+   * @return A {@code Bell} which rings with an initialized {@code Session}
+   * equivalent to {@code session}.
+   */
+  public synchronized <S extends Session> Bell<S> lease(S session) {
+    return lease(new Session[] { session }).new As<S>() {
+      public S convert(List<Session> sessions) {
+        return (S) sessions.get(0);
+      }
+    };
+  }
+
+  /**
+   * Lease a {@code Session} equivalent to {@code session} if the pool can
+   * hand one out without waiting, either because one is idle or because
+   * there is room to open another to the host. This is for {@code Session}s
+   * which would be nice to have but aren't needed, which should never be
+   * waited for while holding other {@code Session}s.
+   *
+   * @param session a {@code Session} describing the endpoint and credential
+   * wanted, which will be used if a new {@code Session} has to be opened.
+   * @return A {@code Bell} which rings with an initialized {@code Session}
+   * equivalent to {@code session}, or {@code null} if none can be had right
+   * away.
+   */
+  public synchronized <S extends Session> Bell<S> tryLease(S session) {
+    if (key(session) == null)
+      return lease(session);
+    Host host = hosts.get(key(session));
+    if (host != null) {
+      Set<Idle> none = Collections.emptySet();
+      if (!host.waiting.isEmpty())
+        return null;
+      if (host.find(session, none) == null &&
+          host.open.size() >= max_per_host)
+        return null;
+    } else if (max_per_host < 1) {
+      return null;
+    } return lease(session);
+  }
+
+  /**
+   * Lease {@code Session}s equivalent to each of {@code sessions} from the
+   * pool at once. They must all be to the same host. The lease is only
+   * granted once the host can supply all of them, so holders of these
+   * {@code Session}s never sit on some of them waiting for the rest. Each
+   * {@code Session} must be given back with {@link #release(Session)}.
+   *
+   * @param sessions {@code Session}s describing the endpoints and
+   * credentials wanted, which will be used if new {@code Session}s have to
+   * be opened.
+   * @return A {@code Bell} which rings with initialized {@code Session}s
+   * equivalent to {@code sessions}, in the same order.
+   * @throws IllegalArgumentException if the {@code Session}s are not all to
+   * the same host, or there are more than the pool allows to one host.
+   */
+  public synchronized Bell<List<Session>> lease(Session... sessions) {
+    if (sessions.length == 0)
+      throw new IllegalArgumentException("No sessions to lease.");
+    String key = key(sessions[0]);
+    for (Session s : sessions) {
+      String k = key(s);
+      if (key == null ? k != null : !key.equals(k))
+        throw new IllegalArgumentException("Sessions are to different hosts.");
+    } if (key == null)
+      return initialize(sessions);
+    if (sessions.length > max_per_host) throw new IllegalArgumentException(
+      sessions.length+" sessions are needed to "+sessions[0].uri+
+      ", but only "+max_per_host+" may be open to a host.");
+    Lease lease = new Lease(Arrays.asList(sessions));
+    Host host = host(sessions[0]);
+    host.waiting.add(lease);
+    serve(host);
+    return lease;
+  }
+
+  /**
+   * Give a leased {@code Session} back to the pool. It will be handed to the
+   * next lease request it can satisfy, or kept idle until it is needed or
+   * times out. A {@code Session} without a host is closed instead. Releasing a
+   * {@code Session} which was not leased from this pool has no effect.
+   *
+   * @param session a {@code Session} leased from this pool.
+   */
+  public synchronized void release(Session session) {
+    if (unpooled.remove(session)) {
+      session.close();
+      return;
+    }
+    final Host host = hosts.get(key(session));
+    if (host == null || !host.open.contains(session) || session.isClosed())
+      return;
+    if (idle_timeout <= 0 && host.waiting.isEmpty()) {
+      session.close();
+      return;
+    }
+
+    final Idle idle = new Idle(session);
+    host.idle.addFirst(idle);
+    serve(host);
+
+    if (!host.idle.contains(idle))
+      return;
+    Bell timer = Bell.timerBell(idle_timeout);
+    timer.new Promise() {
+      public void done() { expire(host, idle); }
+    };
+  }
+
+  /** Get the number of {@code Session}s open to {@code host}. */
+  public synchronized int open(String host) {
+    Host h = hosts.get(host);
+    return (h == null) ? 0 : h.open.size();
+  }
+
+  /** Close every idle {@code Session} in the pool. */
+  public synchronized void clear() {
+    for (Host host : new ArrayList<Host>(hosts.values())) {
+      List<Idle> idle = new ArrayList<Idle>(host.idle);
+      host.idle.clear();
+      for (Idle i : idle) i.session.close();
+    }
+  }
+
+  // Get the host entry for a session, creating it if necessary.
+  private Host host(Session session) {
+    String key = key(session);
+    Host host = hosts.get(key);
+    if (host == null)
+      hosts.put(key, host = new Host(key));
+    return host;
+  }
+
+  // Sessions are limited per host, regardless of port or credential. Sessions
+  // without a host have no key, and aren't pooled.
+  private static String key(Session session) {
+    String host = session.uri.host();
+    return (host == null || host.isEmpty()) ? null : host.toLowerCase();
+  }
+
+  // Initialize sessions which aren't pooled, and hand them out as they are.
+  private Bell<List<Session>> initialize(final Session... sessions) {
+    List<Bell> bells = new ArrayList<Bell>(sessions.length);
+    for (Session s : sessions) {
+      unpooled.add(s);
+      bells.add(s.root().initialize());
+    }
+    final Bell<List<Session>> bell = new Bell<List<Session>>();
+    Bell.all(bells).new Promise() {
+      public void done() {
+        bell.ring(Arrays.asList(sessions));
+      } public void fail(Throwable t) {
+        for (Session s : sessions) release(s);
+        bell.ring(t);
+      }
+    };
+    return bell;
+  }
+
+  // Hand out what we can to the leases waiting on a host.
+  private void serve(Host host) {
+    // Idle sessions go to the earliest lease they can satisfy, and the rest
+    // of the leases get new sessions in order. A lease which would need more
+    // new sessions than there is room for holds up new sessions for the
+    // leases behind it. Leases are matched first and handed out after, since
+    // handing out a session may call back into the pool.
+    Set<Idle> claimed =
+      Collections.newSetFromMap(new IdentityHashMap<Idle, Boolean>());
+    Set<Idle> wanted =
+      Collections.newSetFromMap(new IdentityHashMap<Idle, Boolean>());
+    Map<Lease, List<Idle>> matched = new LinkedHashMap<Lease, List<Idle>>();
+    int room = max_per_host - host.open.size();
+    boolean blocked = false;
+    for (Lease lease : host.waiting) {
+      List<Idle> idle = new ArrayList<Idle>();
+      int fresh = 0;
+      for (Session s : lease.sessions) {
+        Idle i = host.find(s, claimed);
+        idle.add(i);
+        if (i != null)
+          claimed.add(i);
+        else
+          fresh++;
+      } if (fresh == 0 || (!blocked && fresh <= room)) {
+        matched.put(lease, idle);
+        room -= fresh;
+      } else {
+        claimed.removeAll(idle);
+        wanted.addAll(idle);
+        blocked = true;
+      }
+    }
+
+    host.waiting.removeAll(matched.keySet());
+    host.idle.removeAll(claimed);
+    for (Map.Entry<Lease, List<Idle>> e : matched.entrySet())
+      grant(host, e.getKey(), e.getValue());
+
+    // If a lease is waiting for room, make room by closing the oldest idle
+    // session nobody is waiting for. The session is forgotten once it has
+    // closed, which will serve the host again.
+    if (blocked) {
+      Iterator<Idle> it = host.idle.descendingIterator();
+      while (it.hasNext()) {
+        Idle i = it.next();
+        if (!wanted.contains(i)) {
+          it.remove();
+          i.session.close();
+          break;
+        }
+      }
+    }
+
+    if (host.open.isEmpty() && host.waiting.isEmpty())
+      hosts.remove(host.name);
+  }
+
+  // Grant a lease the idle sessions matched to it, opening new sessions for
+  // the rest. The lease rings once every session is ready. If an idle session
+  // fails its check, the others are released and the lease goes back to the
+  // front of the line. If a new session fails to open, the lease fails.
+  private void grant(final Host host, final Lease lease, List<Idle> idle) {
+    final int n = lease.sessions.size();
+    final Session[] got = new Session[n];
+    final Throwable[] error = new Throwable[1];
+    final boolean[] retry = new boolean[1];
+    final int[] left = { n };
+
+    for (int i = 0; i < n; i++) {
+      final int k = i;
+      final boolean opened = idle.get(i) == null;
+      Bell<Session> part = opened ?
+        open(host, lease.sessions.get(i)) :
+        hand(idle.get(i), lease.sessions.get(i));
+      part.new Promise() {
+        public void done(Session s) {
+          got[k] = s;
+        } public void fail(Throwable t) {
+          synchronized (SessionPool.this) {
+            if (opened)
+              error[0] = t;
+            else
+              retry[0] = true;
+          }
+        } public void always() {
+          synchronized (SessionPool.this) {
+            if (--left[0] > 0)
+              return;
+          } settle(host, lease, got, error[0], retry[0]);
+        }
+      };
+    }
+  }
+
+  // Ring a lease once all of its sessions are settled, or give back what it
+  // got if any of them failed.
+  private void settle(Host host, Lease lease, Session[] got,
+                      Throwable error, boolean retry) {
+    if (error == null && !retry) {
+      lease.ring(Arrays.asList(got));
+      return;
+    } for (Session s : got)
+      if (s != null) release(s);
+    if (error != null) {
+      lease.ring(error);
+    } else synchronized (this) {
+      Host h = host(lease.sessions.get(0));
+      h.waiting.addFirst(lease);
+      serve(h);
+    }
+  }
+
+  // Open a session, returning a bell which rings with it once it has been
+  // initialized.
+  private Bell<Session> open(final Host host, final Session session) {
+    final Bell<Session> bell = new Bell<Session>();
+    host.open.add(session);
+    session.pool(this);
+    session.onClose(new Bell() {
+      public void always() { closed(host, session); }
+    });
+    session.root().initialize().new Promise() {
+      public void done() {
+        bell.ring(session);
+      } public void fail(Throwable t) {
+        session.close(t);
+        bell.ring(t);
+      }
+    };
+    return bell;
+  }
+
+  // Hand out an idle session in place of the given one, checking it first if
+  // it has been idle for a while. If the check fails, the session is closed.
+  private Bell<Session> hand(final Idle idle, Session settings) {
+    idle.session.copySettings(settings);
+    if (idle.idleTime() < check_after)
+      return new Bell<Session>(idle.session);
+    final Bell<Session> bell = new Bell<Session>();
+    idle.session.check().new Promise() {
+      public void done() {
+        bell.ring(idle.session);
+      } public void fail(Throwable t) {
+        idle.session.close(t);
+        bell.ring(t);
+      }
+    };
+    return bell;
+  }
+
+  // Forget about a session once it has closed.
+  private synchronized void closed(Host host, Session session) {
+    host.open.remove(session);
+    for (Iterator<Idle> it = host.idle.iterator(); it.hasNext();)
+      if (it.next().session == session) it.remove();
+    serve(host);
+  }
+
+  // Close a session if it is still idle.
+  private synchronized void expire(Host host, Idle idle) {
+    if (host.idle.remove(idle))
+      idle.session.close();
+  }
+}
@@ -0,0 +1,139 @@
+package stork.feather.util;
+
+import java.util.*;
+
+import stork.feather.*;
+
+/**
+ * A {@code StatCache} remembers the {@code Stat}s of recently listed {@code
+ * Resource}s, so that listing the same {@code Resource} again soon after does
+ * not have to go back to the storage system. {@code Resource}s are equal if
+ * they have the same path, URI and credential, so listings made with
+ * different credentials are cached separately.
+ * <p/>
+ * Cached {@code Stat}s expire after a while. The cache is bounded by the
+ * number of entries it holds, counting each {@code Stat} and each of its
+ * files as one entry; the least recently used {@code Stat}s are evicted to
+ * stay within the bound. Anything which changes a {@code Resource} should
+ * {@link #invalidate(Resource)} it.
+ */
+public class StatCache {
+  /** Seconds a cached {@code Stat} is used for. Zero disables caching. */
+  public double ttl = 30;
+
+  /** The most entries the cache may hold. */
+  public int max_entries = 100000;
+
+  // Cached stats in order of use, least recent first.
+  private final LinkedHashMap<Resource, Cached> cache =
+    new LinkedHashMap<Resource, Cached>(16, .75f, true);
+  private long entries = 0;
+  private long hits = 0, misses = 0, evictions = 0;
+
+  // A cached stat, when it was cached, and how many entries it counts for.
+  private static class Cached {
+    final Stat stat;
+    final long since = System.nanoTime();
+    final int size;
+
+    Cached(Stat stat) {
+      this.stat = stat;
+      size = 1 + ((stat.files == null) ? 0 : stat.files.length);
+    }
+
+    double age() { return (System.nanoTime()-since)/1E9; }
+  }
+
+  /**
+   * Get the cached {@code Stat} of {@code resource}, if it has one which has
+   * not expired.
+   *
+   * @param resource the {@code Resource} to look up.
+   * @return The cached {@code Stat}, or {@code null} if there isn't one.
+   */
+  public synchronized Stat get(Resource resource) {
+    Cached c = cache.get(resource);
+    if (c != null && c.age() >= ttl) {
+      remove(resource);
+      c = null;
+    } if (c == null) {
+      misses++;
+      return null;
+    } hits++;
+    return c.stat;
+  }
+
+  /**
+   * Cache the {@code Stat} of {@code resource}, evicting the least recently
+   * used {@code Stat}s if the cache is full. A {@code Stat} with more entries
+   * than the cache can hold is not cached.
+   *
+   * @param resource the {@code Resource} {@code stat} describes.
+   * @param stat the {@code Stat} to cache.
+   */
+  public synchronized void put(Resource resource, Stat stat) {
+    if (ttl <= 0 || stat == null)
+      return;
+    Cached c = new Cached(stat);
+    remove(resource);
+    if (c.size > max_entries)
+      return;
+    Iterator<Cached> it = cache.values().iterator();
+    while (entries + c.size > max_entries) {
+      entries -= it.next().size;
+      it.remove();
+      evictions++;
+    }
+    cache.put(resource, c);
+    entries += c.size;
+  }
+
+  /**
+   * Forget what is cached about {@code resource}, about anything under it,
+   * and about its parent, whose listing includes it. This applies whatever
+   * credential the cached listings were made with.
+   *
+   * @param resource a {@code Resource} which has changed.
+   */
+  public synchronized void invalidate(Resource resource) {
+    URI uri = resource.session.uri;
+    Path path = resource.path;
+    Path parent = path.up();
+    Iterator<Map.Entry<Resource, Cached>> it = cache.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<Resource, Cached> e = it.next();
+      Resource r = e.getKey();
+      if (!uri.equals(r.session.uri))
+        continue;
+      if (r.path.equals(parent) || path.prefixes(r.path)) {
+        entries -= e.getValue().size;
+        it.remove();
+      }
+    }
+  }
+
+  /** Forget everything in the cache. */
+  public synchronized void clear() {
+    cache.clear();
+    entries = 0;
+  }
+
+  // Remove a resource from the cache.
+  private void remove(Resource resource) {
+    Cached c = cache.remove(resource);
+    if (c != null)
+      entries -= c.size;
+  }
+
+  /** Get the number of entries in the cache. */
+  public synchronized long entries() { return entries; }
+
+  /** Get the number of lookups which found a cached {@code Stat}. */
+  public synchronized long hits() { return hits; }
+
+  /** Get the number of lookups which did not find a cached {@code Stat}. */
+  public synchronized long misses() { return misses; }
+
+  /** Get the number of {@code Stat}s evicted to make room. */
+  public synchronized long evictions() { return evictions; }
+}
@@ -0,0 +1,38 @@
+package stork.feather.util;
+
+import stork.feather.*;
+
+/**
+ * A {@code TreeScan} crawls a {@code Resource} tree and adds up the number
+ * and total size of the files in it. The totals are added to {@code
+ * Progress}es as files are found, so they fill in while the scan runs, for
+ * instance alongside a transfer of the same tree. The scan rings with the
+ * root {@code Resource} once the whole tree has been counted.
+ *
+ * @param <R> The {@code Resource} type this {@code TreeScan} operates on.
+ */
+public class TreeScan<R extends Resource<?,R>> extends Crawler<R> {
+  private final Progress bytes, files;
+
+  /**
+   * Create a {@code TreeScan} which adds the sizes of the files under {@code
+   * resource} to the total of {@code bytes}, and their number to the total of
+   * {@code files}.
+   *
+   * @param resource the root of the tree to scan.
+   * @param bytes the {@code Progress} to add file sizes to.
+   * @param files the {@code Progress} to add file counts to.
+   */
+  public TreeScan(R resource, Progress bytes, Progress files) {
+    super(resource, true);
+    this.bytes = bytes;
+    this.files = files;
+  }
+
+  protected Bell operate(Path path, R resource, Stat stat) {
+    if (stat.file) {
+      bytes.add(0, stat.size);
+      files.add(0, 1);
+    } return null;
+  }
+}
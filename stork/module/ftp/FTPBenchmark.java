@@ -0,0 +1,178 @@
+package stork.module.ftp;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import stork.feather.*;
+
+/**
+ * Measure small-file throughput over an {@link FTPChannel}, comparing waiting
+ * for each reply before issuing the next command with pipelining the commands
+ * for every file at once. The benchmark runs against an in-process stand-in
+ * FTP server which delays every reply by a simulated round trip time, so the
+ * cost of each round trip shows up even over the loopback interface.
+ * <p/>
+ * For each file, the client issues {@code SIZE} and {@code MDTM} and then
+ * retrieves the file over a passive data channel.
+ */
+public class FTPBenchmark {
+  /**
+   * Run the benchmark. The optional arguments are the number of files, the
+   * size of each file in bytes, and the simulated round trip time in
+   * milliseconds.
+   */
+  public static void main(String[] args) throws Exception {
+    int files = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+    int size  = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+    int rtt   = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+    StandIn server = new StandIn(size, rtt);
+    FTPChannel ch = new FTPChannel("127.0.0.1", server.port());
+    ch.authorize().sync();
+
+    for (boolean pipelined : new boolean[] { false, true }) {
+      long start = System.nanoTime();
+      List<Bell> bells = new ArrayList<Bell>();
+      for (int i = 0; i < files; i++) {
+        String name = "file"+i;
+        bells.add(ch.new Command("SIZE", name).expectComplete());
+        if (!pipelined) bells.remove(0).sync();
+        bells.add(ch.new Command("MDTM", name).expectComplete());
+        if (!pipelined) bells.remove(0).sync();
+        bells.add(retrieve(ch, name));
+        if (!pipelined) bells.remove(0).sync();
+      } Bell.all(bells).sync();
+      double s = (System.nanoTime()-start)/1E9;
+      System.out.printf("%s: %.1f files/s, %.0f commands/s%n",
+        pipelined ? "pipelined" : "sequential", files/s, 3*files/s);
+    } System.exit(0);
+  }
+
+  // Retrieve a file over a data channel, discarding the data. The returned
+  // bell rings once the data channel has closed.
+  private static Bell retrieve(FTPChannel ch, final String name) {
+    return ch.new DataChannel() {
+      public Bell init() {
+        return new Command("RETR", name).expectComplete();
+      } public void receive(Slice slice) {
+        slice.release();
+      }
+    }.startWhen(Bell.rungBell()).onClose();
+  }
+
+  // A minimal FTP server which pretends every file exists and has the same
+  // size. Replies are sent a round trip time after the command was read, but
+  // commands which arrive together get their replies together, much like a
+  // real server across a real network.
+  private static class StandIn extends Thread {
+    private final ServerSocket listener = new ServerSocket(0);
+    private final byte[] file;
+    private final long rtt;
+
+    StandIn(int size, long rtt) throws IOException {
+      file = new byte[size];
+      this.rtt = rtt;
+      setDaemon(true);
+      start();
+    }
+
+    int port() { return listener.getLocalPort(); }
+
+    public void run() {
+      try {
+        while (true)
+          new Connection(listener.accept()).start();
+      } catch (IOException e) {
+        // The listener is gone; so are we.
+      }
+    }
+
+    // A control connection to the stand-in server. Replies are queued in
+    // order along with the time they are due, and written by a separate
+    // thread.
+    private class Connection extends Thread {
+      private final Socket socket;
+      private final Writer out;
+      private final BlockingQueue<Object[]> replies =
+        new LinkedBlockingQueue<Object[]>();
+      private ServerSocket passive;
+
+      Connection(Socket socket) throws IOException {
+        this.socket = socket;
+        socket.setTcpNoDelay(true);
+        out = new OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+        setDaemon(true);
+      }
+
+      public void run() {
+        Thread writer = new Thread() {
+          public void run() {
+            try {
+              while (true) {
+                Object[] r = replies.take();
+                long wait = (Long) r[0] - System.nanoTime();
+                if (wait > 0)
+                  TimeUnit.NANOSECONDS.sleep(wait);
+                out.write(r[1]+"\r\n");
+                if (replies.isEmpty())
+                  out.flush();
+              }
+            } catch (Exception e) {
+              // The client hung up.
+            }
+          }
+        };
+        writer.setDaemon(true);
+        writer.start();
+        try {
+          reply(System.nanoTime(), "220 Stand-in ready.");
+          BufferedReader in = new BufferedReader(
+            new InputStreamReader(socket.getInputStream(), "UTF-8"));
+          for (String line; (line = in.readLine()) != null;)
+            handle(line, System.nanoTime()+rtt*1000000);
+        } catch (IOException e) {
+          // The client hung up.
+        } finally {
+          writer.interrupt();
+        }
+      }
+
+      // Handle a command which should be answered at the given time.
+      private void handle(String line, final long at) throws IOException {
+        String verb = line.split(" ")[0].toUpperCase();
+        if (verb.equals("USER")) {
+          reply(at, "331 Password please.");
+        } else if (verb.equals("PASS")) {
+          reply(at, "230 Logged in.");
+        } else if (verb.equals("SIZE")) {
+          reply(at, "213 "+file.length);
+        } else if (verb.equals("MDTM")) {
+          reply(at, "213 20140101000000");
+        } else if (verb.equals("PASV")) {
+          passive = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+          int p = passive.getLocalPort();
+          reply(at, "227 Entering Passive Mode (127,0,0,1,"+
+                    (p>>8)+","+(p&255)+").");
+        } else if (verb.equals("RETR") && passive != null) {
+          reply(at, "150 Opening data connection.");
+          try (ServerSocket ss = passive; Socket data = ss.accept()) {
+            data.getOutputStream().write(file);
+          } passive = null;
+          reply(at, "226 Transfer complete.");
+        } else if (verb.equals("TYPE") || verb.equals("MODE")) {
+          reply(at, "200 OK.");
+        } else {
+          reply(at, "502 Not implemented.");
+        }
+      }
+
+      // Queue a reply to be written no earlier than the given time, and after
+      // any reply queued before it.
+      private void reply(long at, String reply) {
+        replies.add(new Object[] { at, reply });
+      }
+    }
+  }
+}
@@ -2,6 +2,9 @@ package stork.module.ftp;
 
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.nio.charset.*;
 
 import io.netty.bootstrap.*;
@@ -42,6 +45,11 @@ public class FTPChannel {
   // FIXME: We should use something system-wide.
   static EventLoopGroup group = new NioEventLoopGroup(1);
 
+  // Local ports active mode data channels may listen on, or null for any, and
+  // where in the range to start looking for a free one.
+  private static volatile Range activePorts;
+  private static final AtomicInteger nextPort = new AtomicInteger();
+
   // Used for GSS authentication.
   private final String host;
 
@@ -64,6 +72,20 @@ public class FTPChannel {
     Bell<SecurityContext> security;
     Deque<Command> handlers = new ArrayDeque<Command>();
 
+    // Commands waiting to be written, and whether a flush of them has been
+    // scheduled on the event loop.
+    Queue<Object> outbox = new ConcurrentLinkedQueue<Object>();
+    AtomicBoolean flushing = new AtomicBoolean(false);
+
+    // Locks waiting for another lock to be released.
+    Queue<Lock> waiting = new ArrayDeque<Lock>();
+
+    // Extended block mode streams left open by the last data channel, which
+    // the next data channel may take over instead of connecting again.
+    SocketChannel[] streams;
+
+    boolean epsv = true;  // Whether the server might support EPSV.
+
     FTPChannel owner;  // The view that owns the underlying channel.
 
     // Any FTP server that adheres to specifications will use UTF-8, but let's
@@ -127,6 +149,7 @@ public class FTPChannel {
   class Initializer extends ChannelInitializer<SocketChannel> {
     public void initChannel(SocketChannel ch) throws Exception {
       ch.config().setConnectTimeoutMillis(timeout);
+      ch.config().setTcpNoDelay(true);
 
       ChannelPipeline p = ch.pipeline();
 
@@ -448,13 +471,15 @@ public class FTPChannel {
       (final ChannelHandlerContext ctx, Object msg, final List<Object> out)
     throws Exception {
       //Log.finer("Writing ",msg);
+      if (data.security == null) {
+        out.add(Unpooled.wrappedBuffer((msg+"\r\n").getBytes(data.encoding)));
+        return;
+      }
+
       final ByteBuf raw =
         Unpooled.wrappedBuffer(msg.toString().getBytes(data.encoding));
 
-      if (data.security == null) {
-        out.add(raw);
-        out.add(Unpooled.wrappedBuffer("\r\n".getBytes(data.encoding)));
-      } else data.security.new As<ByteBuf>() {
+      data.security.new As<ByteBuf>() {
         public ByteBuf convert(SecurityContext sc) throws Exception {
           return Unpooled.wrappedBuffer(
             Unpooled.wrappedBuffer("ENC ".getBytes(data.encoding)),
@@ -475,8 +500,61 @@ public class FTPChannel {
     return data.future.syncUninterruptibly().channel();
   }
 
+  // Queue a command to be written to the channel. Rather than flushing every
+  // command, commands queued before the event loop gets around to writing
+  // them are written back-to-back and flushed together, so a burst of
+  // pipelined commands goes out in as few segments as possible.
+  private void write(Object command) {
+    data.outbox.add(command);
+    if (!data.flushing.compareAndSet(false, true))
+      return;
+    final Channel ch = channel();
+    ch.eventLoop().execute(new Runnable() {
+      public void run() {
+        // Clear the flag first so anything queued after the drain schedules
+        // another flush.
+        data.flushing.set(false);
+        for (Object o; (o = data.outbox.poll()) != null;)
+          ch.write(o);
+        ch.flush();
+      }
+    });
+  }
+
+  // Take the cached data streams, if there are any.
+  private SocketChannel[] takeStreams() {
+    synchronized (data) {
+      SocketChannel[] chs = data.streams;
+      data.streams = null;
+      return chs;
+    }
+  }
+
+  // Check if data channels with the given parallelism keep their streams
+  // open for the next data channel, or if there are streams kept open
+  // already.
+  boolean cachesStreams(int parallelism) {
+    synchronized (data) {
+      return data.streams != null || isParallel(parallelism);
+    }
+  }
+
+  // Check if data channels with the given parallelism will use parallel
+  // extended block mode streams.
+  boolean isParallel(int parallelism) {
+    return parallelism > 1 && data.protocol == Protocol.gridftp;
+  }
+
+  // Close any cached data streams.
+  void dropStreams() {
+    SocketChannel[] chs = takeStreams();
+    if (chs != null) for (SocketChannel ch : chs)
+      ch.close();
+  }
+
   // Close the channel and run the onClose handler.
   public synchronized void close() {
+    dropStreams();
     if (!isClosed()) {
       channel().close();
       onClose.ring();
@@ -574,6 +652,7 @@ public class FTPChannel {
   // TODO: This should probably propagate control channel errors.
   class FeatureSet {
     private Map<String,Bell> features;
+    private boolean finalized = false;  // Whether the checks are done.
 
     // Asynchronously check if a command is supported.
     private synchronized void init() {
@@ -609,6 +688,8 @@ public class FTPChannel {
       Bell bell = features.get(cmd);
       if (bell == null)
         features.put(cmd, bell = new Bell());
+      if (finalized)
+        bell.ring(new RuntimeException());
       return bell;
     }
 
@@ -624,6 +705,7 @@ public class FTPChannel {
     // resolve all unsupported commands with false and update the state to
     // reflect the command list has been finalized.
     private synchronized void finalizeChecks() {
+      finalized = true;
       for (Bell b : features.values())
         b.ring(new RuntimeException());
     }
@@ -718,13 +800,71 @@ public class FTPChannel {
       new Command("MODE", m).expectComplete().as(m).or(data.mode);
   }
 
-  /** Negotiate a passive mode data channel. */
+  // Check if the server speaks GridFTP, and so supports extended block mode.
+  boolean isGridFTP() {
+    return data.protocol == Protocol.gridftp;
+  }
+
+  // Change the transfer mode, unless the channel is already known to be in
+  // that mode.
+  synchronized Bell<Character> ensureMode(char m) {
+    Bell<Character> mode = data.mode;
+    if (mode.isSuccessful() && mode.sync() == m)
+      return mode;
+    return mode(m);
+  }
+
+  /**
+   * Negotiate a passive mode data channel. EPSV is tried first, since its
+   * reply only carries a port and so works over IPv6 and for servers behind
+   * NAT that don't know their outside address. If the server doesn't support
+   * EPSV, PASV is used from then on.
+   */
   public synchronized Bell<FTPHostPort> passive() {
+    if (!data.epsv)
+      return pasv();
+    return new Command("EPSV").new AsBell<FTPHostPort>() {
+      public Bell<FTPHostPort> convert(Reply r) {
+        if (r.isComplete()) {
+          InetSocketAddress remote =
+            (InetSocketAddress) channel().remoteAddress();
+          return new Bell<FTPHostPort>(
+            FTPHostPort.epsv(r, remote.getAddress()));
+        } if (r.code/100 != 5) {
+          throw r.asError();
+        } synchronized (data) {
+          data.epsv = false;
+        } return pasv();
+      }
+    };
+  }
+
+  // Negotiate a passive mode data channel with PASV.
+  private Bell<FTPHostPort> pasv() {
     return new Command("PASV").expectComplete().new As<FTPHostPort>() {
       public FTPHostPort convert(Reply r) { return new FTPHostPort(r); }
     };
   }
 
+  /**
+   * Tell the server which address to connect to for the next data channel.
+   * EPRT is used for IPv6 addresses, and PORT otherwise.
+   */
+  public synchronized Bell<Reply> port(FTPHostPort hp) {
+    if (hp.isIPv6())
+      return new Command("EPRT", hp.toEPRT()).expectComplete();
+    return new Command("PORT", hp).expectComplete();
+  }
+
+  /**
+   * Set the range of local ports active mode data channels may listen on.
+   * This is shared by every channel. If {@code ports} is {@code null}, any
+   * free port is used.
+   */
+  public static void activePorts(Range ports) {
+    activePorts = (ports == null || ports.isEmpty()) ? null : ports;
+  }
+
   /**
    * Instantiating this class requests a lock on the channel and returns a
    * special view of the channel once the lock request is satisfied. The
@@ -736,20 +876,56 @@ public class FTPChannel {
    * channel has been unlocked.
    */
   public class Lock extends FTPChannel {
+    private boolean unlocked = false;
+
     public Lock() {
       super(FTPChannel.this);
       FTPChannel.this.new Command(null) {
-        public void done() { Lock.this.assumeControl(); }
+        public void done() { Lock.this.acquire(); }
       };
     } public Bell<FTPChannel> lock() {
       throw new IllegalStateException("cannot lock from a view");
     } public void unlock() {
-      new Command(null) {
-        public void done() { FTPChannel.this.assumeControl(); }
+      // If we have control, everything we've issued is already in the handler
+      // queue, so control can be handed on right away. Otherwise, hand it on
+      // once our deferred commands have been sent.
+      synchronized (data) {
+        if (unlocked)
+          return;
+        unlocked = true;
+        if (data.owner == this) {
+          release();
+          return;
+        }
+      } new Command(null) {
+        public void done() { release(); }
       };
     } protected void finalize() {
       if (data.owner == this)
-        FTPChannel.this.assumeControl();
+        release();
+    }
+
+    // Take control if the parent has it. Otherwise another lock issued before
+    // the parent's commands were deferred still has it, and we have to wait
+    // for it to be released.
+    private void acquire() {
+      synchronized (data) {
+        if (data.owner == FTPChannel.this)
+          assumeControl();
+        else
+          data.waiting.add(this);
+      }
+    }
+
+    // Hand control to the next waiting lock, or back to the parent.
+    private void release() {
+      synchronized (data) {
+        Lock next = data.waiting.poll();
+        if (next != null)
+          next.assumeControl();
+        else
+          FTPChannel.this.assumeControl();
+      }
     }
   }
 
@@ -795,7 +971,7 @@ public class FTPChannel {
         //Log.finer(FTPChannel.this.hashCode()+": Deferring "+this);
       } else {
         appendHandler(cmd);
-        if (verb != null) channel().writeAndFlush(this);
+        if (verb != null) write(this);
         //Log.finer(FTPChannel.this.hashCode()+": Sending "+this);
       }
     } public String toString() {
@@ -839,6 +1015,8 @@ public class FTPChannel {
      * will ring when all commands piped prior to the sync have completed.
      */
     public Command(Object verb, Object... args) {
+      // Keep reply handlers for this channel in order.
+      affinity(data);
       synchronized (data) {
         isSync = (verb == null);
         new Deferred(this, verb, args).send();
@@ -881,66 +1059,303 @@ public class FTPChannel {
    * Asynchronous FTP data channel abstraction. Subclasses must override {@link
    * #receive(Slice)} to handle incoming data. This channel extends {@code
    * Lock}, but handles its own unlocking.
+   * <p/>
+   * A data channel may be made of several parallel streams, in which case
+   * the channel is put in extended block mode (MODE E) and data is striped
+   * across the streams in blocks tagged with their offsets. Incoming
+   * {@code Slice}s will then carry the offset of their data, and may arrive
+   * out of order.
+   * <p/>
+   * In extended block mode, the streams are left open once every stream has
+   * seen the end of the data, and the next data channel on the same control
+   * channel reuses them instead of negotiating and connecting new ones.
    */
   public class DataChannel extends Lock {
-    private Bell<SocketChannel> dc;
+    private Bell<SocketChannel[]> dc;
+    private final Bell<Object> owned = new Bell<Object>();  // Got the lock.
+    private Bell inited;  // The bell returned by init().
     private volatile boolean read = false;
-    private ChannelHandlerContext context;
+    private volatile boolean extended = false;  // Whether in MODE E.
+    private volatile boolean ended = false;  // Whether all streams ended.
+    private volatile boolean closing = false;  // Whether the sender closes.
+    private List<ChannelHandlerContext> contexts =
+      new LinkedList<ChannelHandlerContext>();
     private Bell writeBell;  // Ring when we can write again.
+    private Bell written = Bell.rungBell();  // Rings when writes complete.
+    private int next = 0;  // The next stream to write to.
+    private long position = 0;  // Offset of slices without one.
+    private long eods = 0, eodc = -1;  // End-of-data markers seen/expected.
 
     private final Bell<DataChannel> onClose = new Bell<DataChannel>() {
       public void always() {
+        final boolean keep = isSuccessful();
         dc.cancel().new Promise() {
-          public void done(SocketChannel ch) { ch.close(); }
+          public void done(SocketChannel[] chs) {
+            if (!keep || !park(chs))
+              for (SocketChannel ch : chs) ch.close();
+          }
         };
       }
     };
 
     public DataChannel() { this(true); }
 
-    public DataChannel(boolean preferPassive) {
-      dc = preferPassive ? tryPassiveThenActive() : tryActiveThenPassive();
-      dc.new AsBell<SocketChannel>() {
-        public Bell<SocketChannel> convert(SocketChannel c) {
-          return init().as(c);
+    public DataChannel(boolean preferPassive) { this(preferPassive, 1); }
+
+    /**
+     * Create a data channel with {@code parallelism} streams. If {@code
+     * parallelism} is greater than one and the server supports extended block
+     * mode, the streams will be used in parallel. Otherwise, a single stream
+     * is used.
+     */
+    public DataChannel(int parallelism) { this(true, parallelism); }
+
+    public DataChannel(final boolean preferPassive, final int parallelism) {
+      final boolean parallel = isParallel(parallelism);
+      synchronized (this) {
+        if (data.owner == this && !owned.isDone())
+          owned.ring();
+      }
+      // Wait until we have the lock to pick a mode, so we know whether the
+      // last data channel left any streams behind.
+      dc = owned.new AsBell<Character>() {
+        public Bell<Character> convert(Object o) {
+          return ensureMode(parallel ? 'E' : 'S');
+        }
+      }.new AsBell<SocketChannel[]>() {
+        public Bell<SocketChannel[]> convert(Character m) {
+          int n = 1;
+          if (m == 'E') {
+            extended = true;
+            n = Math.max(1, parallelism);
+            type('I');
+            SocketChannel[] chs = reuse(n);
+            if (chs != null)
+              return new Bell<SocketChannel[]>(chs);
+          } return preferPassive ?
+            tryPassiveThenActive(n) : tryActiveThenPassive(n);
+        }
+      };
+      dc.new AsBell<SocketChannel[]>() {
+        public Bell<SocketChannel[]> convert(SocketChannel[] c) {
+          return initOnce().as(c);
         } public void fail(Throwable t) {
           close(t);
         } public void always() {
-          DataChannel.super.unlock();
+          // In extended mode, hold on to the lock until the streams have
+          // been parked for the next data channel.
+          if (!extended) {
+            DataChannel.super.unlock();
+          } else onClose.new Promise() {
+            public void always() { DataChannel.super.unlock(); }
+          };
         }
       };
     }
 
-    private Bell<SocketChannel> tryPassiveThenActive() {
-      return tryPassive().new Promise() {
-        public void then(Throwable t) { tryActive().promise(this); }
+    // Issue the commands from init() the first time this is called. In active
+    // mode, this happens before the streams connect.
+    private synchronized Bell initOnce() {
+      if (inited == null)
+        inited = init();
+      return inited;
+    }
+
+    protected synchronized void assumeControl() {
+      super.assumeControl();
+      // This can happen in the Lock constructor, before owned exists. The
+      // constructor checks for that once it does.
+      if (owned != null && !owned.isDone())
+        owned.ring();
+    }
+
+    // Take over the streams left by the last data channel if there are n of
+    // them and they are all still open. The streams' handlers are replaced
+    // with our own, and they are allowed to read again.
+    private SocketChannel[] reuse(int n) {
+      SocketChannel[] chs = takeStreams();
+      if (chs == null)
+        return null;
+      boolean usable = chs.length == n;
+      for (SocketChannel ch : chs)
+        usable &= ch.isActive();
+      if (!usable) {
+        for (SocketChannel ch : chs) ch.close();
+        return null;
+      } for (SocketChannel ch : chs) {
+        ChannelPipeline p = ch.pipeline();
+        p.replace("block_decoder", "block_decoder", new BlockDecoder());
+        p.replace("slice_handler", "slice_handler", new SliceHandler());
+        ch.config().setAutoRead(true);
+      } return chs;
+    }
+
+    // Leave the streams open for the next data channel, if every stream saw
+    // the end of the data and nobody is closing them. Returns whether the
+    // streams were parked.
+    private boolean park(SocketChannel[] chs) {
+      if (!extended || !ended || closing)
+        return false;
+      for (SocketChannel ch : chs)
+        if (!ch.isActive()) return false;
+      for (SocketChannel ch : chs)
+        ch.config().setAutoRead(false);
+      SocketChannel[] old;
+      synchronized (data) {
+        old = data.streams;
+        data.streams = chs;
+      } if (old != null) for (SocketChannel ch : old)
+        ch.close();
+      return true;
+    }
+
+    private Bell<SocketChannel[]> tryPassiveThenActive(final int n) {
+      return tryPassive(n).new Promise() {
+        public void then(Throwable t) { tryActive(n).promise(this); }
       };
     }
 
-    private Bell<SocketChannel> tryActiveThenPassive() {
-      return tryActive().new Promise() {
-        public void then(Throwable t) { tryPassive().promise(this); }
+    private Bell<SocketChannel[]> tryActiveThenPassive(final int n) {
+      return tryActive(n).new Promise() {
+        public void then(Throwable t) { tryPassive(n).promise(this); }
       };
     }
 
-    private Bell<SocketChannel> tryPassive() {
-      return passive().new AsBell<SocketChannel>() {
-        public Bell<SocketChannel> convert(FTPHostPort hp) {
+    // Open n streams to the address the server is listening on.
+    private Bell<SocketChannel[]> tryPassive(final int n) {
+      // The server forgets its old streams once it's listening for new ones.
+      dropStreams();
+      return passive().new AsBell<SocketChannel[]>() {
+        final List<Bell<SocketChannel>> streams =
+          new ArrayList<Bell<SocketChannel>>(n);
+
+        public Bell<SocketChannel[]> convert(FTPHostPort hp) {
           Bootstrap b = new Bootstrap();
           b.group(FTPChannel.group).channel(NioSocketChannel.class);
           b.handler(new ChannelInitializer<SocketChannel>() {
             public void initChannel(SocketChannel ch) throws Exception {
-              ch.config().setConnectTimeoutMillis(timeout);
-              ch.pipeline().addLast(new SliceHandler());
+              initStream(ch);
             }
           });
-          return futureToBell(b.connect(hp.getAddr()));
+          for (int i = 0; i < n; i++)
+            streams.add(futureToBell(b.connect(hp.getAddr())));
+          Bell<Object> all = Bell.all(new ArrayList<Bell>(streams));
+          return all.new As<SocketChannel[]>() {
+            public SocketChannel[] convert(Object o) {
+              SocketChannel[] chs = new SocketChannel[n];
+              for (int i = 0; i < n; i++)
+                chs[i] = streams.get(i).sync();
+              return chs;
+            }
+          };
+        } public void fail(Throwable t) {
+          // Don't leave behind the streams which did connect.
+          for (Bell<SocketChannel> s : streams) s.new Promise() {
+            public void done(SocketChannel ch) { ch.close(); }
+          };
+        }
+      };
+    }
+
+    // Listen for n streams from the server and tell the server where to
+    // connect. The server only connects once the transfer command has been
+    // issued, so init() is issued from here rather than after connecting. The
+    // server may open fewer streams than asked, so whatever streams have
+    // connected are used once the transfer command completes.
+    private Bell<SocketChannel[]> tryActive(final int n) {
+      dropStreams();
+      final List<SocketChannel> streams = new ArrayList<SocketChannel>(n);
+      final Bell<SocketChannel[]> accepted = new Bell<SocketChannel[]>() {
+        public void fail(Throwable t) {
+          for (SocketChannel ch : streams) ch.close();
+        }
+      };
+
+      ServerBootstrap b = new ServerBootstrap();
+      b.group(FTPChannel.group).channel(NioServerSocketChannel.class);
+      b.childHandler(new ChannelInitializer<SocketChannel>() {
+        public void initChannel(SocketChannel ch) throws Exception {
+          synchronized (streams) {
+            if (streams.size() >= n || accepted.isDone()) {
+              ch.close();
+              return;
+            } initStream(ch);
+            streams.add(ch);
+            if (streams.size() == n)
+              accepted.ring(streams.toArray(new SocketChannel[n]));
+          }
+        }
+      });
+
+      InetAddress local =
+        ((InetSocketAddress) channel().localAddress()).getAddress();
+      return listen(b, local, ports()).new AsBell<SocketChannel[]>() {
+        public Bell<SocketChannel[]> convert(final Channel server) {
+          // Stop listening once we have our streams or have given up.
+          accepted.new Promise() {
+            public void always() { server.close(); }
+          };
+          InetSocketAddress addr = (InetSocketAddress) server.localAddress();
+          return port(new FTPHostPort(addr)).new AsBell<SocketChannel[]>() {
+            public Bell<SocketChannel[]> convert(Reply r) {
+              initOnce().new Promise() {
+                public void done() {
+                  synchronized (streams) {
+                    if (streams.isEmpty())
+                      accepted.ring(new RuntimeException(
+                        "Server did not connect in active mode."));
+                    else accepted.ring(
+                      streams.toArray(new SocketChannel[streams.size()]));
+                  }
+                } public void fail(Throwable t) {
+                  accepted.ring(t);
+                }
+              };
+              return accepted;
+            }
+          };
+        } public void fail(Throwable t) {
+          accepted.ring(t);
         }
       };
     }
 
-    private Bell<SocketChannel> tryActive() {
-      return new Bell<SocketChannel>(new RuntimeException("TODO"));
+    // Get the ports to try listening on, starting at a different place in
+    // the range each time so channels don't all fight over the same port.
+    private List<Integer> ports() {
+      Range range = activePorts;
+      if (range == null)
+        return Collections.singletonList(0);
+      List<Integer> ports = new ArrayList<Integer>(range.size());
+      for (int p : range) ports.add(p);
+      Collections.rotate(ports, -(nextPort.getAndIncrement() % ports.size()));
+      return ports;
+    }
+
+    // Bind a listener to the first free port in the list.
+    private Bell<Channel> listen(final ServerBootstrap b,
+                                 final InetAddress local,
+                                 final List<Integer> ports) {
+      if (ports.isEmpty()) return new Bell<Channel>(
+        new RuntimeException("No free port to listen on for active mode."));
+      final Bell<Channel> bell = new Bell<Channel>();
+      b.bind(local, ports.get(0)).addListener(new ChannelFutureListener() {
+        public void operationComplete(ChannelFuture f) {
+          if (f.isSuccess())
+            bell.ring(f.channel());
+          else
+            listen(b, local, ports.subList(1, ports.size())).promise(bell);
+        }
+      });
+      return bell;
+    }
+
+    // Set up the handlers on a newly connected stream.
+    private void initStream(SocketChannel ch) {
+      ch.config().setConnectTimeoutMillis(timeout);
+      if (extended)
+        ch.pipeline().addLast("block_decoder", new BlockDecoder());
+      ch.pipeline().addLast("slice_handler", new SliceHandler());
     }
 
     // Make a future into a bell that reverse cancels.
@@ -963,25 +1378,141 @@ public class FTPChannel {
     }
 
     // Handle incoming data chunks and forward to handler.
-    // TODO: Mode E, encryption, pause/resume.
+    // TODO: Encryption.
     class SliceHandler extends ChannelHandlerAdapter {
+      private Bell held;  // This stream doesn't read until this rings.
+
       public void channelRead(ChannelHandlerContext ctx, Object msg) {
-        receive(new Slice((ByteBuf) msg));
+        if (msg instanceof Slice)
+          holdUntil(ctx, offer((Slice) msg));
+        else
+          holdUntil(ctx, offer(new Slice((ByteBuf) msg)));
       } public void channelInactive(ChannelHandlerContext ctx) {
         DataChannel.this.close();
       } public void read(ChannelHandlerContext ctx) {
-        if (read)
-          ctx.read();
-        else if (context == null)
-          context = ctx;
+        synchronized (DataChannel.this) {
+          if (!read || held != null) {
+            contexts.add(ctx);
+            return;
+          }
+        } ctx.read();
+      }
+
+      // Stop reading from this stream alone until bell rings.
+      private void holdUntil(final ChannelHandlerContext ctx, final Bell bell) {
+        if (bell == null || bell.isDone())
+          return;
+        synchronized (DataChannel.this) {
+          held = bell;
+        } bell.new Promise() {
+          public void always() { unhold(ctx, bell); }
+        };
+      }
+
+      // Let this stream read again, unless the whole channel is stopped.
+      private void unhold(ChannelHandlerContext ctx, Bell bell) {
+        synchronized (DataChannel.this) {
+          if (held != bell)
+            return;
+          held = null;
+          if (!read || !contexts.remove(ctx))
+            return;
+        } ctx.read();
       } public void channelWritabilityChanged(ChannelHandlerContext ctx) {
-        if (!ctx.channel().isWritable()) {
-          if (writeBell == null) writeBell = new Bell();
-        } else if (writeBell != null) {
-          writeBell.ring();
-          writeBell = null;
+        if (ctx.channel().isWritable())
+          writable();
+      }
+    }
+
+    // Decode extended block mode blocks arriving on a stream into slices
+    // tagged with the offset of their data. Blocks are not copied; the slices
+    // share the buffers they arrived in.
+    class BlockDecoder extends ChannelHandlerAdapter {
+      private final ByteBuf header = Unpooled.buffer(Block.HEADER);
+      private int desc;
+      private long remaining = 0, offset;
+      private boolean ended = false;  // Whether this stream has ended.
+
+      public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        ByteBuf buf = (ByteBuf) msg;
+        try {
+          while (buf.isReadable()) if (remaining > 0) {
+            int len = (int) Math.min(remaining, buf.readableBytes());
+            ByteBuf block = buf.readSlice(len).retain();
+            ctx.fireChannelRead(new Slice(block, offset));
+            offset += len;
+            remaining -= len;
+            if (remaining == 0)
+              endBlock();
+          } else {
+            int len = Math.min(header.writableBytes(), buf.readableBytes());
+            buf.readBytes(header, len);
+            if (header.isWritable())
+              break;
+            desc = header.readUnsignedByte();
+            remaining = header.readLong();
+            offset = header.readLong();
+            header.clear();
+            if ((desc & Block.EOF) != 0) {
+              // The offset is really the number of streams to expect.
+              if (remaining != 0)
+                throw new RuntimeException("Data in EOF block.");
+              endOfFile(offset);
+            } if (remaining == 0) {
+              endBlock();
+            }
+          }
+        } finally {
+          buf.release();
+        }
+      }
+
+      // Handle the descriptor of a block whose data has been read.
+      private void endBlock() {
+        if ((desc & Block.CLOSE) != 0)
+          closing = true;
+        if ((desc & Block.EOD) != 0 && !ended) {
+          ended = true;
+          endOfData();
         }
       }
+
+      public void channelInactive(ChannelHandlerContext ctx) {
+        if (!ended)
+          DataChannel.this.close(
+            new RuntimeException("Data stream closed unexpectedly."));
+      }
+
+      public void exceptionCaught(ChannelHandlerContext ctx, Throwable t) {
+        DataChannel.this.close(t);
+      }
+    }
+
+    // A stream has seen the end of its data.
+    private synchronized void endOfData() {
+      eods++;
+      if (eodc >= 0 && eods >= eodc)
+        end();
+    }
+
+    // The sender has said how many streams it is sending over.
+    private synchronized void endOfFile(long count) {
+      eodc = count;
+      if (eods >= eodc)
+        end();
+    }
+
+    // Every stream has seen the end of the data.
+    private void end() {
+      ended = true;
+      close();
+    }
+
+    // Called when a stream becomes writable.
+    private synchronized void writable() {
+      if (writeBell != null)
+        writeBell.ring();
+      writeBell = null;
     }
 
     /** This must not be called externally. */
@@ -999,6 +1530,14 @@ public class FTPChannel {
       return onClose;
     }
 
+    /**
+     * Check if this channel is in extended block mode. This is only known
+     * once the channel has connected.
+     */
+    public boolean isExtended() {
+      return extended;
+    }
+
     /** Start reading data when {@code bell} rings. */
     public synchronized DataChannel startWhen(Bell bell) {
       bell.new Promise() {
@@ -1016,12 +1555,18 @@ public class FTPChannel {
       } return this;
     }
 
-    /** Start reading data. */
+    /** Start reading data, except on streams which are being held. */
     public synchronized void start() {
       read = true;
-      if (context != null)
+      for (Iterator<ChannelHandlerContext> it = contexts.iterator();
+           it.hasNext();) {
+        ChannelHandlerContext context = it.next();
+        ChannelHandler h = context.handler();
+        if (h instanceof SliceHandler && ((SliceHandler) h).held != null)
+          continue;
+        it.remove();
         context.read();
-      context = null;
+      }
     }
 
     /** Stop reading data. */
@@ -1038,23 +1583,207 @@ public class FTPChannel {
     /** Close the channel with a failure. */
     public final void close(Throwable t) { onClose.ring(t); }
 
-    /** Subclasses use this to handle slices. */
-    public void receive(Slice slice) { }
+    /**
+     * Close the channel with a failure, and tell the server to abort the
+     * transfer. The returned bell rings once the server has replied to both
+     * the transfer command and the abort, so nothing is left going on the
+     * control channel for this data channel.
+     */
+    public Bell abort(Throwable t) {
+      close(t);
+      Bell abor = FTPChannel.this.new Command("ABOR");
+      synchronized (this) {
+        return Bell.wait(inited, abor);
+      }
+    }
+
+    /**
+     * Subclasses use this to handle slices. Implementations must release the
+     * slice or pass it on to something which will.
+     */
+    public void receive(Slice slice) { slice.release(); }
+
+    /**
+     * Handle a slice arriving on one of the streams. The stream it arrived on
+     * stops reading until the returned bell rings, while the other streams
+     * carry on. A null bell lets the stream keep reading. By default, this
+     * passes the slice to {@link #receive(Slice)} and returns null.
+     */
+    public Bell offer(Slice slice) {
+      receive(slice);
+      return null;
+    }
 
     /** Send a slice through the data channel. */
     public Bell send(final Slice slice) {
       return dc.new Promise() {
-        public void then(SocketChannel ch) {
-          ch.write(slice.asByteBuf());
-          if (writeBell == null)
+        public void then(SocketChannel[] chs) {
+          SocketChannel ch = pick(chs);
+          if (extended)
+            ch.write(Block.header(0, slice.length(), place(slice)));
+          // Netty releases the buffer once it has been written.
+          track(ch.writeAndFlush(slice.asByteBuf()));
+          Bell ready = ready(chs);
+          if (ready == null) {
             ring();
+          } else {
+            // This bell has had its then(), so promising it to ready would
+            // never ring it.
+            final Bell sent = this;
+            ready.new Promise() {
+              public void done() { sent.ring(); }
+              public void fail(Throwable t) { sent.ring(t); }
+            };
+          }
+        } public void then(Throwable t) {
+          slice.release();
+          ring(t);
+        }
+      };
+    }
+
+    /**
+     * Send a file region through the data channel. The region is handed to
+     * the socket with {@code sendfile(2)} where the transport supports it.
+     * The returned bell rings once the region has been written, since the
+     * region's file may be closed after that.
+     */
+    public Bell send(final Region region) {
+      return dc.new AsBell<Object>() {
+        public Bell<Object> convert(SocketChannel[] chs) {
+          SocketChannel ch = pick(chs);
+          if (extended) {
+            ch.write(Block.header(0, region.count(), region.position()));
+            synchronized (DataChannel.this) {
+              position = region.position()+region.count();
+            }
+          } return track(ch.writeAndFlush(new RegionAdapter(region)));
+        }
+      };
+    }
+
+    // Pick the next stream to write to, skipping streams which are backed up
+    // if any are not.
+    private synchronized SocketChannel pick(SocketChannel[] chs) {
+      SocketChannel ch = null;
+      for (int i = 0; i < chs.length; i++) {
+        ch = chs[next];
+        next = (next+1) % chs.length;
+        if (ch.isWritable())
+          break;
+      } return ch;
+    }
+
+    // Get a bell which rings when a stream can be written to, or null if one
+    // can be written to now.
+    private synchronized Bell ready(SocketChannel[] chs) {
+      for (SocketChannel ch : chs)
+        if (ch.isWritable()) return null;
+      if (writeBell == null)
+        writeBell = new Bell();
+      return writeBell;
+    }
+
+    // Get the offset a slice should be sent at in extended block mode.
+    private synchronized long place(Slice slice) {
+      long offset = (slice.offset() >= 0) ? slice.offset() : position;
+      position = offset + slice.length();
+      return offset;
+    }
+
+    // Make a bell which rings when a write completes, and remember it as
+    // the last write.
+    private synchronized Bell track(ChannelFuture cf) {
+      final Bell bell = new Bell();
+      cf.addListener(new GenericFutureListener<ChannelFuture>() {
+        public void operationComplete(ChannelFuture f) {
+          if (f.isSuccess())
+            bell.ring();
           else
-            writeBell.promise(this);
+            bell.ring(f.cause());
+        }
+      });
+      return written = bell;
+    }
+
+    /**
+     * Close the channel once everything sent so far has been written. In
+     * extended block mode, every stream is marked as ended first.
+     */
+    public void finish() {
+      dc.new Promise() {
+        public void done(SocketChannel[] chs) {
+          Bell last;
+          if (extended) {
+            // Leave the streams open so they can be cached.
+            List<Bell> ends = new ArrayList<Bell>(chs.length);
+            for (int i = 0; i < chs.length; i++) {
+              int desc = Block.EOD;
+              if (i == 0) desc |= Block.EOF;
+              ends.add(track(chs[i].writeAndFlush(
+                Block.header(desc, 0, (i == 0) ? chs.length : 0))));
+            } last = Bell.all(ends);
+            ended = true;
+          } else synchronized (DataChannel.this) {
+            last = written;
+          } last.new Promise() {
+            public void done()            { close(); }
+            public void fail(Throwable t) { close(t); }
+          };
+        } public void fail(Throwable t) {
+          close(t);
         }
       };
     }
   }
 
+  // Extended block mode block headers. Every block of data sent in extended
+  // block mode is preceded by a header giving a descriptor, the length of
+  // the block, and the offset of the block in the file.
+  private static class Block {
+    static final int HEADER = 17;  // Length of a header.
+
+    // Descriptor flags.
+    static final int EOR     = 128;  // End of record (legacy).
+    static final int EOF     = 64;   // End of file; offset is stream count.
+    static final int ERRORS  = 32;   // Suspected errors in the block.
+    static final int RESTART = 16;   // The block is a restart marker.
+    static final int EOD     = 8;    // End of data on this stream.
+    static final int CLOSE   = 4;    // The sender will close the stream.
+
+    // Make a block header.
+    static ByteBuf header(int desc, long count, long offset) {
+      ByteBuf buf = Unpooled.buffer(HEADER);
+      buf.writeByte(desc).writeLong(count).writeLong(offset);
+      return buf;
+    }
+  }
+
+  // Present a Feather region to Netty as a file region. The region does not
+  // own its file, so there is nothing to do on deallocation.
+  private static class RegionAdapter extends AbstractReferenceCounted
+  implements FileRegion {
+    private final Region region;
+    private long transfered = 0;
+
+    RegionAdapter(Region region) { this.region = region; }
+
+    public long position()   { return region.position(); }
+    public long count()      { return region.count(); }
+    public long transfered() { return transfered; }
+
+    public long transferTo(java.nio.channels.WritableByteChannel target,
+                           long position)
+    throws java.io.IOException {
+      long n = region.channel().transferTo(
+        region.position()+position, region.count()-position, target);
+      if (n > 0) transfered += n;
+      return n;
+    }
+
+    protected void deallocate() { }
+  }
+
   public static void main(String[] args) throws Exception {
     FTPChannel ch = new FTPChannel(args[1]);
     java.io.BufferedReader r = new java.io.BufferedReader(
@@ -6,10 +6,11 @@ import java.io.*;
 
 import stork.util.*;
 
-// A utility for parsing PASV and EPSV replies.
+// A utility for parsing PASV and EPSV replies, and for making the arguments
+// to PORT and EPRT.
 
 public class FTPHostPort {
-  public byte[] bytes;  // Only the first four bytes of this are used.
+  public byte[] bytes;  // Four bytes for IPv4 addresses, sixteen for IPv6.
   public int port;
 
   public FTPHostPort(FTPChannel.Reply reply) {
@@ -18,23 +19,47 @@ public class FTPHostPort {
 
   public FTPHostPort(String csv) {
     try {
-      bytes = new byte[6];
+      byte[] b = new byte[6];
       int i = 0;
       for (String s : csv.split(","))
-        bytes[i++] = (byte) Short.parseShort(s);
+        b[i++] = (byte) Short.parseShort(s.trim());
       if (i != 6)
         throw null;
-      port = ((bytes[4]&0xFF)<<8) + (bytes[5]&0xFF);
+      bytes = Arrays.copyOf(b, 4);
+      port = ((b[4]&0xFF)<<8) + (b[5]&0xFF);
     } catch (Exception e) {
       throw new RuntimeException("Malformed PASV reply.", e);
     }
   }
 
+  public FTPHostPort(InetSocketAddress addr) {
+    bytes = addr.getAddress().getAddress();
+    port = addr.getPort();
+  }
+
+  // Parse an EPSV reply. The reply only carries a port, which is on the host
+  // at the other end of the control channel. It looks like (|||port|), where
+  // any character may be used in place of |.
+  public static FTPHostPort epsv(FTPChannel.Reply reply, InetAddress host) {
+    try {
+      String arg = reply.message().split("[()]")[1];
+      String[] f = arg.split(java.util.regex.Pattern.quote(arg.substring(0,1)));
+      return new FTPHostPort(
+        new InetSocketAddress(host, Integer.parseInt(f[3].trim())));
+    } catch (Exception e) {
+      throw new RuntimeException("Malformed EPSV reply.", e);
+    }
+  }
+
+  // Check if this is an IPv6 address, which PASV and PORT can't carry.
+  public boolean isIPv6() {
+    return bytes.length == 16;
+  }
+
   // Get the host/port as a socket address.
   public SocketAddress getAddr() {
     try {
-      byte[] b = { bytes[0], bytes[1], bytes[2], bytes[3] };
-      InetAddress ia = InetAddress.getByAddress(b);
+      InetAddress ia = InetAddress.getByAddress(bytes);
       return new InetSocketAddress(ia, port & 0xFFFF);
     } catch (UnknownHostException e) {
       throw new RuntimeException(e);
@@ -43,7 +68,11 @@ public class FTPHostPort {
 
   // Get the IP as a string.
   public String getHost() {
-    return (bytes[0]&0xFF)+"."+(bytes[1]&0xFF)+"."+
+    if (isIPv6()) try {
+      return InetAddress.getByAddress(bytes).getHostAddress();
+    } catch (UnknownHostException e) {
+      throw new RuntimeException(e);
+    } return (bytes[0]&0xFF)+"."+(bytes[1]&0xFF)+"."+
            (bytes[2]&0xFF)+"."+(bytes[3]&0xFF);
   }
 
@@ -59,6 +88,11 @@ public class FTPHostPort {
       ","+((port&0xFF00)>>8)+","+(port&0xFF);
   }
 
+  // Return the argument to EPRT for this host/port.
+  public String toEPRT() {
+    return "|"+(isIPv6() ? 2 : 1)+"|"+getHost()+"|"+getPort()+"|";
+  }
+
   private void subnetHack(byte[] b) {
     // Make sure the first three octets are the same as the control channel IP.
     // If they're different, assume the server is a LIAR. We should try
@@ -0,0 +1,116 @@
+package stork.module.ftp;
+
+import java.io.*;
+import java.util.*;
+
+import io.netty.buffer.*;
+
+import stork.feather.*;
+
+/**
+ * Measure how fast {@link FTPListParser} parses large listings. For each
+ * listing format, a listing is generated from lines in the style of a common
+ * server, and fed to a parser in chunks the size a data channel would
+ * deliver. The parser is run both collecting entries and emitting them.
+ * <p/>
+ * The formats are MLSD as sent by ProFTPD, {@code LIST} as sent by vsftpd,
+ * and {@code LIST} as sent by IIS.
+ */
+public class FTPListBenchmark {
+  private static final String[] FORMATS = { "mlsd", "unix", "windows" };
+  private static final int CHUNK = 64*1024;
+
+  /**
+   * Run the benchmark. The optional arguments are the number of entries in
+   * each listing and the number of times to parse it.
+   */
+  public static void main(String[] args) throws Exception {
+    int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    int rounds  = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+    for (String format : FORMATS) {
+      byte[] listing = listing(format, entries);
+      for (boolean emit : new boolean[] { false, true }) {
+        // Discard the first round, which is mostly warming up.
+        for (int r = 0; r <= rounds; r++) {
+          System.gc();
+          long heap = used();
+          long start = System.nanoTime();
+          int n = parse(listing, emit);
+          double s = (System.nanoTime()-start)/1E9;
+          if (r == 0)
+            continue;
+          if (n != entries)
+            throw new RuntimeException("Parsed "+n+" of "+entries+" entries");
+          System.out.printf(
+            "%-7s %-7s %.0f entries/s, %.1f MB/s, %.1f MB heap%n",
+            format, emit ? "emit" : "collect", n/s, listing.length/s/1E6,
+            (used()-heap)/1E6);
+        }
+      }
+    }
+  }
+
+  // Parse a listing, returning the number of entries.
+  private static int parse(byte[] listing, boolean emit) {
+    FTPListParser parser;
+    Emitter<Stat> emitter = null;
+    Bell consumed = null;
+    final int[] count = { 0 };
+    if (emit) {
+      emitter = new Emitter<Stat>();
+      consumed = emitter.new ForEach() {
+        public void each(Stat s) { count[0]++; }
+      };
+      parser = new FTPListParser(null, 0, emitter);
+    } else {
+      parser = new FTPListParser();
+    }
+
+    for (int i = 0; i < listing.length; i += CHUNK) {
+      ByteBuf buf = Unpooled.wrappedBuffer(
+        listing, i, Math.min(CHUNK, listing.length-i));
+      parser.write(buf);
+      buf.release();
+    } parser.finish();
+
+    Stat root = parser.sync();
+    if (!emit)
+      return root.files.length;
+    emitter.ring();
+    consumed.sync();
+    return count[0];
+  }
+
+  // Generate a listing in some format.
+  private static byte[] listing(String format, int entries) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(entries*80);
+    Writer w = new OutputStreamWriter(out, "UTF-8");
+    Random random = new Random(1);
+    if (format.equals("unix"))
+      w.write("total "+entries+"\r\n");
+    for (int i = 0; i < entries; i++) {
+      boolean dir = i%10 == 0;
+      String name = (dir ? "dir" : "file")+i+(dir ? "" : ".dat");
+      long size = dir ? 4096 : random.nextInt(1<<30);
+      int day = 1+i%28;
+      if (format.equals("mlsd")) w.write(String.format(
+        "modify=201401%02d141502;perm=%s;size=%d;type=%s;unique=FD01U%X;"+
+        "UNIX.group=100;UNIX.mode=%s;UNIX.owner=1000; %s\r\n",
+        day, dir ? "flcdmpe" : "adfrw", size, dir ? "dir" : "file", i,
+        dir ? "0755" : "0644", name));
+      else if (format.equals("unix")) w.write(String.format(
+        "%s    1 1000     100     %10d Jan %2d  2014 %s\r\n",
+        dir ? "drwxr-xr-x" : "-rw-r--r--", size, day, name));
+      else w.write(String.format(
+        "01-%02d-14  02:15PM       %14s %s\r\n",
+        day, dir ? "<DIR>         " : String.valueOf(size), name));
+    } w.close();
+    return out.toByteArray();
+  }
+
+  private static long used() {
+    Runtime rt = Runtime.getRuntime();
+    return rt.totalMemory()-rt.freeMemory();
+  }
+}
@@ -7,7 +7,7 @@ public enum FTPListCommand {
   MLSC(true, true),
   STAT(true, true),
   MLSD(false, true),
-  MLST(false, false),
+  MLST(true, false),
   LIST(false, true),
   NLST(false, true);
 
@@ -27,6 +27,15 @@ public enum FTPListCommand {
     return (n < values().length) ? values()[n] : null;
   }
 
+  /**
+   * Get the listing commands in order of priority for listings which are
+   * parsed as they arrive. Data channel listings come first, since a control
+   * channel listing arrives all at once as a single reply.
+   */
+  public static FTPListCommand[] streamingOrder() {
+    return new FTPListCommand[] { MLSD, LIST, MLSC, STAT };
+  }
+
   /** Check if this listing command requires a data channel. */
   public boolean requiresDataChannel() {
     return !cc;
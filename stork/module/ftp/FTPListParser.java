@@ -1,9 +1,7 @@
 package stork.module.ftp;
 
-import java.text.*;
+import java.nio.charset.*;
 import java.util.*;
-import java.util.regex.*;
-import java.io.*;
 
 import io.netty.buffer.*;
 
@@ -21,14 +19,43 @@ import stork.util.*;
  * This parser will return a tree root that has its name set if and only if
  * information about the listed directory was able to be retrieved from the
  * listing results.
+ * <p/>
+ * Listings are parsed a byte at a time as they arrive, without decoding them
+ * into strings first. Only the parts of an entry which end up in a {@code
+ * Stat} are decoded. If the parser is given an {@code Emitter}, entries are
+ * emitted as soon as they are parsed rather than being collected into the
+ * root, so a listing need not be held in memory all at once.
  */
 public class FTPListParser extends Bell<Stat> {
   // TODO: Check out <http://cr.yp.to/ftpparse/ftpparse.c>.
-  String data = null;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final String[] MONTHS = {
+    "jan", "feb", "mar", "apr", "may", "jun",
+    "jul", "aug", "sep", "oct", "nov", "dec"
+  };
+
   int list_type;
-  StringBuilder sb = new StringBuilder();
   Stat root = new Stat();
-  List<Stat> files = new LinkedList<Stat>();
+  private List<Stat> files;
+  private final Emitter<Stat> emitter;
+  private int count = 0;  // Entries parsed so far.
+
+  // Bytes of a line which started in an earlier chunk.
+  private byte[] partial = new byte[256];
+  private int plen = 0;
+  private boolean inLine = false;  // Whether we're in the middle of a line.
+  private byte[] scratch;  // For copying out of buffers without arrays.
+
+  // The start and end of each whitespace-delimited token on the line.
+  private int[] ts = new int[16], te = new int[16];
+  private int nt;
+
+  // Permission strings are few and repeated, so share them.
+  private final Map<String, String> perms = new HashMap<String, String>();
+
+  private final TimeZone zone = TimeZone.getDefault();
+  private final long now = System.currentTimeMillis()/1000;
+  private final int year = Calendar.getInstance().get(Calendar.YEAR);
 
   // Create a parser with an optional known type suggestion.
   public FTPListParser() {
@@ -36,8 +63,25 @@ public class FTPListParser extends Bell<Stat> {
   } public FTPListParser(int type) {
     this(null, type);
   } public FTPListParser(Stat r, int type) {
+    this(r, type, null);
+  }
+
+  /**
+   * Create a parser which emits entries through {@code emitter} as they are
+   * parsed, instead of collecting them into the root. The emitter is left
+   * for the caller to ring.
+   */
+  public FTPListParser(Stat r, int type, Emitter<Stat> emitter) {
     root = (r != null) ? r : new Stat();
     list_type = type;
+    this.emitter = emitter;
+    if (emitter == null)
+      files = new ArrayList<Stat>();
+  }
+
+  // Get the number of entries parsed so far.
+  int count() {
+    return count;
   }
 
   // Check if a file should be ignored.
@@ -45,31 +89,6 @@ public class FTPListParser extends Bell<Stat> {
     return name == null || name.equals(".") || name.equals("..");
   }
 
-  // Split the data so that each entry can be parsed individually. Only
-  // feed this thing complete lines.
-  private static Pattern line_pattern =
-    Pattern.compile("[\\s\\00]*([^\\n\\r\\00]+)");
-  private void parseData(CharSequence data) {
-    Matcher m = line_pattern.matcher(data);
-
-    // Keep finding lines.
-    while (m.find())
-      parseLine(m.group(1));
-  }
-
-  // Parse a single line.
-  public void parseLine(String line) {
-    Stat ft = parseEntry(line);
-    if (ft == null || ft.name == null)
-      return;
-    ft.name = Intern.string(ft.name);
-    ft.perm = Intern.string(ft.perm);
-    if (ft.name.equals("."))
-      root.copy(ft);
-    else if (!ignoreName(ft.name))
-      files.add(ft);
-  }
-
   // Set the name of the root.
   public void name(String name) {
     root.name = name;
@@ -85,246 +104,496 @@ public class FTPListParser extends Bell<Stat> {
   // thing will exhibit undefined behavior.
   public void finish() {
     // Parse any buffered data.
-    if (sb.length() > 0) {
-      parseData(sb);
-      sb = null;
-    } ring(root.setFiles(files));
+    if (plen > 0)
+      parseLine(partial, 0, plen);
+    plen = 0;
+    inLine = false;
+    if (files != null)
+      root.setFiles(files);
+    ring(root);
   }
 
-  // Write a byte buffer to the file, decode as string, scan for newlines, and
-  // feed lines through parser. Presumably we're reading data where newlines
-  // are one byte so just look for newline characters.
+  // Feed the readable bytes of a buffer through the parser. The buffer's
+  // indices are left alone.
   public void write(ByteBuf b) {
-    byte[] bytes;
-    if (b.hasArray())
-      bytes = b.array();
-    else
-      b.getBytes(0, bytes = new byte[b.readableBytes()]);
-    write(bytes);
+    int i = b.readerIndex(), end = b.writerIndex();
+    if (b.hasArray()) {
+      int o = b.arrayOffset();
+      scan(b.array(), o+i, o+end);
+    } else {
+      if (scratch == null)
+        scratch = new byte[8192];
+      while (i < end) {
+        int n = Math.min(scratch.length, end-i);
+        b.getBytes(i, scratch, 0, n);
+        scan(scratch, 0, n);
+        i += n;
+      }
+    }
   } public void write(byte[] b) {
-    // Find last newline and chomp it, then buffer the rest.
-    int o;
-    out: for (o = b.length-1; o >= 0; o--) switch (b[0]) {
-      case '\r':
-      case '\n': break out;
-    } if (o >= 0) {  // If we found something...
-      parseData(sb.append(new String(b, 0, o+1)));
-      sb = new StringBuilder();
-      if (o != b.length-1)
-        sb.append(new String(b, o+1, b.length-o));
-    } else {  // Otherwise buffer the string.
-      sb.append(new String(b));
+    scan(b, 0, b.length);
+  }
+
+  // Split bytes into lines, skipping blank space and NULs between them, and
+  // parse each complete line. Lines which are complete within the chunk are
+  // parsed in place; the end of the chunk is kept for the next one.
+  private void scan(byte[] b, int i, int end) {
+    while (i < end) {
+      if (!inLine) {
+        while (i < end && (isSpace(b[i]) || isEOL(b[i])))
+          i++;
+        if (i == end)
+          return;
+        inLine = true;
+      }
+
+      int s = i;
+      while (i < end && !isEOL(b[i]))
+        i++;
+      if (i == end) {
+        keep(b, s, end);
+        return;
+      } if (plen > 0) {
+        keep(b, s, i);
+        parseLine(partial, 0, plen);
+        plen = 0;
+      } else {
+        parseLine(b, s, i);
+      } inLine = false;
+    }
+  }
+
+  // Append bytes to the partial line.
+  private void keep(byte[] b, int s, int e) {
+    int n = e-s;
+    if (plen+n > partial.length)
+      partial = Arrays.copyOf(partial, Math.max(2*partial.length, plen+n));
+    System.arraycopy(b, s, partial, plen, n);
+    plen += n;
+  }
+
+  private static boolean isEOL(byte c) {
+    return c == '\n' || c == '\r' || c == 0;
+  }
+
+  private static boolean isSpace(byte c) {
+    return c == ' ' || c == '\t' || c == '\f' || c == 0x0B;
+  }
+
+  // Parse a single line.
+  private void parseLine(byte[] b, int s, int e) {
+    Stat ft;
+    try {
+      ft = parseEntry(b, s, e);
+    } catch (RuntimeException ex) {
+      ft = null;
+    } if (ft == null || ft.name == null)
+      return;
+    if (ft.name.equals(".")) {
+      root.copy(ft);
+    } else if (!ignoreName(ft.name)) {
+      count++;
+      if (emitter != null)
+        emitter.emit(ft);
+      else
+        files.add(ft);
+    }
+  }
+
+  // Split a line into tokens at whitespace.
+  private void tokenize(byte[] b, int s, int e) {
+    nt = 0;
+    for (int i = s; i < e;) {
+      while (i < e && isSpace(b[i])) i++;
+      if (i == e) break;
+      if (nt == ts.length) {
+        ts = Arrays.copyOf(ts, 2*nt);
+        te = Arrays.copyOf(te, 2*nt);
+      } ts[nt] = i;
+      while (i < e && !isSpace(b[i])) i++;
+      te[nt++] = i;
     }
   }
 
   // Parse a line from the listing, return as an ad.
-  public Stat parseEntry(String line) {
-    String[] tokens;
-    Stat ft = new Stat();
+  private Stat parseEntry(byte[] b, int s, int e) {
+    Stat ft;
+    tokenize(b, s, e);
 
-    if (line.isEmpty())
+    if (nt == 0)
       return null;
 
-    // Split the line into tokens delimited by whitespace.
-    tokens = line.split("\\s+");
-
     // If we have a cached listing type, jump to the right parser.
     switch (list_type) {
       case 0:  // Unknown type, just check them all.
 
       case 'E':  // Check for an EPLF listing.
-      if (tokens.length >= 2 && tokens[0].startsWith("+")) try {
-        // We should tokenize on tab.
-        String[] t     = line.substring(1).split("\t+", 2);
-        String[] facts = t[0].split(",+");
-        String name    = t[1];
-
-        // Parse facts according to prefixes.
-        for (String f : facts) if (!f.isEmpty()) {
-          switch (f.charAt(0)) {
-            case 'm':  // Modification time.
-              ft.time = Long.parseLong(f.substring(1)); break;
-            case '/':  // It's a directory.
-              ft.dir = true; break;
-            case 'r':  // It's a file.
-              ft.file = true; break;
-            case 's':  // Size.
-              ft.size = Long.parseLong(f.substring(1)); break;
-            case 'u':  // Permissions.
-              if (f.charAt(1) == 'p')
-                ft.perm = f.substring(2);
-          }
-        }
-
-        // Everything else after the tab is the file name.
-        ft.name = name;
+      if ((ft = parseEPLF(b, s, e)) != null) {
         list_type = 'E';
-
         return ft;
-      } catch (Exception e) {
-        // Bad formatting, skip.
-        if (list_type != 0) break;
-      }
+      } if (list_type != 0) break;
 
       case 'M':  // Check for an MLSX listing.
-      if (tokens.length >= 2) try {
-        // We must trim leading and tokenize on a single space.
-        String[] t = line.replaceAll("^\\s+", "").split(" ", 2);
-        String[] facts = t[0].split(";+");
-        String name = t[1];
-
-        if (t.length != 2)
-          throw null;
-
-        // Parse each fact, splitting at =.
-        for (String f : facts) {
-          String s[] = f.split("=", 2);
-          String perm = null;
-          boolean unix = false;
-          s[0] = s[0].toLowerCase();
-
-          if (s.length != 2)
-            throw null;
-
-          if (s[0].length() < 4) {
-            continue;
-          } if (s[0].equals("type")) {
-            if (s[1].equalsIgnoreCase("file"))
-              ft.file = true;
-            else if (s[1].equalsIgnoreCase("dir"))
-              ft.dir = true;
-            else if (s[1].equalsIgnoreCase("cdir"))
-              ft.dir = true;
-            else if (s[1].equalsIgnoreCase("pdir"))
-              ft.dir = true;
-            else  // It's just something weird. Let's call it a file.
-              ft.file = true;
-          } else if (s[0].equals("modify")) {
-            DateFormat df = new SimpleDateFormat("yyyyMMDDHHmmss");
-            ft.time = df.parse(s[1]).getTime()/1000;
-          } else if (s[0].equals("size")) {
-            ft.size = Long.parseLong(s[1]);
-          } else if (s[0].equals("unix.mode")) {
-            int p = Integer.parseInt(s[1], 8);
-            unix = true;
-            perm = new String(new char[] {
-              (0 == (p & 0400)) ? '-' : 'r',
-              (0 == (p & 0200)) ? '-' : 'w',
-              (0 == (p & 0100)) ? '-' : 'x',
-              (0 == (p & 0040)) ? '-' : 'r',
-              (0 == (p & 0020)) ? '-' : 'w',
-              (0 == (p & 0010)) ? '-' : 'x',
-              (0 == (p & 0004)) ? '-' : 'r',
-              (0 == (p & 0002)) ? '-' : 'w',
-              (0 == (p & 0001)) ? '-' : 'x' });
-          } else if (s[0].equals("perm") && !unix) {
-            perm = s[1];
-          } if (perm != null) {
-            if (unix) perm = (ft.dir?'d':'-')+perm;
-            ft.perm = perm;
-          }
-        }
-
-        // Everything else after the tab is the file name.
-        ft.name = name;
-
+      if ((ft = parseMLSX(b, s, e)) != null) {
         list_type = 'M';
         return ft;
-      } catch (Exception e) {
-        // Bad formatting, skip.
-        if (list_type != 0) break;
-      }
+      } if (list_type != 0) break;
 
       case 'V':  // TODO: Check for a VMS listing.
       case 'C':  // TODO: Check for a CMS listing.
-      case 'W':  // TODO: Check for a Windows listing.
+
+      case 'W':  // Check for a Windows listing.
+      if ((ft = parseWindows(b, s, e)) != null) {
+        list_type = 'W';
+        return ft;
+      } if (list_type != 0) break;
+
       case 'O':  // TODO: Check for an OS2 listing.
 
       case 'U':  // Check for a Unix listing.
-      if (tokens.length >= 6) try {
-        String perm = tokens[0], name;
-        long time, size;
-        boolean dir = false;
-
-        // Check for permission flags.
-        if (perm.length() != 10 && perm.length() != 11)
-          throw null;
-        if (!perm.matches("[-bcdlpsw?DFam]([-r][-w].){3}.?"))
-          throw null;
-
-        // Scan for size token.
-        int i;  // Index of size token.
-        for (i = tokens.length-5; i > 1; i--) {
-          if (tokens[i].matches("[0-9]+"))
-          if (tokens[i+1].matches("[A-Za-z]{3}"))
-          if (tokens[i+2].matches("[0-9]{1,2}"))
-          if (tokens[i+3].matches("[0-9]{4}|[0-9]{1,2}(:[0-9]{2}){1,2}"))
-            break;
-        } if (i > 1) {
-          // Check if it's a directory.
-          dir = perm.charAt(0) == 'd' || perm.charAt(0) == 'D';
-
-          // Parse size.
-          try {
-            size = Long.parseLong(tokens[i]);
-          } catch (Exception e) {
-            size = -1;
-          }
-
-          // Parse time.
-          try {
-            String d = tokens[i+1]+" "+tokens[i+2]+" "+tokens[i+3];
-            if (tokens[i+3].indexOf(":") > 0) {
-              DateFormat df = new SimpleDateFormat("MMM d H:mm");
-              Calendar stupid = Calendar.getInstance();
-              int year = stupid.get(Calendar.YEAR);
-              stupid.setTime(df.parse(d));
-              stupid.set(Calendar.YEAR, year);
-              Calendar calendar = Calendar.getInstance();
-              time = stupid.getTimeInMillis()/1000;
-            } else {
-              DateFormat df = new SimpleDateFormat("MMM d yyyy");
-              time = df.parse(d).getTime()/1000;
-            }
-          } catch (Exception e) {
-            time = -1;
-          }
-
-          // Kind of silly thing to get the name.
-          try {
-            String[] t = line.split("\\s+", i+4);
-            t = t[t.length-1].split("\\s", 2);
-            name = t[1];
-
-            // Fix symlink names.
-            if (perm.charAt(0) == 'l') {
-              if (name.endsWith("/"))
-                dir = true;
-              name = name.replaceAll(" -> .*$", "");
-            }
-          } catch (Exception e) {
-            name = tokens[tokens.length-1];
-          }
-
-          ft.name = name;
-          if (time > 0)
-            ft.time = time;
-          if (size > 0 && !dir)
-            ft.size = size;
-          ft.dir = dir;
-          ft.file = !dir;
-          ft.perm = perm;
-
-          list_type = 'U';
-          return ft;
-        }
-      } catch (Exception e) {
-        // Bad formatting, skip.
-        if (list_type != 0) break;
-      }
+      if ((ft = parseUnix(b, s, e)) != null) {
+        list_type = 'U';
+        return ft;
+      } if (list_type != 0) break;
 
       case 'w':  // TODO: Check for a Windows 16-bit listing.
       case 'D':  // TODO: Check for a /bin/dls listing.
     } return null;
   }
+
+  // EPLF: +facts,separated,by,commas<tab>name
+  private Stat parseEPLF(byte[] b, int s, int e) {
+    if (nt < 2 || b[s] != '+')
+      return null;
+    int tab = indexOf(b, s, e, '\t');
+    if (tab < 0)
+      return null;
+    Stat ft = new Stat();
+
+    // Parse facts according to prefixes.
+    for (int f = s+1; f < tab;) {
+      int fe = indexOf(b, f, tab, ',');
+      if (fe < 0) fe = tab;
+      if (fe > f) switch (b[f]) {
+        case 'm':  // Modification time.
+          ft.time = number(b, f+1, fe); break;
+        case '/':  // It's a directory.
+          ft.dir = true; break;
+        case 'r':  // It's a file.
+          ft.file = true; break;
+        case 's':  // Size.
+          ft.size = number(b, f+1, fe); break;
+        case 'u':  // Permissions.
+          if (fe > f+1 && b[f+1] == 'p')
+            ft.perm = perm(b, f+2, fe);
+      } f = fe+1;
+    }
+
+    // Everything else after the tab is the file name.
+    int n = tab;
+    while (n < e && b[n] == '\t') n++;
+    ft.name = string(b, n, e);
+    return ft;
+  }
+
+  // MLSX: fact=value;fact=value; name
+  private Stat parseMLSX(byte[] b, int s, int e) {
+    if (nt < 2)
+      return null;
+    int sp = indexOf(b, s, e, ' ');
+    if (sp < 0)
+      return null;
+    Stat ft = new Stat();
+    String perm = null;
+    int mode = -1;
+
+    // Parse each fact, splitting at =.
+    for (int f = s; f < sp;) {
+      int fe = indexOf(b, f, sp, ';');
+      if (fe < 0) fe = sp;
+      if (fe > f) {
+        int eq = indexOf(b, f, fe, '=');
+        if (eq < 0)
+          return null;
+        if (matches(b, f, eq, "type")) {
+          if (matches(b, eq+1, fe, "dir")  ||
+              matches(b, eq+1, fe, "cdir") ||
+              matches(b, eq+1, fe, "pdir"))
+            ft.dir = true;
+          else  // It's a file, or something weird we'll call a file.
+            ft.file = true;
+        } else if (matches(b, f, eq, "modify")) {
+          ft.time = mlsxTime(b, eq+1, fe);
+        } else if (matches(b, f, eq, "size")) {
+          ft.size = number(b, eq+1, fe);
+        } else if (matches(b, f, eq, "unix.mode")) {
+          mode = (int) number(b, eq+1, fe, 8);
+        } else if (matches(b, f, eq, "perm")) {
+          perm = perm(b, eq+1, fe);
+        }
+      } f = fe+1;
+    }
+
+    // A UNIX mode is more informative than MLSX permissions.
+    if (mode >= 0) {
+      char[] p = new char[10];
+      p[0] = ft.dir ? 'd' : '-';
+      for (int i = 0; i < 9; i++)
+        p[i+1] = ((mode & (0400 >> i)) == 0) ? '-' : "rwx".charAt(i%3);
+      perm = perm(new String(p));
+    } ft.perm = perm;
+
+    // Everything after the space is the file name.
+    ft.name = string(b, sp+1, e);
+    return ft;
+  }
+
+  // Windows: MM-DD-YY HH:MMAM <DIR>|size name
+  private Stat parseWindows(byte[] b, int s, int e) {
+    if (nt < 4)
+      return null;
+    int[] date = fields(b, ts[0], te[0], '-', 3);
+    int[] time = fields(b, ts[1], te[1]-2, ':', 2);
+    if (date == null || time == null)
+      return null;
+
+    // The AM/PM may be on the time, or be a token of its own.
+    int k = 1;
+    byte ap = b[te[1]-2];
+    if ((ap|0x20) != 'a' && (ap|0x20) != 'p') {
+      time = fields(b, ts[1], te[1], ':', 2);
+      if (time == null || nt < 5 || te[2]-ts[2] != 2)
+        return null;
+      ap = b[ts[2]];
+      k = 2;
+    } if (((ap|0x20) != 'a' && (ap|0x20) != 'p') || time[0] > 12)
+      return null;
+
+    Stat ft = new Stat();
+    int y = date[2];
+    if (y < 100)
+      y += (y < 70) ? 2000 : 1900;
+    int h = time[0]%12 + (((ap|0x20) == 'p') ? 12 : 0);
+    ft.time = local(y, date[0], date[1], h, time[1], 0);
+
+    k++;
+    if (matches(b, ts[k], te[k], "<dir>")) {
+      ft.dir = true;
+    } else {
+      ft.size = number(b, ts[k], te[k]);
+      ft.file = true;
+    } ft.name = string(b, ts[k+1], e);
+    return ft;
+  }
+
+  // Unix: perms links owner group size month day time|year name
+  private Stat parseUnix(byte[] b, int s, int e) {
+    if (nt < 6)
+      return null;
+
+    // Check for permission flags.
+    int p = ts[0], pl = te[0]-p;
+    if (pl != 10 && pl != 11)
+      return null;
+    if ("-bcdlpsw?DFam".indexOf(b[p]) < 0)
+      return null;
+    for (int i = 0; i < 3; i++) {
+      if (b[p+1+3*i] != '-' && b[p+1+3*i] != 'r') return null;
+      if (b[p+2+3*i] != '-' && b[p+2+3*i] != 'w') return null;
+    }
+
+    // Scan for size token.
+    int i;  // Index of size token.
+    for (i = nt-5; i > 1; i--) {
+      if (digits(i, b, 1, 19))
+      if (letters(i+1, b, 3))
+      if (digits(i+2, b, 1, 2))
+      if (digits(i+3, b, 4, 4) || fields(b, ts[i+3], te[i+3], ':', 2) != null
+                               || fields(b, ts[i+3], te[i+3], ':', 3) != null)
+        break;
+    } if (i <= 1)
+      return null;
+
+    Stat ft = new Stat();
+
+    // Check if it's a directory.
+    boolean dir = b[p] == 'd' || b[p] == 'D';
+
+    // Parse size.
+    long size = number(b, ts[i], te[i]);
+
+    // Parse time. Recent times don't give a year, so use the year which puts
+    // the time closest to now without being far into the future.
+    long time = -1;
+    int month = month(b, ts[i+1]);
+    int day = (int) number(b, ts[i+2], te[i+2]);
+    int[] clock = fields(b, ts[i+3], te[i+3], ':', 2);
+    if (clock == null)
+      clock = fields(b, ts[i+3], te[i+3], ':', 3);
+    if (month > 0 && clock != null) {
+      time = local(year, month, day, clock[0], clock[1], 0);
+      if (time > now+86400)
+        time = local(year-1, month, day, clock[0], clock[1], 0);
+    } else if (month > 0) {
+      time = local((int) number(b, ts[i+3], te[i+3]), month, day, 0, 0, 0);
+    }
+
+    // The name is everything after the whitespace following the time.
+    int n = Math.min(te[i+3]+1, e);
+    if (b[p] == 'l') {
+      // Fix symlink names.
+      if (b[e-1] == '/')
+        dir = true;
+      int arrow = indexOf(b, n, e, " -> ");
+      if (arrow >= 0) e = arrow;
+    }
+
+    ft.name = string(b, n, e);
+    if (time > 0)
+      ft.time = time;
+    if (size > 0 && !dir)
+      ft.size = size;
+    ft.dir = dir;
+    ft.file = !dir;
+    ft.perm = perm(b, p, p+pl);
+    return ft;
+  }
+
+  // Check if token t is between min and max digits long.
+  private boolean digits(int t, byte[] b, int min, int max) {
+    int n = te[t]-ts[t];
+    if (n < min || n > max)
+      return false;
+    for (int i = ts[t]; i < te[t]; i++)
+      if (b[i] < '0' || b[i] > '9') return false;
+    return true;
+  }
+
+  // Check if token t is n letters long.
+  private boolean letters(int t, byte[] b, int n) {
+    if (te[t]-ts[t] != n)
+      return false;
+    for (int i = ts[t]; i < te[t]; i++)
+      if ((b[i]|0x20) < 'a' || (b[i]|0x20) > 'z') return false;
+    return true;
+  }
+
+  // Get the month number of a three-letter month name, or 0.
+  private static int month(byte[] b, int s) {
+    for (int m = 0; m < 12; m++) {
+      String name = MONTHS[m];
+      if ((b[s]|0x20) == name.charAt(0) &&
+          (b[s+1]|0x20) == name.charAt(1) &&
+          (b[s+2]|0x20) == name.charAt(2))
+        return m+1;
+    } return 0;
+  }
+
+  // Split a range into exactly n numeric fields at sep, or return null.
+  private static int[] fields(byte[] b, int s, int e, char sep, int n) {
+    int[] f = new int[n];
+    int k = 0, digits = 0;
+    for (int i = s; i < e; i++) {
+      byte c = b[i];
+      if (c == sep) {
+        if (digits == 0 || ++k == n) return null;
+        digits = 0;
+      } else if (c >= '0' && c <= '9' && digits < 4) {
+        f[k] = f[k]*10 + (c-'0');
+        digits++;
+      } else {
+        return null;
+      }
+    } return (k == n-1 && digits > 0) ? f : null;
+  }
+
+  // Parse an MLSX time, YYYYMMDDHHMMSS[.sss] in UTC, into Unix time.
+  private static long mlsxTime(byte[] b, int s, int e) {
+    if (e-s < 14)
+      throw new NumberFormatException("bad time");
+    int y  = (int) number(b, s,    s+4);
+    int mo = (int) number(b, s+4,  s+6);
+    int d  = (int) number(b, s+6,  s+8);
+    int h  = (int) number(b, s+8,  s+10);
+    int mi = (int) number(b, s+10, s+12);
+    int se = (int) number(b, s+12, s+14);
+    return epochDay(y, mo, d)*86400 + h*3600 + mi*60 + se;
+  }
+
+  // Get Unix time for a time in the local time zone.
+  private long local(int y, int mo, int d, int h, int mi, int s) {
+    long t = epochDay(y, mo, d)*86400 + h*3600 + mi*60 + s;
+    return t - zone.getOffset(t*1000)/1000;
+  }
+
+  // Get the number of days between 1970-01-01 and a date.
+  private static long epochDay(int y, int m, int d) {
+    if (m < 1 || m > 12 || d < 1 || d > 31)
+      throw new NumberFormatException("bad date");
+    if (m <= 2) y--;
+    long era = (y >= 0 ? y : y-399) / 400;
+    long yoe = y - era*400;
+    long doy = (153*(m + (m > 2 ? -3 : 9)) + 2)/5 + d-1;
+    long doe = yoe*365 + yoe/4 - yoe/100 + doy;
+    return era*146097 + doe - 719468;
+  }
+
+  // Parse a decimal number.
+  private static long number(byte[] b, int s, int e) {
+    return number(b, s, e, 10);
+  }
+
+  // Parse a number in the given radix.
+  private static long number(byte[] b, int s, int e, int radix) {
+    if (s >= e)
+      throw new NumberFormatException("empty number");
+    long n = 0;
+    for (int i = s; i < e; i++) {
+      int c = b[i]-'0';
+      if (c < 0 || c >= radix)
+        throw new NumberFormatException("bad digit");
+      n = n*radix + c;
+    } return n;
+  }
+
+  // Check if a range matches a lowercase string, ignoring case.
+  private static boolean matches(byte[] b, int s, int e, String str) {
+    if (e-s != str.length())
+      return false;
+    for (int i = 0; i < str.length(); i++)
+      if ((b[s+i]|0x20) != str.charAt(i)) return false;
+    return true;
+  }
+
+  // Find a byte in a range.
+  private static int indexOf(byte[] b, int s, int e, char c) {
+    for (int i = s; i < e; i++)
+      if (b[i] == c) return i;
+    return -1;
+  }
+
+  // Find a string of ASCII characters in a range.
+  private static int indexOf(byte[] b, int s, int e, String str) {
+    int n = str.length();
+    outer: for (int i = s; i <= e-n; i++) {
+      for (int j = 0; j < n; j++)
+        if (b[i+j] != str.charAt(j)) continue outer;
+      return i;
+    } return -1;
+  }
+
+  private static String string(byte[] b, int s, int e) {
+    return new String(b, s, e-s, UTF8);
+  }
+
+  // Get a shared permission string.
+  private String perm(byte[] b, int s, int e) {
+    return perm(string(b, s, e));
+  } private String perm(String p) {
+    String shared = perms.get(p);
+    if (shared != null)
+      return shared;
+    perms.put(p, p);
+    return p;
+  }
 }
@@ -1,9 +1,12 @@
 package stork.module.ftp;
 
+import java.util.*;
+
 import io.netty.buffer.*;
 
 import stork.cred.*;
 import stork.feather.*;
+import stork.feather.util.*;
 import stork.module.*;
 import stork.scheduler.*;
 import stork.util.*;
@@ -11,65 +14,112 @@ import stork.util.*;
 import static stork.module.ftp.FTPListCommand.*;
 
 public class FTPResource extends Resource<FTPSession, FTPResource> {
+  // Entries a streaming listing lets wait for the consumer before pausing.
+  private static final int BACKLOG = 4096;
+
   FTPResource(FTPSession session, Path path) {
     super(session, path);
   }
 
   public synchronized Emitter<String> list() {
-    return new Emitter<String>() {{
-      final Emitter e = this;
-      stat(true).new Promise() {
-        public void done(Stat s) {
-          String[] names = new String[s.files.length];
-          for (int i = 0; i < s.files.length; i++)
-            names[i] = s.files[i].name;
-          e.emitAll(names);
-          e.ring();
-        } public void fail(Throwable t) {
-          e.ring(t);
-        }
-      };
-    }};
+    final Emitter<String> names = new Emitter<String>();
+    listStats().new ForEach() {
+      public void each(Stat s) {
+        names.emit(s.name);
+      } public void done() {
+        names.ring();
+      } public void fail(Throwable t) {
+        names.ring(t);
+      }
+    };
+    return names;
+  }
+
+  // Entries are emitted as the listing is parsed. Data channel listings are
+  // preferred, and reading from them pauses while too many entries are
+  // waiting for the consumer.
+  public synchronized Emitter<Stat> listStats() {
+    final Emitter<Stat> emitter = new Emitter<Stat>();
+    stat(true, emitter).new Promise() {
+      public void done()            { emitter.ring(); }
+      public void fail(Throwable t) { emitter.ring(t); }
+    };
+    return emitter;
   }
 
   public synchronized Bell<Stat> stat() {
-    return stat(false);
+    return stat(false, null);
   }
 
-  // Pass true if listing is necessary.
-  private synchronized Bell<Stat> stat(final boolean list) {
+  // Pass true if listing is necessary. If emitter is given, entries are
+  // emitted through it rather than collected in the returned stat.
+  private synchronized Bell<Stat> stat(final boolean list,
+                                       final Emitter<Stat> emitter) {
+    final FTPListCommand[] commands = (emitter == null) ?
+      FTPListCommand.values() : FTPListCommand.streamingOrder();
     return initialize().new AsBell<Stat>() {
+      private FTPSession lister = null;  // The session listing is done on.
       private FTPChannel channel = null;
 
       // This will be called when initialization is done. It should start the
       // chain reaction that results in listing commands being tried until we
       // find one that works.
+      //
+      // Listing over a stream mode data channel would throw away the
+      // extended block mode streams cached for transfers on this session, so
+      // if transfers here use them, the listing is done over another session
+      // from the pool, if one can be had right away.
       public Bell<Stat> convert(FTPResource me) {
-        channel = session.channel;
-        tryCommand(FTPListCommand.values()[0]);
+        SessionPool pool = session.pool();
+        Bell<FTPSession> other = null;
+        if (pool != null &&
+            session.channel.cachesStreams(session.parallelism))
+          other = pool.tryLease(
+            new FTPSession(session.uri, session.credential));
+        if (other == null) {
+          listOn(session);
+        } else other.new Promise() {
+          public void done(FTPSession s) {
+            s.copySettings(session);
+            listOn(s);
+          } public void fail(Throwable t) {
+            listOn(session);
+          }
+        };
         return null;
       }
 
+      // Start listing on a session, giving it back to the pool once the
+      // listing is done if it isn't this resource's session.
+      private void listOn(final FTPSession s) {
+        lister = s;
+        channel = s.channel;
+        if (s != session) new Promise() {
+          public void always() { s.pool().release(s); }
+        };
+        tryCommand(0);
+      }
+
       // This will call itself until it finds a supported command. If the
       // command is not supported, call itself again with the next available
-      // command. If cmd is null, that means we've tried all commands.
-      private void tryCommand(final FTPListCommand cmd) {
+      // command. If we run out of commands, that means we've tried them all.
+      private void tryCommand(final int i) {
         if (isDone()) {
           return;
-        } if (cmd == null) {
+        } if (i >= commands.length) {
           ring(new Exception("Listing is not supported."));
-        } else channel.supports(cmd.toString()).new AsBell<Boolean>() {
+        } else channel.supports(commands[i].toString()).new AsBell<Boolean>() {
           public Bell<Boolean> convert(Boolean supported) {
             if (supported && list)
-              return session.cmdCanList(cmd);
+              return lister.cmdCanList(commands[i]);
             return new Bell<Boolean>(supported);
           } public void done(Boolean supported) {
             if (supported)
-              sendCommand(cmd);
+              sendCommand(i);
             else
-              tryCommand(cmd.next());
+              tryCommand(i+1);
           } public void fail() {
-            tryCommand(cmd.next());
+            tryCommand(i+1);
           }
         };
       }
@@ -108,20 +158,24 @@ public class FTPResource extends Resource<FTPSession, FTPResource> {
 
       // This will get called once we've found a command that is supported.
       // However, if this fails, fall back to the next command.
-      private void sendCommand(final FTPListCommand cmd) {
+      private void sendCommand(final int i) {
+        final FTPListCommand cmd = commands[i];
         if (isDone())
           return;
 
         char hint = cmd.toString().startsWith("M") ? 'M' : 0;
         Stat base = new Stat(name());
         final Bell<Stat> tb = this;
-        final FTPListParser parser = new FTPListParser(base, hint) {
+        final FTPListParser parser = new FTPListParser(base, hint, emitter) {
           // The parser should ring this bell if it's successful.
           public void done(Stat stat) {
             filterStat(stat).promise(tb);
-          } public void fail() {
-            // TODO: Check for permanent errors.
-            tryCommand(cmd.next());
+          } public void fail(Throwable t) {
+            // Entries which were already emitted can't be taken back.
+            if (count() > 0)
+              tb.ring(t);
+            else  // TODO: Check for permanent errors.
+              tryCommand(i+1);
           }
         };
 
@@ -130,9 +184,9 @@ public class FTPResource extends Resource<FTPSession, FTPResource> {
         //Log.fine("Trying list command: ", cmd);
 
         // When doing MLSx listings, we can reduce the response size with this.
-        if (hint == 'M' && !session.mlstOptsAreSet) {
+        if (hint == 'M' && !lister.mlstOptsAreSet) {
           channel.new Command("OPTS MLST Type*;Size*;Modify*;UNIX.mode*");
-          session.mlstOptsAreSet = true;
+          lister.mlstOptsAreSet = true;
         }
 
         // Do a control channel listing, if specified.
@@ -150,18 +204,29 @@ public class FTPResource extends Resource<FTPSession, FTPResource> {
             }
           };
 
-        // Otherwise we're doing a data channel listing.
-        else channel.new DataChannel() {
+        // Otherwise we're doing a data channel listing. It's done once the
+        // command completes and the data channel has closed.
+        else channel.new DataChannel(lister.passive) {
           {
             onClose().new Promise() {
-              public void always() {
-              }
+              public void fail(Throwable t) { parser.ring(t); }
             };
+            start();
           }
           public Bell init() {
-            return channel.new Command(cmd, makePath()).expectComplete();
+            Bell<FTPChannel.Reply> listed =
+              new Command(cmd, makePath()).expectComplete();
+            Bell<Object> done = Bell.all(listed, onClose());
+            done.new Promise() {
+              public void done()            { parser.finish(); }
+              public void fail(Throwable t) { parser.ring(t); }
+            };
+            return listed;
           } public void receive(Slice slice) {
-            parser.write(slice.asBytes());
+            parser.write(slice.asByteBuf());
+            slice.release();
+            if (emitter != null)
+              pauseUntil(emitter.drained(BACKLOG));
           }
         };
       }
@@ -180,18 +245,32 @@ public class FTPResource extends Resource<FTPSession, FTPResource> {
     }.as(this);
   }
 
-  // Remove a file or directory.
+  // Remove a file or directory, along with everything in it. The tree is
+  // crawled depth-first and emptied from the bottom up.
   public Bell<FTPResource> delete() {
     if (!isSingleton())
       throw new UnsupportedOperationException();
-    return stat().new AsBell<FTPChannel.Reply>() {
-      public Bell<FTPChannel.Reply> convert(Stat stat) {
-        if (stat.dir)
-          return session.channel.new Command("RMD", makePath());
-        else
-          return session.channel.new Command("DELE", makePath());
+    Crawler<FTPResource> crawler = new Crawler<FTPResource>(this, true) {
+      protected Bell operate(Path path, FTPResource r, Stat stat) {
+        return r.remove(stat.dir);
+      } protected void failed(Path path, Throwable t) {
+        ring(t);
       }
-    }.as(this);
+    };
+    crawler.depth_first = true;
+    crawler.bottom_up = true;
+    crawler.start();
+    return crawler.as(this);
+  }
+
+  // Remove just this file or empty directory.
+  private Bell<FTPChannel.Reply> remove(final boolean dir) {
+    return initialize().new AsBell<FTPChannel.Reply>() {
+      public Bell<FTPChannel.Reply> convert(FTPResource r) {
+        String cmd = dir ? "RMD" : "DELE";
+        return session.channel.new Command(cmd, makePath()).expectComplete();
+      }
+    };
   }
 
   public Sink<FTPResource> sink() {
@@ -202,6 +281,55 @@ public class FTPResource extends Resource<FTPSession, FTPResource> {
     return new FTPTap(this);
   }
 
+  // Transfers are resumed by sending REST before STOR or RETR, as when
+  // reading ranges.
+  public Sink<FTPResource> sink(long offset) {
+    return new FTPSink(this, offset);
+  }
+
+  public Tap<FTPResource> tap(long offset) {
+    return new FTPTap(this, offset, -1);
+  }
+
+  // Large files are split into ranges, each read over its own session with
+  // REST and RETR. This works with any server that can restart transfers.
+  // The sessions for ranges after the first come from the pool this session
+  // is in, as many as it can spare right away. Waiting for more could leave
+  // jobs each holding sessions the others are waiting for.
+  public List<Tap<FTPResource>> taps(long size) {
+    long n = size / Math.max(1, session.stripe_size);
+    n = Math.min(n, session.stripes);
+    SessionPool pool = session.pool();
+    List<Bell<FTPSession>> leases = new ArrayList<Bell<FTPSession>>();
+    for (int i = 1; i < n; i++) {
+      FTPSession s = new FTPSession(session.uri, session.credential);
+      Bell<FTPSession> lease =
+        (pool == null) ? new Bell<FTPSession>(s) : pool.tryLease(s);
+      if (lease == null)
+        break;
+      leases.add(lease);
+    } n = leases.size()+1;
+    if (n <= 1)
+      return super.taps(size);
+    List<Tap<FTPResource>> taps = new ArrayList<Tap<FTPResource>>();
+    long range = size / n;
+    for (int i = 0; i < n; i++) {
+      long offset = i * range;
+      long length = (i == n-1) ? size-offset : range;
+      if (i == 0)
+        taps.add(new FTPTap(this, offset, length));
+      else
+        taps.add(new FTPTap(this, leases.get(i-1), offset, length));
+    } return taps;
+  }
+
+  // Transfers between two FTP servers go directly from server to server.
+  public <D extends Resource<?,D>> Transfer<FTPResource,D> transferTo(D dest) {
+    if (dest instanceof FTPResource)
+      return (Transfer) new FTPTransfer(this, (FTPResource) dest);
+    return super.transferTo(dest);
+  }
+
   // Stringify and relativize a path.
   String makePath() {
     String p = path.toString();
@@ -214,20 +342,98 @@ public class FTPResource extends Resource<FTPSession, FTPResource> {
 }
 
 /**
- * An FTP {@code Tap} which manages data channels autonomonously.
+ * An FTP {@code Tap} which manages data channels autonomonously. When the
+ * data channel has parallel streams, data may arrive out of order. It is then
+ * passed on as it arrives if the pipeline accepts that, or reassembled in
+ * order otherwise, holding back streams which get too far ahead of the rest.
+ * Since the server sends, parallel streams are opened in
+ * active mode unless that fails. A tap may also read just a range of a file,
+ * in which case it reads over a single stream.
  */
 class FTPTap extends Tap<FTPResource> {
   private FTPChannel.DataChannel dc;
+  private FTPResource resource;  // Where the data is read from.
+  private final Bell<FTPSession> lease;  // A session of its own, if any.
+  private boolean released = false;
+  private Throwable aborted;  // Set if the tap was cut short.
+  // Slices which arrived ahead of the next offset, when reassembling. Once
+  // more than MAX_EARLY bytes have arrived early, streams delivering early
+  // slices are held until filled rings, when the next offset arrives.
+  private static final long MAX_EARLY = 16 << 20;
+  private final TreeMap<Long,Slice> early = new TreeMap<Long,Slice>();
+  private long earlyBytes = 0;
+  private Bell filled;
+  private long next = 0;  // The offset of the next slice to drain.
+  private final long offset, end;  // The range being read; end is -1 for EOF.
+  private boolean ended = false;  // Set once the range has been read.
+
+  public FTPTap(FTPResource resource) { this(resource, 0, -1); }
+
+  public FTPTap(FTPResource resource, long offset, long length) {
+    this(resource, null, offset, length);
+  }
 
-  public FTPTap(FTPResource resource) { super(resource); }
+  // Read the range over a session of its own once lease rings with it. The
+  // session takes on the settings of the resource's session, and is given
+  // back to its pool, or closed if it isn't pooled, once the tap finishes.
+  public FTPTap(FTPResource resource, Bell<FTPSession> lease,
+                long offset, long length) {
+    super(resource);
+    this.resource = resource;
+    this.lease = lease;
+    this.offset = next = offset;
+    this.end = (length < 0) ? -1 : offset+length;
+  }
 
   protected Bell start(final Bell bell) {
-    dc = source().session.channel.new DataChannel() {
+    Bell<FTPResource> ready = (lease == null) ? source().initialize() :
+      lease.new AsBell<FTPResource>() {
+        public Bell<FTPResource> convert(FTPSession s) {
+          s.copySettings(source().session);
+          resource = s.select(source().path);
+          return resource.initialize();
+        }
+      };
+    return ready.new AsBell<FTPChannel.DataChannel>() {
+      public Bell<FTPChannel.DataChannel> convert(FTPResource r) {
+        return open(bell);
+      }
+    };
+  }
+
+  // Open a data channel and start reading once bell rings.
+  private synchronized Bell<FTPChannel.DataChannel> open(Bell bell) {
+    if (aborted != null)
+      return new Bell<FTPChannel.DataChannel>(aborted);
+    FTPSession session = resource.session;
+    final int parallelism =
+      (end < 0 && offset == 0) ? session.parallelism : 1;
+    // The sender of a parallel extended block mode transfer has to be the one
+    // connecting, so the server is asked to connect to us first in that case.
+    boolean passive =
+      session.passive && !session.channel.isParallel(parallelism);
+    dc = session.channel.new DataChannel(passive, parallelism) {
       public Bell init() {
-        String path = source().makePath();
-        return new Command("RETR", path).expectComplete();
-      } public void receive(Slice slice) {  
-        pauseUntil(drain(slice));
+        final String path = resource.makePath();
+        if (isExtended()) {
+          int n = parallelism;
+          new Command("OPTS RETR", "Parallelism="+n+","+n+","+n+";");
+        } if (offset == 0)
+          return new Command("RETR", path).expectComplete();
+        return new Command("REST", offset).expect(350).new AsBell<Reply>() {
+          public Bell<Reply> convert(Reply r) {
+            return new Command("RETR", path).expectComplete();
+          }
+        };
+      } public Bell offer(Slice slice) {
+        if (isExtended() && !unorderedAccepted())
+          return reassemble(slice);
+        return super.offer(slice);
+      } public void receive(Slice slice) {
+        if (!isExtended())
+          stream(slice);
+        else
+          pauseUntil(drain(slice));
       }
     }.startWhen(bell);
     dc.onClose().new Promise() {
@@ -236,28 +442,195 @@ class FTPTap extends Tap<FTPResource> {
     };
     return dc.onConnect();
   }
+
+  // Drain data arriving over a single stream, tagging it with its offset and
+  // closing the data channel once the end of the range has been read.
+  private synchronized void stream(Slice slice) {
+    if (ended) {
+      slice.release();
+      return;
+    } ByteBuf buf = slice.asByteBuf();
+    if (end >= 0 && next+buf.readableBytes() >= end) {
+      buf = buf.slice(buf.readerIndex(), (int) (end-next));
+      ended = true;
+    }
+    slice = new Slice(buf, next);
+    next += slice.length();
+    dc.pauseUntil(drain(slice));
+    if (ended) {
+      // Tell the server to stop sending, so the session can be used again.
+      dc.close();
+      resource.session.channel.new Command("ABOR");
+    }
+  }
+
+  // Drain slices in order of offset, holding onto those that arrive early.
+  // Each stream delivers its blocks in order, so the next slice is always at
+  // the head of some stream other than those delivering early slices. Those
+  // can be held once too much has arrived early, and the returned bell is
+  // what the stream the slice arrived on should be held until.
+  private Bell reassemble(Slice slice) {
+    Bell gap;
+    synchronized (this) {
+      if (aborted != null) {
+        slice.release();
+        return null;
+      } if (slice.offset() != next) {
+        early.put(slice.offset(), slice);
+        earlyBytes += slice.length();
+        if (earlyBytes <= MAX_EARLY)
+          return null;
+        if (filled == null)
+          filled = new Bell();
+        return filled;
+      }
+
+      Bell bell = null;
+      while (slice != null) {
+        next += slice.length();
+        bell = drain(slice);
+        if ((slice = early.remove(next)) != null)
+          earlyBytes -= slice.length();
+      }
+      dc.pauseUntil(bell);
+      gap = filled;
+      filled = null;
+    }
+
+    // Let the held streams go outside of the lock, since reading may call
+    // back into the tap.
+    if (gap != null)
+      gap.ring();
+    return null;
+  }
+
+  // Release any slices which arrived early, and let held streams go.
+  private void dropEarly() {
+    for (Slice slice : early.values())
+      slice.release();
+    early.clear();
+    earlyBytes = 0;
+    if (filled != null)
+      filled.ring();
+    filled = null;
+  }
+
+  protected synchronized void finish() {
+    if (early.isEmpty() && (end < 0 || next >= end)) {
+      super.finish();
+      release(true);
+    } else {
+      dropEarly();
+      finish(new RuntimeException("Data is missing from transfer."));
+    }
+  }
+
+  protected synchronized void finish(Throwable t) {
+    super.finish(t);
+    release(false);
+  }
+
+  // Stop reading, and have the server stop sending if it has started. The
+  // returned bell rings once the server has replied to the abort.
+  protected synchronized Bell abort(Throwable t) {
+    super.abort(t);
+    aborted = t;
+    dropEarly();
+    if (dc == null) {
+      release(false);
+      return null;
+    } return dc.abort(t);
+  }
+
+  // Give back the tap's own session, if it has one. A session which failed
+  // is closed rather than reused.
+  private void release(final boolean ok) {
+    if (lease == null || released)
+      return;
+    released = true;
+    lease.new Promise() {
+      public void done(FTPSession s) {
+        SessionPool pool = s.pool();
+        if (ok && pool != null)
+          pool.release(s);
+        else
+          s.close();
+      }
+    };
+  }
 }
 
 /**
- * An FTP {@code Sink} which manages data channels autonomonously.
+ * An FTP {@code Sink} which manages data channels autonomonously. A sink may
+ * also store from an offset, keeping what the file already has before it, in
+ * which case it stores over a single stream.
  */
 class FTPSink extends Sink<FTPResource> {
   private FTPChannel.DataChannel dc;
-  public FTPSink(FTPResource resource) { super(resource); }
+  private final long offset;
+  private Throwable aborted;  // Set if the sink was cut short.
+
+  public FTPSink(FTPResource resource) { this(resource, 0); }
+
+  public FTPSink(FTPResource resource, long offset) {
+    super(resource);
+    this.offset = offset;
+  }
 
   protected Bell start() {
-    dc = destination().session.channel.new DataChannel() {
+    return destination().initialize().new AsBell<FTPChannel.DataChannel>() {
+      public Bell<FTPChannel.DataChannel> convert(FTPResource r) {
+        return open(r.session);
+      }
+    }.debugOnRing();
+  }
+
+  // Open a data channel to store the file over.
+  private synchronized Bell<FTPChannel.DataChannel> open(FTPSession session) {
+    if (aborted != null)
+      return new Bell<FTPChannel.DataChannel>(aborted);
+    int parallelism = (offset == 0) ? session.parallelism : 1;
+    dc = session.channel.new DataChannel(session.passive, parallelism) {
       public Bell init() {
-        String path = destination().makePath();
-        return new Command("STOR", path).expectComplete();
+        final String path = destination().makePath();
+        if (offset == 0)
+          return new Command("STOR", path).expectComplete();
+        return new Command("REST", offset).expect(350).new AsBell<Reply>() {
+          public Bell<Reply> convert(Reply r) {
+            return new Command("STOR", path).expectComplete();
+          }
+        };
       }
     };
-    return dc.onConnect().debugOnRing();
+    return dc.onConnect();
   }
 
   public Bell drain(final Slice slice) {
     return dc.send(slice);
   }
 
-  public void finish() { }
+  public Bell drain(final Region region) {
+    return dc.send(region);
+  }
+
+  protected boolean acceptsRegions() {
+    return true;
+  }
+
+  // Blocks carry their offsets in extended block mode.
+  protected boolean acceptsUnordered() {
+    return dc != null && dc.isExtended();
+  }
+
+  public void finish() {
+    dc.finish();
+  }
+
+  // Stop storing, and have the server stop if it has started. The returned
+  // bell rings once the server has replied to the abort.
+  protected synchronized Bell abort(Throwable t) {
+    super.abort(t);
+    aborted = t;
+    return (dc == null) ? null : dc.abort(t);
+  }
 }
@@ -15,6 +15,32 @@ public class FTPSession extends Session<FTPSession, FTPResource> {
   FTPChannel channel;  // The connection to the FTP server.
   boolean mlstOptsAreSet = false;  // Whether we sent OPT MLST.
 
+  /**
+   * The number of parallel streams to use for each file. More than one
+   * stream requires the server to support extended block mode (MODE E), and
+   * a single stream is used if it does not. This may be set through the
+   * {@code parallelism} job option, or by an optimizer.
+   */
+  public int parallelism = 1;
+
+  /**
+   * The number of sessions a large file may be split across, each reading a
+   * separate range of the file. This only happens when the destination can
+   * write the ranges in any order.
+   */
+  public int stripes = 1;
+
+  /** The smallest range of a file worth giving a session of its own. */
+  public long stripe_size = 64 << 20;
+
+  /**
+   * Whether data channels should be opened in passive mode, with the client
+   * connecting to the server. If not, or if passive mode fails, the server is
+   * asked to connect to the client instead. Parallel extended block mode
+   * downloads try active mode first either way, since the server sends.
+   */
+  public boolean passive = true;
+
   /**
    * Establish an {@code FTPSession} with the endpoint described by {@code uri}
    * and the authentication factor {@code cred}.
@@ -23,6 +49,24 @@ public class FTPSession extends Session<FTPSession, FTPResource> {
     super(uri, cred);
   }
 
+  /**
+   * Copy the settings of {@code session} onto this {@code FTPSession}, for a
+   * session doing part of the work of another, or one handed out by a pool in
+   * place of another.
+   *
+   * @param session the {@code Session} to copy settings from.
+   */
+  public void copySettings(Session session) {
+    super.copySettings(session);
+    if (!(session instanceof FTPSession))
+      return;
+    FTPSession s = (FTPSession) session;
+    parallelism = s.parallelism;
+    stripes = s.stripes;
+    stripe_size = s.stripe_size;
+    passive = s.passive;
+  }
+
   public FTPResource select(Path path) {
     return new FTPResource(this, path);
   }
@@ -71,6 +115,13 @@ public class FTPSession extends Session<FTPSession, FTPResource> {
     channel.close();
   }
 
+  // Make sure the server is still answering on the control channel.
+  public Bell<FTPSession> check() {
+    if (channel == null || isClosed())
+      return super.check();
+    return channel.new Command("NOOP").expectComplete().as(this);
+  }
+
   // These methods are used by list() in FTPResource. Different FTP servers
   // respond in different ways to the MLSC and STAT commands used by list().
   // Specifically, some servers will provide a listing along with it, while
@@ -113,6 +164,6 @@ public class FTPSession extends Session<FTPSession, FTPResource> {
     String uri2 = (args.length > 1) ? args[1] : "ftp://didclab-ws8/stuff2/";
     final Resource src = new FTPModule().select(URI.create(uri1));
     final Resource dest = new FTPModule().select(URI.create(uri2));
-    src.transferTo(dest);
+    src.transferTo(dest).starter.ring();
   }
 }
@@ -0,0 +1,269 @@
+package stork.module.ftp;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import stork.feather.*;
+import stork.util.*;
+
+/**
+ * A transfer between two FTP servers in which data flows directly from one
+ * server to the other, rather than through this host. For each file, the
+ * destination server is put in passive mode, the source server is told to
+ * connect to it, and the file is stored and retrieved at once. Progress is
+ * taken from the performance (112) and restart (111) markers the destination
+ * sends while storing. Listing and recursion are handled as in a {@code
+ * ProxyTransfer}.
+ * <p/>
+ * Some servers refuse to connect anywhere but the client they are talking
+ * to. If the servers can't be set up to talk to each other, this and every
+ * later file is proxied instead.
+ * <p/>
+ * Files a {@code Checkpoint} has as done are skipped, but files which were
+ * partly transferred are sent again from the start when sent directly. If
+ * the transfer is stopped, both servers are told to abort the files being
+ * sent directly.
+ */
+class FTPTransfer extends ProxyTransfer<FTPResource, FTPResource> {
+  private volatile boolean proxied;  // Whether to give up on direct transfers.
+  // The commands of direct transfers under way, and the channels they were
+  // sent on.
+  private final Map<Bell<FTPChannel.Reply>, FTPChannel> commands =
+    new HashMap<Bell<FTPChannel.Reply>, FTPChannel>();
+
+  public FTPTransfer(FTPResource source, FTPResource destination) {
+    super(source, destination);
+  }
+
+  protected synchronized Bell transferData(final Path path, final long size) {
+    if (proxied)
+      return super.transferData(path, size);
+    final FTPResource src = source.select(path);
+    final FTPResource dest = destination.select(path);
+    Bell<Object> ready = Bell.all(src.initialize(), dest.initialize());
+    return ready.new AsBell<Object>() {
+      public Bell<Object> convert(Object o) {
+        // A channel can't be on both ends of a transfer.
+        if (src.session.channel == dest.session.channel)
+          return proxy(path, size);
+        return direct(path, src, dest, size);
+      }
+    };
+  }
+
+  // Proxy the file instead of transferring it directly.
+  private synchronized Bell proxy(Path path, long size) {
+    return super.transferData(path, size);
+  }
+
+  // Have the destination listen, tell the source to connect to it, and then
+  // store and retrieve the file. The returned bell rings once both servers
+  // report the transfer is complete.
+  private Bell direct(final Path path, final FTPResource src,
+                      final FTPResource dest, final long size) {
+    final FTPChannel.Lock s = src.session.channel.new Lock();
+    final FTPChannel.Lock d = dest.session.channel.new Lock();
+    final int n = Math.max(1, src.session.parallelism);
+    final char mode =
+      (n > 1 && s.isGridFTP() && d.isGridFTP()) ? 'E' : 'S';
+
+    // The servers forget any streams cached from earlier data channels once
+    // they are told where to find each other.
+    s.dropStreams();
+    d.dropStreams();
+
+    Bell ready = Bell.all(
+      s.type('I'), s.ensureMode(mode), d.type('I'), d.ensureMode(mode));
+    Bell port = d.passive().new AsBell<FTPChannel.Reply>() {
+      public Bell<FTPChannel.Reply> convert(FTPHostPort hp) {
+        return s.port(hp);
+      }
+    };
+
+    final Bell bell = new Bell();
+    Bell.all(ready, port).new Promise() {
+      public void done() {
+        if (isDone()) {
+          s.unlock();
+          d.unlock();
+          bell.ring(new CancellationException());
+          return;
+        }
+        final Markers markers = new Markers();
+        final Bell<FTPChannel.Reply> stor =
+          d.new Command("STOR", dest.makePath()) {
+            public void handle(FTPChannel.Reply r) { markers.read(r); }
+          }.expectComplete();
+        if (mode == 'E')
+          s.new Command("OPTS RETR", "Parallelism="+n+","+n+","+n+";");
+        final Bell<FTPChannel.Reply> retr =
+          s.new Command("RETR", src.makePath()).expectComplete();
+        s.unlock();
+        d.unlock();
+        running(stor, dest.session.channel);
+        running(retr, src.session.channel);
+
+        // If one end fails, don't leave the other waiting on it.
+        abortIfFailed(stor, retr, src.session.channel);
+        abortIfFailed(retr, stor, dest.session.channel);
+
+        Bell.all(stor, retr).new Promise() {
+          public void done() {
+            markers.finish(size);
+            transferSucceeded(path);
+            transferEnded(path);
+          }
+        }.promise(bell);
+      } public void fail(Throwable t) {
+        s.unlock();
+        d.unlock();
+        Log.info("Servers could not be set up for a direct transfer, ",
+                 "proxying instead: ", t.getMessage());
+        proxied = true;
+        proxy(path, size).promise(bell);
+      }
+    };
+    return bell;
+  }
+
+  // Keep track of a command of a direct transfer until it completes. If the
+  // transfer was stopped in the meantime, abort it right away.
+  private synchronized void running(final Bell<FTPChannel.Reply> command,
+                                    FTPChannel channel) {
+    if (isDone()) {
+      channel.new Command("ABOR");
+      return;
+    } commands.put(command, channel);
+    command.new Promise() {
+      public void always() { completed(command); }
+    };
+  }
+
+  private synchronized void completed(Bell<FTPChannel.Reply> command) {
+    commands.remove(command);
+  }
+
+  // Tell both servers of each direct transfer under way to abort it, as well
+  // as stopping whatever is being proxied. The returned bell rings once the
+  // servers have replied.
+  protected Bell stop() {
+    Map<Bell<FTPChannel.Reply>, FTPChannel> running;
+    synchronized (this) {
+      running = new HashMap<Bell<FTPChannel.Reply>, FTPChannel>(commands);
+    }
+    List<Bell> bells = new ArrayList<Bell>();
+    bells.add(super.stop());
+    for (Bell<FTPChannel.Reply> command : running.keySet())
+      if (!command.isDone()) {
+        bells.add(command);
+        bells.add(running.get(command).new Command("ABOR"));
+      }
+    return Bell.wait(bells);
+  }
+
+  // Abort the command on channel if the other end's command fails.
+  private static void abortIfFailed(Bell<FTPChannel.Reply> end,
+                                    final Bell<FTPChannel.Reply> other,
+                                    final FTPChannel channel) {
+    end.new Promise() {
+      public void fail(Throwable t) {
+        if (!other.isDone())
+          channel.new Command("ABOR");
+      }
+    };
+  }
+
+  // Tracks how much of a file the destination has reported receiving, and
+  // reports increases as progress.
+  private class Markers {
+    // The byte count of each stripe, from performance markers.
+    private final Map<String, Long> stripes = new HashMap<String, Long>();
+    // Received ranges from restart markers, keyed by start.
+    private final TreeMap<Long, Long> ranges = new TreeMap<Long, Long>();
+    private long reported = 0;
+
+    // Read a marker from an intermediate reply.
+    synchronized void read(FTPChannel.Reply r) {
+      try {
+        if (r.code == 112)
+          perf(r);
+        else if (r.code == 111)
+          restart(r);
+        else
+          return;
+        report(Math.max(sum(stripes.values()), covered()));
+      } catch (Exception e) {
+        Log.fine("Ignoring malformed marker: ", r);
+      }
+    }
+
+    // Read a performance marker, which gives the bytes one stripe has
+    // received so far.
+    private void perf(FTPChannel.Reply r) {
+      String index = "0";
+      Long bytes = null;
+      for (String line : r.lines()) {
+        String[] kv = line.split(":", 2);
+        if (kv.length < 2)
+          continue;
+        String k = kv[0].trim();
+        if (k.equalsIgnoreCase("Stripe Index"))
+          index = kv[1].trim();
+        else if (k.equalsIgnoreCase("Stripe Bytes Transferred"))
+          bytes = Long.parseLong(kv[1].trim());
+      } if (bytes != null)
+        stripes.put(index, bytes);
+    }
+
+    // Read a restart marker, which gives ranges of the file received.
+    private void restart(FTPChannel.Reply r) {
+      String msg = r.message();
+      msg = msg.substring(msg.toLowerCase().indexOf("marker")+6).trim();
+      for (String range : msg.split(",")) {
+        String[] se = range.trim().split("-");
+        add(Long.parseLong(se[0]), Long.parseLong(se[1]));
+      }
+    }
+
+    // Add a range [s,e) to the received ranges, merging where they overlap.
+    private void add(long s, long e) {
+      Map.Entry<Long, Long> lo = ranges.floorEntry(s);
+      if (lo != null && lo.getValue() >= s) {
+        s = lo.getKey();
+        e = Math.max(e, lo.getValue());
+      }
+      Map.Entry<Long, Long> hi;
+      while ((hi = ranges.ceilingEntry(s)) != null && hi.getKey() <= e) {
+        e = Math.max(e, hi.getValue());
+        ranges.remove(hi.getKey());
+      } ranges.put(s, e);
+    }
+
+    // Get the number of bytes covered by restart markers.
+    private long covered() {
+      long c = 0;
+      for (Map.Entry<Long, Long> r : ranges.entrySet())
+        c += r.getValue()-r.getKey();
+      return c;
+    }
+
+    private long sum(Collection<Long> values) {
+      long c = 0;
+      for (long v : values) c += v;
+      return c;
+    }
+
+    // Report any bytes received beyond what has been reported.
+    private void report(long total) {
+      if (total > reported) {
+        transferred(total-reported);
+        reported = total;
+      }
+    }
+
+    // Report the rest of the file once the transfer is complete.
+    synchronized void finish(long size) {
+      report(size);
+    }
+  }
+}
@@ -94,7 +94,7 @@ public class FeatherIRODSSession extends Session<FeatherIRODSSession,IRODSResour
 		//LocalSession local = new LocalSession(Path.create("/home/bing/checkresult"));
 		//Transfer transfer = local.root().transferTo(dest);
 		//
-		//transfer.starter.ring();
+		transfer.starter.ring();
 		//transfer.onStop().sync();
 		source.list().new ForEach() {
 			public void each(String name) {
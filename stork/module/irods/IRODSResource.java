@@ -25,14 +25,36 @@ public class IRODSResource extends Resource<FeatherIRODSSession,IRODSResource>{
 
 	public Emitter<String> list() {
 		final Emitter<String> emitter = new Emitter<String>();
-		stat().promise(new Bell<Stat>() {
-			public void done(Stat s) {
-				for (Stat ss : s.files)
-					emitter.emit(ss.name);
+		listStats().new ForEach() {
+			public void each(Stat s) {
+				emitter.emit(s.name);
+			} public void done() {
 				emitter.ring();
 			} public void fail(Throwable t) {
 				emitter.ring(t);
 			}
+		};
+		return emitter;
+	}
+
+	// Emit each entry as soon as it has been converted, rather than after the
+	// whole listing has been gathered into a Stat.
+	public Emitter<Stat> listStats() {
+		final Emitter<Stat> emitter = new Emitter<Stat>();
+		final String targetIrodsCollection = (null != path)?(path.toString()):null;
+		initialize().promise(new Bell<IRODSResource>() {
+			public void done() {
+				try {
+					List<CollectionAndDataObjectListingEntry> entries = session.actualCollection.listDataObjectsAndCollectionsUnderPathWithPermissions(targetIrodsCollection);
+					for (CollectionAndDataObjectListingEntry entry : entries)
+						emitter.emit(toStat(entry));
+					emitter.ring();
+				} catch (JargonException e) {
+					emitter.ring(e);
+				}
+			} public void fail(Throwable t) {
+				emitter.ring(t);
+			}
 		});
 		return emitter;
 	}
@@ -58,28 +80,7 @@ public class IRODSResource extends Resource<FeatherIRODSSession,IRODSResource>{
 				        Iterator<CollectionAndDataObjectListingEntry> datacursor = entries.iterator();
 				        while(datacursor.hasNext()){
 				        	CollectionAndDataObjectListingEntry entry = datacursor.next();
-				        	Stat fileinfo = new Stat();
-				        	fileList.add(fileinfo);
-				        	switch (entry.getObjectType()){
-				        	case DATA_OBJECT:
-				        		fileinfo.file = true;
-				        		break;
-				        	case COLLECTION:
-				        		fileinfo.dir = true;
-				        		break;
-				        	default:
-				        		break;
-				        	}
-				            fileinfo.name = entry.getNodeLabelDisplayValue();
-				        	fileinfo.size = entry.getDataSize();
-				        	fileinfo.time = entry.getModifiedAt().getTime();
-				        	//System.out.println("owner: " + entry.getOwnerName());
-				        	//fileinfo.setOwner(entry.getOwnerName());
-				            //System.out.println("Ctime: " + entry.getCreatedAt());
-				            //fileinfo.setDate(entry.getCreatedAt().toString());
-				        	
-				            List<UserFilePermission> permissionlist = entry.getUserFilePermission();
-				            fileinfo.perm = permissionlist.toString();
+				        	fileList.add(toStat(entry));
 				        }
 			            Stat rootStat = new Stat(targetIrodsCollection);
 			            rootStat.setFiles(fileList);
@@ -99,6 +100,31 @@ public class IRODSResource extends Resource<FeatherIRODSSession,IRODSResource>{
         return bell;
 	}
 	
+	// Convert a listing entry into a Stat.
+	private static Stat toStat(CollectionAndDataObjectListingEntry entry) {
+		Stat fileinfo = new Stat();
+		switch (entry.getObjectType()){
+		case DATA_OBJECT:
+			fileinfo.file = true;
+			break;
+		case COLLECTION:
+			fileinfo.dir = true;
+			break;
+		default:
+			break;
+		}
+		fileinfo.name = entry.getNodeLabelDisplayValue();
+		fileinfo.size = entry.getDataSize();
+		fileinfo.time = entry.getModifiedAt().getTime();
+		//System.out.println("owner: " + entry.getOwnerName());
+		//fileinfo.setOwner(entry.getOwnerName());
+		//System.out.println("Ctime: " + entry.getCreatedAt());
+		//fileinfo.setDate(entry.getCreatedAt().toString());
+		List<UserFilePermission> permissionlist = entry.getUserFilePermission();
+		fileinfo.perm = permissionlist.toString();
+		return fileinfo;
+	}
+
 	 // Create a directory at the end-point, as well as any parent directories.
 	public Bell<IRODSResource> mkdir() {
 		return null;
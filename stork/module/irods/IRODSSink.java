@@ -46,8 +46,10 @@ public class IRODSSink extends Sink<IRODSResource>{
 	public Bell drain(final Slice slice) {
 		return startbell.promise(new Bell(){
 			public void done(){
-				final byte[] data = slice.asBytes();
+				// Copy, since the buffer goes back to the pool on release.
+				final byte[] data = slice.asBytes(new byte[slice.length()]);
 				final int length = slice.length();
+				slice.release();
 				try {
 					//System.out.println(new String(data, "UTF-8"));
 					excutor.execute(new Runnable(){
@@ -62,12 +62,14 @@ public class HTTPInterface extends StorkInterface {
   private void handleRequest(final HTTPRequest request) {
     issueRequest(requestToAd(request)).new Promise() {
       public void done(Request sr) {
-        sr.new As<Ad>() {
-          public Ad convert(Object o) {
-            return Ad.marshal(o);
-          } public void done(Ad ad) {
-            // Write the request back to the requestor.
-            Pipes.tapFromString(ad).attach(request.root().sink());
+        sr.new Promise() {
+          public void done(Object o) {
+            // Write the request back to the requestor. Emitted responses are
+            // written as they are emitted.
+            if (o instanceof Emitter)
+              streamResponse(request, (Emitter) o);
+            else
+              Pipes.tapFromString(Ad.marshal(o)).attach(request.root().sink());
           } public void fail(Throwable t) {
             //Taps.fromError(t).attach(request.root().sink());
           }
@@ -76,6 +78,44 @@ public class HTTPInterface extends StorkInterface {
     };
   }
 
+  // Write each item from an emitter to the client as a line of JSON, in a
+  // chunked response that ends when the emitter does.
+  private void streamResponse(HTTPRequest request, Emitter emitter) {
+    HttpResponse r = new DefaultHttpResponse(request.version(), OK);
+    r.headers().set(CONTENT_TYPE, "application/x-ndjson; charset=UTF-8");
+    r.headers().set(TRANSFER_ENCODING, Values.CHUNKED);
+    request.toNetty(r);
+    writeLines(request, emitter);
+  }
+
+  // Write the next item from an emitter, waiting for the client to catch up
+  // before taking another. If the emitter fails, the error is written as the
+  // last line.
+  private void writeLines(final HTTPRequest request, final Emitter emitter) {
+    final Bell item = emitter.get();
+    item.new Promise() {
+      public void done(Object o) {
+        Bell pause = writeLine(request, Ad.marshal(o));
+        if (pause == null) {
+          writeLines(request, emitter);
+        } else pause.new Promise() {
+          public void always() { writeLines(request, emitter); }
+        };
+      } public void fail(Throwable t) {
+        if (!item.isCancelled())
+          writeLine(request, new Ad("error", errorToAd(t)));
+        request.toNetty(new DefaultLastHttpContent());
+      }
+    };
+  }
+
+  // Write an ad as a line of JSON.
+  private Bell writeLine(HTTPRequest request, Ad ad) {
+    String line = ad.toJSON(false)+"\n";
+    ByteBuf b = Unpooled.copiedBuffer(line, CharsetUtil.UTF_8);
+    return request.toNetty(new DefaultHttpContent(b));
+  }
+
   // Convert an HTTP request to an ad asynchronously.
   private Bell<Ad> requestToAd(final HTTPRequest req) {
     Bell<Ad> bell = new Bell<Ad>();
@@ -116,13 +156,21 @@ public class HTTPInterface extends StorkInterface {
     if (type == null || type.startsWith("application/json")) {
       bell = sink.bell().new As<Ad>() {
         public Ad convert(Slice slice) {
-          return Ad.parse(new ByteBufInputStream(slice.asByteBuf()));
+          try {
+            return Ad.parse(new ByteBufInputStream(slice.asByteBuf()));
+          } finally {
+            slice.release();
+          }
         }
       };
     } else if (type.startsWith("application/x-www-form-urlencoded")) {
       bell = sink.bell().new As<Ad>() {
         public Ad convert(Slice slice) {
-          return queryToAd(slice.asByteBuf().toString(CharsetUtil.UTF_8));
+          try {
+            return queryToAd(slice.asByteBuf().toString(CharsetUtil.UTF_8));
+          } finally {
+            slice.release();
+          }
         }
       };
     } else {
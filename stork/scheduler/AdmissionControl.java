@@ -0,0 +1,239 @@
+package stork.scheduler;
+
+import java.util.*;
+
+/**
+ * Decides when jobs may start running. Running jobs are counted overall, per
+ * user, per endpoint host, and per pair of source and destination hosts, and
+ * a job is only admitted if none of the limits it falls under are full. A
+ * limit of zero or less means there is no limit.
+ * <p/>
+ * A job which can't be admitted waits on the first full limit that stopped
+ * it, in a queue of its own for that limit. When a running job stops, only
+ * the jobs waiting on the limits it was counted against are looked at again,
+ * so a job bound for a busy host never holds up one bound elsewhere. Those
+ * which still don't fit move on to wait on whatever stops them now. Each
+ * waiting queue orders its jobs by the same policy as the scheduler's queue.
+ * <p/>
+ * Running jobs don't tie up threads, so these limits, rather than the number
+ * of threads, decide how many jobs run at once.
+ */
+class AdmissionControl {
+  /** The most jobs which may run at once. */
+  public int max_jobs = 10;
+
+  /** The most jobs one user may run at once. */
+  public int max_per_user = 0;
+
+  /** The most running jobs which may have an endpoint on one host. */
+  public int max_per_host = 0;
+
+  /** The most running jobs which may go between the same two hosts. */
+  public int max_per_pair = 0;
+
+  /** Limits for particular hosts, overriding {@link #max_per_host}. */
+  public final Map<String, Integer> host_limits =
+    new HashMap<String, Integer>();
+
+  /** The queue policy waiting jobs are ordered by. */
+  public String policy = "fair";
+
+  // Stands for the overall limit among the keys jobs are counted under.
+  private static final Object ALL = new Object();
+
+  private final Map<Object, Integer> counts = new HashMap<Object, Integer>();
+  private final Map<Object, JobQueue> waiting =
+    new HashMap<Object, JobQueue>();
+  private int held = 0;
+
+  /**
+   * Wait until there is room for another job to run overall. The job queue
+   * is not taken from until then, so jobs stay in the order it decides.
+   *
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  public synchronized void awaitRoom() throws InterruptedException {
+    while (full(ALL, max_jobs))
+      wait();
+  }
+
+  /**
+   * Admit {@code job} if there is room for it to run. Otherwise, hold it
+   * until there is.
+   *
+   * @param job the job which wants to run.
+   * @return {@code true} if the job may start running now; {@code false} if
+   * it is being held.
+   */
+  public synchronized boolean admit(Job job) {
+    Object key = blocker(job);
+    if (key == null) {
+      count(job, 1);
+      return true;
+    } hold(key, job);
+    return false;
+  }
+
+  /**
+   * Make the room taken by {@code job} available again, and admit whatever
+   * held jobs now fit. Held jobs which were terminated while waiting are
+   * dropped.
+   *
+   * @param job a job which was admitted and has stopped running.
+   * @return The held jobs which may start running now.
+   */
+  public synchronized List<Job> release(Job job) {
+    count(job, -1);
+    notifyAll();
+
+    List<Job> admitted = new LinkedList<Job>();
+    for (Object key : keys(job)) {
+      JobQueue queue = waiting.get(key);
+      while (queue != null && !full(key, limit(key))) {
+        Job j = queue.poll();
+        if (j == null)
+          break;
+        held--;
+        if (j.isTerminated())
+          continue;
+        Object k = blocker(j);
+        if (k == null) {
+          count(j, 1);
+          admitted.add(j);
+        } else {
+          hold(k, j);
+        }
+      } if (queue != null && queue.size() == 0)
+        waiting.remove(key);
+    } return admitted;
+  }
+
+  /** Get the number of jobs running. */
+  public synchronized int running() {
+    return get(ALL);
+  }
+
+  /** Get the number of jobs being held. */
+  public synchronized int held() {
+    return held;
+  }
+
+  /**
+   * Get the number of running jobs with an endpoint on each host which has
+   * any.
+   *
+   * @return A map from host names to the number of running jobs.
+   */
+  public synchronized Map<String, Integer> hosts() {
+    Map<String, Integer> map = new TreeMap<String, Integer>();
+    for (Map.Entry<Object, Integer> e : counts.entrySet())
+      if (e.getKey() instanceof String)
+        map.put((String) e.getKey(), e.getValue());
+    return map;
+  }
+
+  /**
+   * Parse per-host limits from a string like {@code "a.org=2, b.org=8"} and
+   * add them to {@link #host_limits}.
+   *
+   * @param limits the string to parse.
+   * @throws RuntimeException if the string can't be parsed.
+   */
+  public synchronized void parseHostLimits(String limits) {
+    for (String s : limits.split("[\\s,]+")) {
+      if (s.isEmpty())
+        continue;
+      int i = s.lastIndexOf('=');
+      if (i <= 0)
+        throw new RuntimeException("invalid host limit: "+s);
+      host_limits.put(s.substring(0, i).toLowerCase(),
+                      Integer.parseInt(s.substring(i+1)));
+    }
+  }
+
+  // Hold a job until there's room under the given key.
+  private void hold(Object key, Job job) {
+    JobQueue queue = waiting.get(key);
+    if (queue == null)
+      waiting.put(key, queue = JobQueue.create(policy));
+    queue.add(job);
+    held++;
+  }
+
+  // Find the key of the first full limit a job falls under, or return null
+  // if the job fits within every limit.
+  private Object blocker(Job job) {
+    for (Object key : keys(job))
+      if (full(key, limit(key))) return key;
+    return null;
+  }
+
+  // The keys a job is counted under: hosts, then the host pair, then the
+  // user, then everything. The overall limit goes last, so jobs waiting on
+  // the limits a stopped job was specifically counted against get the first
+  // chance at its room.
+  private List<Object> keys(Job job) {
+    List<Object> keys = new ArrayList<Object>(5);
+    String s = job.source().host(), d = job.destination().host();
+    keys.add(s);
+    if (!d.equals(s))
+      keys.add(d);
+    keys.add(new Pair(s, d));
+    if (job.user() != null)
+      keys.add(job.user());
+    keys.add(ALL);
+    return keys;
+  }
+
+  // Get the limit for a key.
+  private int limit(Object key) {
+    if (key == ALL)
+      return max_jobs;
+    if (key instanceof Pair)
+      return max_per_pair;
+    if (key instanceof User)
+      return max_per_user;
+    Integer i = host_limits.get(key);
+    return (i != null) ? i : max_per_host;
+  }
+
+  private boolean full(Object key, int limit) {
+    return limit > 0 && get(key) >= limit;
+  }
+
+  // Add n to the counts a job falls under.
+  private void count(Job job, int n) {
+    for (Object key : keys(job)) {
+      int i = get(key)+n;
+      if (i <= 0)
+        counts.remove(key);
+      else
+        counts.put(key, i);
+    }
+  }
+
+  private int get(Object key) {
+    Integer i = counts.get(key);
+    return (i == null) ? 0 : i;
+  }
+
+  // A source and destination host.
+  private static class Pair {
+    final String src, dest;
+
+    Pair(String src, String dest) {
+      this.src = src;
+      this.dest = dest;
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof Pair)) return false;
+      Pair p = (Pair) o;
+      return src.equals(p.src) && dest.equals(p.dest);
+    }
+
+    public int hashCode() {
+      return 13*src.hashCode() + 17*dest.hashCode();
+    }
+  }
+}
@@ -31,6 +31,13 @@ class Endpoint {
     return (m == null) ? null : m.select(uri, credential);
   }
 
+  // Get the lowercased host name of the endpoint, or an empty string if it
+  // has none.
+  public String host() {
+    String host = (uri == null) ? null : uri.host();
+    return (host == null) ? "" : host.toLowerCase();
+  }
+
   public boolean equals(Object o) {
     if (o == this) return true;
     if (!(o instanceof Endpoint)) return false;
@@ -0,0 +1,157 @@
+package stork.scheduler;
+
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * A {@code JobQueue} which shares turns fairly between users. Each user with
+ * jobs queued is due a turn at some point in virtual time, and the user due
+ * soonest goes next. Taking a turn puts a user's next turn off by the inverse
+ * of their weight, so a user with twice the weight gets twice the turns. A
+ * user who had nothing queued joins at the current virtual time, and so can't
+ * save up turns while idle. Submitting many jobs at once just makes a longer
+ * line of that user's own jobs.
+ * <p/>
+ * On a user's turn, their job with the highest priority goes, and among jobs
+ * with the same priority, the one estimated to be smallest. Jobs with no size
+ * estimate are taken to be the average of the estimates seen so far. Ties go
+ * in the order jobs were queued.
+ * <p/>
+ * Enqueuing and dequeuing take logarithmic time, and sizes are estimated
+ * before taking the lock.
+ */
+public class FairJobQueue extends JobQueue {
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition nonempty = lock.newCondition();
+
+  private final Map<User, Share> shares = new HashMap<User, Share>();
+  private final PriorityQueue<Share> turns = new PriorityQueue<Share>();
+  private double vtime = 0;  // When the last turn was taken.
+  private long seq = 0;
+  private int size = 0;
+
+  // Used to estimate jobs of unknown size.
+  private double known_bytes = 0;
+  private long known = 0;
+
+  // A queued job and what it is ordered by.
+  private static class Entry implements Comparable<Entry> {
+    final Job job;
+    final int priority;
+    final long size;
+    final long seq;
+
+    Entry(Job job, int priority, long size, long seq) {
+      this.job = job;
+      this.priority = priority;
+      this.size = size;
+      this.seq = seq;
+    }
+
+    public int compareTo(Entry e) {
+      if (priority != e.priority)
+        return (priority > e.priority) ? -1 : 1;
+      if (size != e.size)
+        return (size < e.size) ? -1 : 1;
+      return (seq < e.seq) ? -1 : (seq > e.seq) ? 1 : 0;
+    }
+  }
+
+  // A user's jobs, and when their next turn is due.
+  private static class Share implements Comparable<Share> {
+    final double weight;
+    final PriorityQueue<Entry> jobs = new PriorityQueue<Entry>();
+    double due;
+    long seq;
+
+    Share(double weight) {
+      this.weight = weight;
+    }
+
+    public int compareTo(Share s) {
+      if (due != s.due)
+        return (due < s.due) ? -1 : 1;
+      return (seq < s.seq) ? -1 : (seq > s.seq) ? 1 : 0;
+    }
+  }
+
+  public void add(Job job) {
+    User user = job.user();
+    int priority = job.priority();
+    long estimate = job.estimatedSize();
+    double weight = (user == null) ? 1 : user.weight();
+
+    lock.lock();
+    try {
+      if (estimate >= 0) {
+        known_bytes += estimate;
+        known++;
+      } else {
+        estimate = (known > 0) ? (long) (known_bytes/known) : 0;
+      }
+
+      Share share = shares.get(user);
+      if (share == null)
+        shares.put(user, share = new Share(weight));
+      share.jobs.add(new Entry(job, priority, estimate, seq++));
+      size++;
+
+      // A user with nothing queued joins in line for a turn now.
+      if (share.jobs.size() == 1) {
+        share.due = Math.max(share.due, vtime);
+        share.seq = seq++;
+        turns.add(share);
+      } nonempty.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public Job poll() {
+    lock.lock();
+    try {
+      return next();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public Job take() throws InterruptedException {
+    lock.lockInterruptibly();
+    try {
+      Job job;
+      while ((job = next()) == null)
+        nonempty.await();
+      return job;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public int size() {
+    lock.lock();
+    try {
+      return size;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Give the user due soonest their turn. Must hold the lock.
+  private Job next() {
+    Share share = turns.poll();
+    if (share == null)
+      return null;
+
+    Entry entry = share.jobs.poll();
+    size--;
+    vtime = share.due;
+    share.due += 1/share.weight;
+
+    // Users with nothing left wait out of line until they queue a job.
+    if (!share.jobs.isEmpty()) {
+      share.seq = seq++;
+      turns.add(share);
+    } return entry.job;
+  }
+}
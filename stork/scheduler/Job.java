@@ -8,44 +8,76 @@ import stork.ad.*;
 import stork.util.*;
 import stork.module.*;
 import stork.feather.*;
+import stork.feather.util.*;
 import static stork.scheduler.JobStatus.*;
 
 // A representation of a transfer job submitted to Stork. The entire
 // state of the job should be stored in the ad representing this job.
 //
-// As transfers progress, update ads will be sent by the underlying
-// transfer code.
+// While a job runs, the source is scanned alongside the transfer to fill in
+// the totals, and the job's ad carries its progress:
+//   progress.bytes.total - the number of bytes to transfer
+//   progress.files.total - the number of files to transfer
+//   progress.bytes.done  - the number of bytes transferred so far
+//   progress.files.done  - the number of files transferred so far
+//   progress.bytes.avg   - the average throughput, in bytes per second
+//   progress.scanned     - true once the totals are complete
+//   progress.eta         - estimated seconds remaining, if known
 //
-// The following fields can come from the transfer module in an update ad:
-//   bytes_total - the number of bytes to transfer
-//   files_total - the number of files to transfer
-//   bytes_done  - indication that some bytes have been transferred
-//   files_done  - indication that some files have been transferred
-//   complete    - true if success, false if failure
+// A job may be submitted with a priority. Jobs with higher priorities run
+// ahead of the same user's other jobs, but not ahead of other users.
+//
+// Until the job terminates, it keeps a checkpoint of the files it has
+// transferred and how far it got into the files it was transferring. The
+// checkpoint is saved with the scheduler state, so that a retry or a restart
+// of the server picks up where the job left off.
 
 public class Job {
   private int job_id = 0;
   private JobStatus status;
   private Endpoint src, dest;
-  //private TransferProgress progress = new TransferProgress();
+  private transient TransferProgress progress = new TransferProgress();
 
   private int attempts = 0, max_attempts = 10;
+  private int priority = 0;
   private String message;
 
   private Ad options;
+  private Checkpoint checkpoint;
 
   //private Watch queue_timer;
   //private Watch run_timer;
 
   private transient User user;
-  private transient Thread thread;
+
+  // While the job is running, the sessions it holds and its transfer.
+  private transient boolean running;
+  private transient List<Session> sessions = new LinkedList<Session>();
+  private transient Transfer transfer;
+  private transient Bell<Job> onStop;
+
+  // How the last run went: the endpoint which couldn't be reached, if any,
+  // and whether sessions to both endpoints were in hand.
+  private transient Endpoint unreachable;
+  private transient boolean connected;
+
+  static {
+    // Checkpoints are saved as their encoded strings.
+    new Ad.Marshaller<Checkpoint>(Checkpoint.class) {
+      public String marshal(Checkpoint cp) {
+        return cp.encode();
+      } public Checkpoint unmarshal(String s) {
+        return Checkpoint.decode(s);
+      }
+    };
+  }
 
   // Create and enqueue a new job from a user input ad. Don't give this
   // thing unsanitized user input, because it doesn't filter the user_id.
   // That should be filtered by the caller.
   // TODO: Strict filtering and checking.
   public static Job create(User user, Ad ad) {
-    ad.remove("status", "job_id", "attempts");
+    ad.remove("status", "job_id", "attempts", "checkpoint");
     ad.rename("src_url",  "src.url");
     ad.rename("dest_url", "dest.url");
 
@@ -60,7 +92,9 @@ public class Job {
   // Gets the job info as an ad, merged with progress ad.
   // TODO: More proper filtering.
   public synchronized Ad getAd() {
-    return Ad.marshal(this);
+    Ad ad = Ad.marshal(this).put("progress", progress.getAd());
+    ad.remove("checkpoint");
+    return ad;
   }
 
   // Sets the status of the job, updates ad, and adjusts state according to the
@@ -78,19 +112,26 @@ public class Job {
 
     // Update state.
     switch (status = s) {
-      case scheduled:
-        //queue_timer = new Watch(true); break;
-      case processing:
-        //run_timer = new Watch(true); break;
       case removed:
-        if (thread != null)
-          thread.interrupt();
+        // A running transfer stops the job once it has quiesced.
+        if (running) {
+          if (transfer != null)
+            transfer.stopper.ring(new CancellationException());
+          else
+            stop(null);
+        }
+      case scheduled:
       case failed:
       case complete:
-        //queue_timer.stop();
-        //run_timer.stop();
-        //progress.transferEnded(true);
-    } return this;
+        // The destination may have changed, even if the job didn't finish.
+        if (Scheduler.instance != null && dest != null)
+          Scheduler.instance.listings.invalidate(dest.select());
+    }
+
+    // A terminated job won't be resumed, so its checkpoint can go.
+    if (isTerminated())
+      checkpoint = null;
+    return this;
   }
 
   // Get/set the job id.
@@ -100,6 +141,57 @@ public class Job {
     job_id = id;
   }
 
+  // Get/set the user who submitted the job.
+  synchronized User user() {
+    return user;
+  } synchronized void user(User u) {
+    user = u;
+  }
+
+  // Get the number of times the job has been rescheduled.
+  synchronized int attempts() {
+    return attempts;
+  }
+
+  // Get the endpoint which couldn't be reached on the last run, if any.
+  synchronized Endpoint unreachable() {
+    return unreachable;
+  }
+
+  // Check if the last run got sessions to both endpoints.
+  synchronized boolean connected() {
+    return connected;
+  }
+
+  // Get the job's priority. Higher priority jobs run before a user's other
+  // jobs.
+  synchronized int priority() {
+    return priority;
+  }
+
+  // Estimate the number of bytes the job will transfer, from the totals of
+  // an earlier attempt or a cached listing of the source. Returns -1 if there
+  // is nothing to go on.
+  long estimatedSize() {
+    if (progress.isScanned())
+      return progress.totalBytes();
+    if (Scheduler.instance != null) try {
+      Resource r = src.select();
+      Stat stat = (r == null) ? null : Scheduler.instance.listings.get(r);
+      if (stat != null)
+        return stat.size();
+    } catch (Exception e) {
+      // Then we don't know.
+    } return -1;
+  }
+
+  // Get the job's endpoints.
+  Endpoint source() {
+    return src;
+  } Endpoint destination() {
+    return dest;
+  }
+
   // Called when the job gets removed from the queue.
   public synchronized void remove(String reason) {
     if (isTerminated())
@@ -134,17 +226,21 @@ public class Job {
     return true;
   }
 
-  // Run the job and return the status.
-  public JobStatus process() {
-    run();
-    return status;
+  // Start running the job. The returned bell rings with the job's status
+  // once it has stopped running.
+  public Bell<JobStatus> process() {
+    final Bell<JobStatus> bell = new Bell<JobStatus>();
+    run().new Promise() {
+      public void always() { bell.ring(status()); }
+    };
+    return bell;
   }
 
   // Return whether or not the job has terminated.
   public synchronized boolean isTerminated() {
     switch (status) {
+      case removed:
       case failed:
-      case pending:
       case complete:
         return true;
       default:
@@ -152,42 +248,204 @@ public class Job {
     }
   }
 
-  // Run the job and watch it to completion.
-  public void run() {
+  // Start running the job. Nothing here blocks; the job is driven by its
+  // sessions and transfer from here on. The returned bell rings once the job
+  // has stopped running, whether it finished, failed, or was removed.
+  public Bell run() {
+    final Bell<Job> stopped = new Bell<Job>();
+    final Resource ss, ds;
+
     // Check that the job is scheduled to run.
     synchronized (this) {
       if (status != scheduled) {
         status(failed, "Trying to run unscheduled job.");
-        return;
+        return stopped.ring(this);
       }
       status(processing);
-      thread = Thread.currentThread();
+      running = true;
+      onStop = stopped;
+      unreachable = null;
+      connected = false;
     }
 
-    Resource ss = src.select();
-    Resource ds = dest.select();
+    try {
+      ss = src.select();
+      ds = dest.select();
+      if (ss == null || ds == null)
+        throw new RuntimeException("No module can handle the endpoint.");
+
+      // Set options on the sessions before leasing, so a pooled session
+      // handed out in their place takes them on for this job only.
+      if (options != null) {
+        options.unmarshal(ss.session);
+        options.unmarshal(ds.session);
+      }
+
+      // Lease warm sessions from the pool. Both ends on one host are leased
+      // together, so jobs can't each hold one session and wait for a second.
+      // Sessions without a host, like local ones, aren't pooled or limited.
+      if (!src.host().isEmpty() && src.host().equals(dest.host())) {
+        if (Scheduler.instance.sessions.max_per_host < 2) {
+          status(failed, "Both ends are on "+src.host()+", but the "+
+                 "session pool only allows one session to a host.");
+          stop(null);
+          return stopped;
+        } lease(ss, ds).new Promise() {
+          public void done(List<Resource> r) {
+            transfer(r.get(0), r.get(1));
+          } public void fail(Throwable t) {
+            stop(t);
+          }
+        };
+        return stopped;
+      }
+
+      // Otherwise, lease in host order so jobs going opposite ways between
+      // two full hosts can't hold one each forever.
+      final boolean sf = src.host().compareTo(dest.host()) <= 0;
+      final Bell<Resource> first = sf ? lease(src, ss) : lease(dest, ds);
+      first.new AsBell<Resource>() {
+        public Bell<Resource> convert(Resource r) {
+          return sf ? lease(dest, ds) : lease(src, ss);
+        }
+      }.new Promise() {
+        public void done(Resource r) {
+          Resource f = first.sync();
+          transfer(sf ? f : r, sf ? r : f);
+        } public void fail(Throwable t) {
+          stop(t);
+        }
+      };
+    } catch (Exception e) {
+      stop(e);
+    } return stopped;
+  }
 
-    // Establish connections to end-points.
+  // Lease a session for an endpoint's resource from the pool, and reselect
+  // the resource on it. The session is released once the job stops, or right
+  // away if the job stopped while waiting for it. If no session can be had,
+  // the endpoint is remembered as unreachable.
+  private Bell<Resource> lease(final Endpoint ep, final Resource r) {
+    final SessionPool pool = Scheduler.instance.sessions;
+    return pool.lease(r.session).new As<Resource>() {
+      public Resource convert(Session s) {
+        synchronized (Job.this) {
+          if (!running) {
+            pool.release(s);
+            throw new CancellationException();
+          } sessions.add(s);
+        } return r.reselectOn(s);
+      } public Resource convert(Throwable t) throws Throwable {
+        synchronized (Job.this) {
+          if (running)
+            unreachable = ep;
+        } throw t;
+      }
+    };
+  }
+
+  // Lease sessions for both ends on the same host at once, like lease()
+  // above. If they can't be had, the source is remembered as unreachable.
+  private Bell<List<Resource>> lease(final Resource ss, final Resource ds) {
+    final SessionPool pool = Scheduler.instance.sessions;
+    return pool.lease(ss.session, ds.session).new As<List<Resource>>() {
+      public List<Resource> convert(List<Session> s) {
+        synchronized (Job.this) {
+          if (!running) {
+            for (Session x : s) pool.release(x);
+            throw new CancellationException();
+          } sessions.addAll(s);
+        } return Arrays.asList(
+          ss.reselectOn(s.get(0)), ds.reselectOn(s.get(1)));
+      } public List<Resource> convert(Throwable t) throws Throwable {
+        synchronized (Job.this) {
+          if (running)
+            unreachable = src;
+        } throw t;
+      }
+    };
+  }
+
+  // Start the transfer once the sessions are in hand.
+  private void transfer(Resource ss, Resource ds) {
     try {
-      // If options were given, marshal them into the sessions.
+      // If options were given, marshal them into the resources. The
+      // sessions got them before they were leased.
       if (options != null) {
         options.unmarshal(ss);
         options.unmarshal(ds);
       }
 
-      doTransfer(ss, ds);
-    } catch (CancellationException e) {
-      status(removed);
-    } finally {
-      thread = null;
+      synchronized (this) {
+        if (!running)
+          return;
+
+        // Count up the totals while the transfer gets going.
+        connected = true;
+        progress.scan(ss);
+        progress.started();
+        if (checkpoint == null)
+          checkpoint = new Checkpoint();
+        transfer = ss.transferTo(ds).listen(progress).checkpoint(checkpoint);
+      }
+
+      // The job stops once nothing the transfer started is still running, so
+      // its sessions aren't handed on, nor the job run again, while the
+      // servers are still busy with it.
+      final Bell quiesced = transfer.onQuiesce();
+      transfer.onStop().new Promise() {
+        public void done() { stopWhen(quiesced, null); }
+        public void fail(Throwable t) { stopWhen(quiesced, t); }
+      };
+      transfer.starter.ring();
+    } catch (Exception e) {
+      stop(e);
     }
   }
 
-  // Do the transfer using the given sessions.
-  private void doTransfer(final Resource ss, final Resource ds) {
-    URI su = src.uri;
-    URI du = dest.uri;
+  // Stop the job once bell rings.
+  private void stopWhen(Bell bell, final Throwable t) {
+    bell.new Promise() {
+      public void always() { stop(t); }
+    };
+  }
+
+  // Called when the job stops running. Settles the job's status if it is
+  // still processing, gives back its sessions, and rings the bell returned
+  // by run(). The error is null if the transfer finished.
+  private void stop(Throwable t) {
+    List<Session> held;
+    Bell<Job> stopped;
+
+    synchronized (this) {
+      if (!running)
+        return;
+      running = false;
+      progress.stopped();
+
+      if (status == processing) {
+        if (t == null) {
+          status(complete);
+        } else if (t instanceof CancellationException) {
+          status(removed);
+        } else {
+          status(t.getMessage());
+          if (shouldReschedule())
+            reschedule();
+          else
+            status(failed);
+        }
+      }
+
+      held = sessions;
+      sessions = new LinkedList<Session>();
+      transfer = null;
+      stopped = onStop;
+      onStop = null;
+    }
 
-    //ss.select(su).sendTo(ds.select(du));
+    for (Session s : held)
+      Scheduler.instance.sessions.release(s);
+    stopped.ring(this);
   }
 }
@@ -0,0 +1,69 @@
+package stork.scheduler;
+
+import java.util.concurrent.*;
+
+/**
+ * A queue of jobs waiting to run. The order in which jobs come out of the
+ * queue is the scheduling policy, and is up to the implementation. Queues
+ * must be safe to use from several threads at once.
+ */
+public abstract class JobQueue {
+  /**
+   * Put a job into the queue.
+   *
+   * @param job the job to enqueue.
+   */
+  public abstract void add(Job job);
+
+  /**
+   * Take the next job from the queue, if there is one.
+   *
+   * @return The next job, or {@code null} if the queue is empty.
+   */
+  public abstract Job poll();
+
+  /**
+   * Take the next job from the queue, waiting for one if the queue is empty.
+   *
+   * @return The next job.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  public abstract Job take() throws InterruptedException;
+
+  /** Get the number of jobs in the queue. */
+  public abstract int size();
+
+  /**
+   * Create a queue which uses the named policy. The policies are:
+   * <ul>
+   *   <li>{@code fair} - share turns between users, then go by priority and
+   *   estimated size (see {@link FairJobQueue})</li>
+   *   <li>{@code fifo} - run jobs in the order they were queued</li>
+   * </ul>
+   *
+   * @param policy the name of the policy.
+   * @return A new, empty {@code JobQueue}.
+   * @throws RuntimeException if there is no such policy.
+   */
+  public static JobQueue create(String policy) {
+    if ("fair".equalsIgnoreCase(policy))
+      return new FairJobQueue();
+    if ("fifo".equalsIgnoreCase(policy))
+      return new FIFO();
+    throw new RuntimeException("unknown queue policy: "+policy);
+  }
+
+  // Jobs run in the order they were queued.
+  private static class FIFO extends JobQueue {
+    private final LinkedBlockingQueue<Job> queue =
+      new LinkedBlockingQueue<Job>();
+
+    public void add(Job job) { queue.add(job); }
+
+    public Job poll() { return queue.poll(); }
+
+    public Job take() throws InterruptedException { return queue.take(); }
+
+    public int size() { return queue.size(); }
+  }
+}
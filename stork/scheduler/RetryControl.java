@@ -0,0 +1,194 @@
+package stork.scheduler;
+
+import java.util.*;
+
+import stork.feather.*;
+import stork.feather.util.*;
+import stork.util.*;
+
+/**
+ * Decides when failed jobs are retried. A job is put back in the queue after
+ * a delay which doubles with each attempt, up to a limit. Hosts which can't
+ * be reached back off the same way, and a job waits at least as long as the
+ * hosts it failed against. Delays are jittered so jobs which failed together
+ * don't all come back together.
+ * <p/>
+ * Once a host has been unreachable enough times in a row, its breaker opens.
+ * Jobs bound for the host are then parked instead of being run, and the host
+ * is probed by opening a session to it after backing off. The parked jobs go
+ * back in the queue once a probe gets through, or once any job reaches the
+ * host. Until then, the probes back off further.
+ */
+class RetryControl {
+  /** Seconds to wait before the first retry. */
+  public double retry_delay = 5;
+
+  /** The most seconds to wait before a retry or probe. */
+  public double max_retry_delay = 600;
+
+  /** Failures in a row which open a host's breaker. Zero disables. */
+  public int breaker_threshold = 5;
+
+  private final Scheduler scheduler;
+  private final Map<String, Host> hosts = new HashMap<String, Host>();
+
+  // A host which has failed recently, and the jobs parked on it.
+  private static class Host {
+    final String name;
+    int failures = 0;
+    boolean open = false;
+    final List<Job> parked = new LinkedList<Job>();
+
+    Host(String name) { this.name = name; }
+  }
+
+  RetryControl(Scheduler scheduler) {
+    this.scheduler = scheduler;
+  }
+
+  /**
+   * Get the number of seconds to wait before {@code job} is retried.
+   *
+   * @param job a job which has been rescheduled.
+   * @return The number of seconds to wait, with jitter.
+   */
+  public synchronized double delay(Job job) {
+    int n = job.attempts();
+    for (String h : hosts(job)) {
+      Host host = hosts.get(h);
+      if (host != null)
+        n = Math.max(n, host.failures);
+    } return backoff(n);
+  }
+
+  /**
+   * Park {@code job} if it is bound for a host whose breaker is open. Parked
+   * jobs are put back in the queue once the host can be reached.
+   *
+   * @param job a job about to be run.
+   * @return {@code true} if the job was parked.
+   */
+  public synchronized boolean park(Job job) {
+    for (String h : hosts(job)) {
+      Host host = hosts.get(h);
+      if (host != null && host.open) {
+        host.parked.add(job);
+        return true;
+      }
+    } return false;
+  }
+
+  /** Get the number of jobs parked on hosts with open breakers. */
+  public synchronized int parked() {
+    int n = 0;
+    for (Host host : hosts.values())
+      n += host.parked.size();
+    return n;
+  }
+
+  /**
+   * Note how a job's run went for its hosts. An unreachable endpoint counts
+   * as a failure of its host, and reaching both endpoints clears the record
+   * of both hosts.
+   *
+   * @param job a job which has stopped running.
+   */
+  public void stopped(Job job) {
+    Endpoint ep = job.unreachable();
+    if (ep != null) {
+      failed(ep);
+    } else if (job.connected()) {
+      for (String h : hosts(job))
+        reached(h);
+    }
+  }
+
+  // Count a failure to reach an endpoint's host, and open its breaker if it
+  // has failed too many times in a row.
+  synchronized void failed(Endpoint ep) {
+    String name = ep.host();
+    Host host = hosts.get(name);
+    if (host == null)
+      hosts.put(name, host = new Host(name));
+    host.failures++;
+
+    if (!host.open && breaker_threshold > 0 &&
+        host.failures >= breaker_threshold) {
+      Log.warning("Host unreachable, parking its jobs: ", name);
+      host.open = true;
+      probe(host, ep);
+    }
+  }
+
+  // Try to open a session to a host after backing off. If it works, let the
+  // host's parked jobs go. Otherwise, back off further and try again.
+  private void probe(final Host host, final Endpoint ep) {
+    Bell timer;
+    synchronized (this) {
+      timer = Bell.timerBell(backoff(host.failures-breaker_threshold+1));
+    } timer.new Promise() {
+      public void done() {
+        if (!isOpen(host)) return;
+        Log.fine("Probing unreachable host: ", host.name);
+        final SessionPool pool = scheduler.sessions;
+        Bell<Session> lease;
+        try {
+          lease = pool.lease(ep.select().session);
+        } catch (Exception e) {
+          lease = new Bell<Session>(e);
+        } lease.new Promise() {
+          public void done(Session s) {
+            pool.release(s);
+            reached(host.name);
+          } public void fail(Throwable t) {
+            synchronized (RetryControl.this) {
+              host.failures++;
+            } probe(host, ep);
+          }
+        };
+      }
+    };
+  }
+
+  private synchronized boolean isOpen(Host host) {
+    return host.open && hosts.get(host.name) == host;
+  }
+
+  // Forget a host's failures, and put any jobs parked on it back in the
+  // queue.
+  void reached(String name) {
+    List<Job> jobs;
+    synchronized (this) {
+      Host host = hosts.remove(name);
+      if (host == null)
+        return;
+      if (host.open)
+        Log.info("Host reachable again, resuming its jobs: ", name);
+      host.open = false;
+      jobs = host.parked;
+    } for (Job job : jobs)
+      resume(job);
+  }
+
+  // Put a parked job back in the queue.
+  void resume(Job job) {
+    scheduler.schedule(job);
+  }
+
+  // Get a backoff delay for the nth attempt, with jitter.
+  private double backoff(int n) {
+    if (n < 1)
+      return 0;
+    double d = retry_delay * Math.pow(2, Math.min(n-1, 30));
+    if (max_retry_delay > 0)
+      d = Math.min(d, max_retry_delay);
+    return d/2 + Math.random()*d/2;
+  }
+
+  private static Set<String> hosts(Job job) {
+    Set<String> set = new HashSet<String>(2);
+    set.add(job.source().host());
+    set.add(job.destination().host());
+    return set;
+  }
+}
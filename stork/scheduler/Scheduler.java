@@ -5,6 +5,7 @@ import stork.ad.*;
 import stork.cred.*;
 import stork.util.*;
 import stork.feather.*;
+import stork.feather.util.*;
 import stork.module.ftp.*;
 import stork.util.*;
 
@@ -32,8 +33,13 @@ public class Scheduler {
   public User.Map users = new User.Map();
   public CredManager creds = new CredManager();
 
-  public transient LinkedBlockingQueue<Job> jobs =
-    new LinkedBlockingQueue<Job>();
+  public transient JobQueue jobs = new FairJobQueue();
+
+  // Decides when queued jobs may start running.
+  transient AdmissionControl admission = new AdmissionControl();
+
+  // Decides when failed jobs are retried, and parks jobs to failing hosts.
+  transient RetryControl retries = new RetryControl(this);
 
   private transient StorkQueueThread[]  thread_pool;
   private transient StorkWorkerThread[] worker_pool;
@@ -47,9 +53,11 @@ public class Scheduler {
 
   private transient User anonymous = User.anonymous();
 
-  // Map of idle sessions, for session reuse.
-  private transient Map<Session, Session> session_pool =
-    Collections.synchronizedMap(new HashMap<Session, Session>());
+  // Pool of sessions shared by listings and transfers.
+  transient SessionPool sessions = new SessionPool();
+
+  // Recent listings, for answering repeated listing requests.
+  transient StatCache listings = new StatCache();
 
   // Map of ongoing listings, for request aggregation.
   private transient Map<Resource, Bell<Stat>> ls_aggregator =
@@ -97,39 +105,70 @@ public class Scheduler {
     public abstract void execute(O work);
   }
 
-  // A thread which runs continuously and starts jobs as they're found.
+  // A thread which runs continuously and starts jobs as they're found. Jobs
+  // run asynchronously, so this only waits for a job to show up in the queue.
   private class StorkQueueThread extends StorkThread<Job> {
     StorkQueueThread() {
       super("stork queue thread");
     }
 
+    // Wait for room to run a job before taking one, so jobs stay in the
+    // queue's order until they can actually run.
     public Job getAJob() throws Exception {
+      admission.awaitRoom();
       return jobs.take();
     }
 
-    // Continually remove jobs from the queue and start them.
+    // Continually remove jobs from the queue and start them, or hold them
+    // until there is room to run them.
     public void execute(Job job) {
       Log.info("Pulled job from queue: "+job);
 
-      // Run the job then check the return status.
-      switch (job.process()) {
-        // If a job is still processing, something weird happened.
-        case processing:
-          throw new RuntimeException("job still processing after completion");
-          // If job is scheduled, put it back in the schedule queue.
-        case scheduled:
-          Log.info("Job "+job.jobId()+" rescheduling...");
-          schedule(job); break;
-          // If the job was paused, put it in limbo until it's resumed.
-        case paused:  // This can't happen yet!
-          break;
-          // Alert the user if it failed.
-        case failed:
-          Log.info("Job "+job.jobId()+" failed!");
-      } dumpState();
+      if (job.isTerminated())
+        return;
+      if (retries.park(job))
+        Log.fine("Parking job ", job.jobId(), " until its hosts respond.");
+      else if (admission.admit(job))
+        runJob(job);
+      else
+        Log.fine("Holding job ", job.jobId(), " until there is room for it.");
     }
   }
 
+  // Start running an admitted job, and see to it once it stops.
+  private void runJob(final Job job) {
+    job.process().new Promise() {
+      public void done(JobStatus status) { jobStopped(job, status); }
+    };
+  }
+
+  // Called when a running job stops. Starts whatever held jobs now have room
+  // to run, and checks the stopped job's status.
+  private void jobStopped(final Job job, JobStatus status) {
+    for (Job j : admission.release(job))
+      runJob(j);
+    retries.stopped(job);
+
+    switch (status) {
+      // If job is scheduled, put it back in the schedule queue once it has
+      // backed off.
+      case scheduled:
+        double delay = retries.delay(job);
+        Log.info("Job "+job.jobId()+" rescheduling in "+
+                 String.format("%.1f", delay)+" seconds...");
+        Bell timer = Bell.timerBell(delay);
+        timer.new Promise() {
+          public void done() { schedule(job); }
+        }; break;
+      // If the job was paused, put it in limbo until it's resumed.
+      case paused:  // This can't happen yet!
+        break;
+      // Alert the user if it failed.
+      case failed:
+        Log.info("Job "+job.jobId()+" failed!");
+    } dumpState();
+  }
+
   // A thread which handles client requests.
   private class StorkWorkerThread extends StorkThread<Request> {
     StorkWorkerThread() {
@@ -208,15 +247,24 @@ public class Scheduler {
       Bell bell = new Bell();
       List l = new JobSearcher(req.user.jobs).query(req.ad);
 
-      return bell.ring(req.ad.getBoolean("count") ?
-        new Ad("count", l.size()) : Ad.marshal(req.user.jobs));
+      if (req.ad.getBoolean("count"))
+        return bell.ring(new Ad("count", l.size()));
+
+      // Job ads leave out their checkpoints, which are only for resuming.
+      List<Ad> ads = new ArrayList<Ad>();
+      for (Job j : req.user.jobs)
+        ads.add(j.getAd());
+      return bell.ring(Ad.marshal(ads));
     }
   }
 
   class StorkMkdirHandler extends Handler {
     public Bell handle(Request req) {
       Endpoint ep = req.ad.unmarshalAs(Endpoint.class);
-      return ep.select().mkdir();
+      final Resource res = ep.select();
+      return res.mkdir().new Promise() {
+        public void always() { listings.invalidate(res); }
+      };
     }
 
     public boolean requiresLogin() {
@@ -227,7 +275,10 @@ public class Scheduler {
   class StorkRmfHandler extends Handler {
     public Bell handle(Request req) {
       Endpoint ep = req.ad.unmarshalAs(Endpoint.class);
-      return ep.select().delete();
+      final Resource res = ep.select();
+      return res.delete().new Promise() {
+        public void always() { listings.invalidate(res); }
+      };
     }
 
     public boolean requiresLogin() {
@@ -238,27 +289,27 @@ public class Scheduler {
   class StorkLsHandler extends Handler {
     public synchronized Bell handle(Request req) {
       final Endpoint ep = req.ad.unmarshalAs(Endpoint.class);
-      Resource nr = ep.select();
-
-      // See if there's an existing session we can reuse.
-      Session session = session_pool.remove(nr.session);
-      if (session != null && !session.isClosed()) {
-        Log.fine("Reusing existing session: ", session);
-        nr = nr.reselectOn(session);
-      } else {
-        final Session s = nr.session;
-        Log.fine("Using new session: ", s);
-        s.onClose(new Bell() {
-          public void always() {
-            Log.fine("Removing from session pool: ", s);
-            synchronized (session_pool) {
-              session_pool.remove(s);
-            }
+      final Resource res = ep.select();
+
+      // Stream entries as they are listed, if asked. Streamed listings are
+      // not shared between requests.
+      if (req.ad.getBoolean("stream")) {
+        return sessions.lease(res.session).new As<Emitter<Stat>>() {
+          public Emitter<Stat> convert(final Session s) {
+            Log.fine("Streaming listing using session: ", s);
+            Emitter<Stat> entries = res.reselectOn(s).listStats();
+            entries.new Promise() {
+              public void always() { sessions.release(s); }
+            };
+            return entries;
           }
-        });
+        };
       }
 
-      final Resource res = nr;
+      // See if the listing was made recently.
+      Stat cached = listings.get(res);
+      if (cached != null)
+        return new Bell<Stat>(cached);
 
       // See if there is an on-going listing request.
       Bell<Stat> listing = ls_aggregator.get(res);
@@ -267,24 +318,22 @@ public class Scheduler {
         return listing;
       }
 
-      listing = res.stat();
-
-      // Register the ongoing listing.
-      ls_aggregator.put(res, listing);
-      listing.new Promise() {
-        public void always() {
-          ls_aggregator.remove(res);
+      // List on a pooled session, and put it back when we're done.
+      listing = sessions.lease(res.session).new AsBell<Stat>() {
+        public Bell<Stat> convert(final Session s) {
+          Log.fine("Listing using session: ", s);
+          return res.reselectOn(s).stat().new Promise() {
+            public void always() { sessions.release(s); }
+          };
         }
       };
 
-      // Put the session back when we're done.
+      // Register the ongoing listing, and cache it once it's done.
+      ls_aggregator.put(res, listing);
       listing.new Promise() {
-        public void always() {
-          Session s = res.session;
-          synchronized (session_pool) {
-            if (!s.isClosed() && !session_pool.containsKey(s))
-              session_pool.put(s, s);
-          }
+        public void done(Stat stat) {
+          listings.put(res, stat);
+        } public void always() {
           ls_aggregator.remove(res);
         }
       };
@@ -391,6 +440,17 @@ public class Scheduler {
       Ad ad = new Ad();
       ad.put("version", Stork.version());
       ad.put("commands", new Ad(cmd_handlers.keySet()));
+      ad.put("jobs", new Ad()
+        .put("queued", jobs.size())
+        .put("running", admission.running())
+        .put("held", admission.held())
+        .put("parked", retries.parked())
+        .put("hosts", Ad.marshal(admission.hosts())));
+      ad.put("ls_cache", new Ad()
+        .put("hits", listings.hits())
+        .put("misses", listings.misses())
+        .put("evictions", listings.evictions())
+        .put("entries", listings.entries()));
       return ad;
     }
 
@@ -458,26 +518,129 @@ public class Scheduler {
       Log.warning("no transfer modules registered");
   }
 
-  // Initialize the thread pool according to config.
-  // TODO: Replace worker threads with asynchronous I/O.
-  public void initThreadPool() {
+  // Configure the session pool according to config.
+  public void initSessionPool() {
+    int max = env.getInt("max_sessions_per_host", 4);
+    double idle = env.getDouble("session_idle_timeout", 300);
+
+    if (max < 1) {
+      max = 4;
+      Log.warning("invalid value for max_sessions_per_host, "+
+                  "defaulting to "+max);
+    }
+
+    sessions.max_per_host = max;
+    sessions.idle_timeout = idle;
+
+    listings.ttl = env.getDouble("ls_cache_ttl", 30);
+    int entries = env.getInt("ls_cache_entries", 100000);
+    if (entries < 0) {
+      entries = 100000;
+      Log.warning("invalid value for ls_cache_entries, "+
+                  "defaulting to "+entries);
+    } listings.max_entries = entries;
+
+    String ports = env.get("ftp_active_ports");
+    if (ports != null) try {
+      FTPChannel.activePorts(new Range(ports));
+    } catch (Exception e) {
+      Log.warning("invalid value for ftp_active_ports, using any port");
+    }
+  }
+
+  // Set the job queue policy according to config. Jobs already queued, for
+  // instance from a state file, are moved into the new queue. Jobs held for
+  // admission are ordered by the same policy.
+  public void initQueue() {
+    String policy = env.get("queue_policy", "fair");
+    JobQueue queue;
+
+    try {
+      queue = JobQueue.create(policy);
+    } catch (Exception e) {
+      queue = new FairJobQueue();
+      policy = "fair";
+      Log.warning("invalid value for queue_policy, defaulting to fair");
+    }
+
+    for (Job j; (j = jobs.poll()) != null;)
+      queue.add(j);
+    jobs = queue;
+    admission.policy = policy;
+  }
+
+  // Configure how many jobs may run at once according to config.
+  public void initAdmission() {
     int jn = env.getInt("max_jobs", 10);
-    int wn = env.getInt("workers", 4);
+    int un = env.getInt("max_jobs_per_user", 0);
+    int hn = env.getInt("max_jobs_per_host", 0);
+    int pn = env.getInt("max_jobs_per_pair", 0);
 
     if (jn < 1) {
       jn = 10;
       Log.warning("invalid value for max_jobs, "+
                   "defaulting to "+jn);
-    } if (wn < 1) {
+    }
+
+    admission.max_jobs = jn;
+    admission.max_per_user = un;
+    admission.max_per_host = hn;
+    admission.max_per_pair = pn;
+
+    String limits = env.get("host_limits");
+    if (limits != null) try {
+      admission.parseHostLimits(limits);
+    } catch (Exception e) {
+      Log.warning("invalid value for host_limits: "+e.getMessage());
+    }
+  }
+
+  // Configure how failed jobs are retried according to config.
+  public void initRetries() {
+    double rd = env.getDouble("retry_delay", 5);
+    double md = env.getDouble("max_retry_delay", 600);
+    int bt = env.getInt("breaker_threshold", 5);
+
+    if (rd < 0) {
+      rd = 5;
+      Log.warning("invalid value for retry_delay, "+
+                  "defaulting to "+rd);
+    }
+
+    retries.retry_delay = rd;
+    retries.max_retry_delay = md;
+    retries.breaker_threshold = bt;
+  }
+
+  // Initialize the thread pool according to config.
+  // TODO: Replace worker threads with asynchronous I/O.
+  public void initThreadPool() {
+    int wn = env.getInt("workers", 4);
+    int dn = env.getInt("dispatch_threads", 1);
+    int di = env.getInt("dispatch_inline", 64);
+
+    if (wn < 1) {
       wn = 4;
       Log.warning("invalid value for workers, "+
                   "defaulting to "+wn);
+    } if (dn < 1) {
+      dn = 1;
+      Log.warning("invalid value for dispatch_threads, "+
+                  "defaulting to "+dn);
+    } if (di < 0) {
+      di = 64;
+      Log.warning("invalid value for dispatch_inline, "+
+                  "defaulting to "+di);
     }
 
-    thread_pool = new StorkQueueThread[jn];
+    Dispatcher.threads(dn);
+    Dispatcher.inline(di);
+
+    thread_pool = new StorkQueueThread[1];
     worker_pool = new StorkWorkerThread[wn];
     
-    Log.info("Starting "+jn+" job threads, and "+wn+" worker threads...");
+    Log.info("Starting a job thread, "+wn+" worker threads, and "+
+             dn+" dispatch threads...");
 
     for (int i = 0; i < thread_pool.length; i++) {
       thread_pool[i] = new StorkQueueThread();
@@ -639,8 +802,10 @@ public class Scheduler {
       users.insert(u);
 
       // Add their unfinished jobs.
-      if (u.jobs != null) for (Job j : u.jobs)
+      if (u.jobs != null) for (Job j : u.jobs) {
+        j.user(u);
         if (!j.isTerminated()) schedule(j.status(JobStatus.scheduled));
+      }
     }
   }
 
@@ -714,8 +879,15 @@ public class Scheduler {
     // Initialize transfer module set
     modules = ModuleTable.instance();
 
-    // Initialize workers
+    // Initialize workers. Jobs restored from the state file are taken from
+    // the queue as soon as the threads start, so everything they use must be
+    // configured, and the instance published, before then.
     populateModules();
+    initQueue();
+    initAdmission();
+    initRetries();
+    initSessionPool();
+    instance = this;
     initThreadPool();
 
     dump_state_thread = new DumpStateThread();
@@ -0,0 +1,60 @@
+package stork.scheduler;
+
+import java.util.*;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import static stork.scheduler.TestFairJobQueue.*;
+
+/** Tests for {@link AdmissionControl}. */
+public class TestAdmissionControl {
+  private final User user = user("a@a.org", 1);
+
+  private Job job(String src, String dest) {
+    return TestFairJobQueue.job(user, "ftp://"+src+"/x", "ftp://"+dest+"/y");
+  }
+
+  @Test(timeout = 3000)
+  public void testPairAndHostLimits() {
+    AdmissionControl ac = new AdmissionControl();
+    ac.max_per_pair = 1;
+    ac.parseHostLimits("b.org=2");
+
+    Job ab1 = job("a.org", "b.org"), ab2 = job("a.org", "b.org");
+    Job cb = job("c.org", "b.org"), db = job("d.org", "b.org");
+    Job ae = job("a.org", "e.org");
+    assertTrue("First job was held.", ac.admit(ab1));
+    assertFalse("Pair went over its limit.", ac.admit(ab2));
+    assertTrue("Job on another pair was held.", ac.admit(cb));
+    assertFalse("Host went over its limit.", ac.admit(db));
+    assertTrue("Job bound elsewhere was held behind a full host.",
+               ac.admit(ae));
+    assertEquals("Wrong number running.", 3, ac.running());
+    assertEquals("Wrong number held.", 2, ac.held());
+
+    // The job held on the host takes the room first. The one held on the
+    // pair now fits the pair, but the host is full again, so it waits there.
+    assertEquals("Wrong jobs admitted.",
+                 Arrays.asList(db), ac.release(ab1));
+    assertEquals("Job was lost moving to another limit.", 1, ac.held());
+    assertEquals("Wrong jobs admitted.",
+                 Arrays.asList(ab2), ac.release(cb));
+    assertEquals("Jobs are still held.", 0, ac.held());
+    assertEquals("Wrong host counts.", 2, (int) ac.hosts().get("b.org"));
+  }
+
+  @Test(timeout = 3000)
+  public void testTerminatedJobsAreDropped() {
+    AdmissionControl ac = new AdmissionControl();
+    ac.max_jobs = 1;
+    Job a = job("a.org", "b.org"), b = job("a.org", "b.org"),
+        c = job("c.org", "d.org");
+    assertTrue("First job was held.", ac.admit(a));
+    assertFalse("Went over the overall limit.", ac.admit(b));
+    assertFalse("Went over the overall limit.", ac.admit(c));
+    b.remove("Removed while held.");
+    assertEquals("Wrong jobs admitted.", Arrays.asList(c), ac.release(a));
+    assertEquals("Removed job is still held.", 0, ac.held());
+  }
+}
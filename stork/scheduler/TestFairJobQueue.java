@@ -0,0 +1,78 @@
+package stork.scheduler;
+
+import java.util.*;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import stork.ad.*;
+
+/**
+ * Tests for {@link FairJobQueue}. These live with the scheduler since they
+ * need its package-private parts.
+ */
+public class TestFairJobQueue {
+  // Create a job for a user between two URLs.
+  static Job job(User user, String src, String dest) {
+    return Job.create(user, new Ad("src", src).put("dest", dest));
+  }
+
+  static User user(String email, double weight) {
+    User user = new User(email);
+    user.weight = weight;
+    return user;
+  }
+
+  @Test(timeout = 20000)
+  public void testWeightedInterleaving() {
+    FairJobQueue queue = new FairJobQueue();
+    User heavy = user("heavy@a.org", 2), light = user("light@b.org", 1);
+
+    // The heavy user's backlog is queued first, but doesn't hold the light
+    // user back.
+    for (int i = 0; i < 100000; i++)
+      queue.add(job(heavy, "ftp://a.org/"+i, "ftp://b.org/"+i));
+    for (int i = 0; i < 1000; i++)
+      queue.add(job(light, "ftp://c.org/"+i, "ftp://b.org/"+i));
+    assertEquals("Queue lost jobs.", 101000, queue.size());
+
+    int lights = 0;
+    for (int i = 1; i <= 3000; i++) {
+      if (queue.poll().user() == light)
+        lights++;
+      assertTrue("Light user did not get a third of the turns.",
+                 Math.abs(lights - i/3) <= 1);
+    } assertEquals("Light user's jobs were not all run.", 1000, lights);
+
+    // Having been idle, the light user gets no saved-up turns, but isn't made
+    // to wait behind the heavy user's backlog either.
+    for (int i = 0; i < 1000; i++)
+      assertSame("Queue went out of turn.", heavy, queue.poll().user());
+    for (int i = 0; i < 10; i++)
+      queue.add(job(light, "ftp://c.org/x"+i, "ftp://b.org/x"+i));
+    List<User> next = new ArrayList<User>();
+    for (int i = 0; i < 30; i++)
+      next.add(queue.poll().user());
+    assertSame("Returning user waited behind the backlog.",
+               light, next.get(0));
+    assertTrue("Returning user got saved-up turns.",
+               Collections.frequency(next.subList(0, 6), light) <= 3);
+    assertTrue("Returning user got the wrong share.",
+               Math.abs(Collections.frequency(next, light) - 10) <= 1);
+    assertEquals("Queue lost jobs.", 97000+10-30, queue.size());
+  }
+
+  @Test(timeout = 3000)
+  public void testPriorityWithinUser() {
+    FairJobQueue queue = new FairJobQueue();
+    User user = user("a@a.org", 1);
+    Job low = job(user, "ftp://a.org/1", "ftp://b.org/1");
+    Job high = Job.create(user, new Ad("src", "ftp://a.org/2")
+      .put("dest", "ftp://b.org/2").put("priority", 5));
+    queue.add(low);
+    queue.add(high);
+    assertSame("Higher priority job did not go first.", high, queue.poll());
+    assertSame("Queue lost a job.", low, queue.poll());
+    assertNull("Empty queue gave a job.", queue.poll());
+  }
+}
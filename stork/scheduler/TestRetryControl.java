@@ -0,0 +1,63 @@
+package stork.scheduler;
+
+import java.util.*;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import static stork.scheduler.TestFairJobQueue.*;
+
+/** Tests for {@link RetryControl}. */
+public class TestRetryControl {
+  private final User user = user("a@a.org", 1);
+  private final List<Job> resumed = new ArrayList<Job>();
+
+  // A retry control which keeps the jobs it resumes instead of scheduling
+  // them. Probes back off long enough that none happen during a test.
+  private RetryControl retries(int threshold) {
+    RetryControl rc = new RetryControl(null) {
+      void resume(Job job) { resumed.add(job); }
+    };
+    rc.breaker_threshold = threshold;
+    rc.retry_delay = rc.max_retry_delay = 600;
+    return rc;
+  }
+
+  @Test(timeout = 3000)
+  public void testBreakerOpensAndResets() {
+    RetryControl rc = retries(3);
+    Endpoint b = new Endpoint("ftp://b.org/");
+    Job job = job(user, "ftp://a.org/x", "ftp://b.org/y");
+    Job other = job(user, "ftp://a.org/x", "ftp://c.org/y");
+
+    for (int i = 1; i < 3; i++) {
+      rc.failed(b);
+      assertFalse("Breaker opened after "+i+" failures.", rc.park(job));
+    }
+    assertTrue("Failed host did not delay its jobs.", rc.delay(job) >= 300);
+    rc.failed(b);
+    assertTrue("Breaker did not open on the third failure.", rc.park(job));
+    assertFalse("Job bound elsewhere was parked.", rc.park(other));
+    assertEquals("Wrong number parked.", 1, rc.parked());
+
+    // Reaching the host lets its jobs go and forgets its failures.
+    rc.reached("b.org");
+    assertEquals("Parked job was not resumed.",
+                 Arrays.asList(job), resumed);
+    assertEquals("Jobs are still parked.", 0, rc.parked());
+    assertEquals("Reached host still delays jobs.", 0, rc.delay(job), 0);
+    rc.failed(b);
+    rc.failed(b);
+    assertFalse("Breaker kept old failures.", rc.park(job));
+  }
+
+  @Test(timeout = 3000)
+  public void testBreakerDisabled() {
+    RetryControl rc = retries(0);
+    Endpoint b = new Endpoint("ftp://b.org/");
+    for (int i = 0; i < 10; i++)
+      rc.failed(b);
+    assertFalse("Disabled breaker opened.",
+                rc.park(job(user, "ftp://a.org/x", "ftp://b.org/y")));
+  }
+}
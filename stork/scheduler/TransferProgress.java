@@ -0,0 +1,106 @@
+package stork.scheduler;
+
+import stork.ad.*;
+import stork.feather.*;
+import stork.feather.util.*;
+
+/**
+ * The progress of a job's transfer. Totals are filled in by scanning the
+ * source tree alongside the transfer, and the time remaining is estimated
+ * from the bytes left to transfer and the current throughput. Until the scan
+ * has finished, the totals and the estimate cover only what has been found.
+ */
+public class TransferProgress implements Transfer.Listener {
+  private volatile Progress bytes = new Progress(), files = new Progress();
+  private final Throughput throughput = new Throughput();
+  private final Time timer = new Time();
+  private Crawler scan;
+
+  { timer.stop(); }
+
+  /**
+   * Start scanning {@code resource} for the totals. The counts start over,
+   * since a resumed transfer reports what was done before as it goes.
+   *
+   * @param resource the root of the tree being transferred.
+   */
+  public synchronized void scan(Resource resource) {
+    bytes = new Progress();
+    files = new Progress();
+    scan = new TreeScan(resource, bytes, files);
+    scan.start();
+  }
+
+  /** Check if the totals are complete. */
+  public synchronized boolean isScanned() {
+    return scan != null && scan.isSuccessful();
+  }
+
+  /** Get the number of bytes found to transfer so far. */
+  public long totalBytes() {
+    return bytes.total();
+  }
+
+  /** Called when the transfer starts running. */
+  public synchronized void started() {
+    timer.resume();
+  }
+
+  /** Called when the transfer stops, for whatever reason. */
+  public synchronized void stopped() {
+    timer.stop();
+    if (scan != null && !scan.isDone())
+      scan.cancel();
+  }
+
+  /** Record that {@code n} bytes have been transferred. */
+  public void transferred(long n) {
+    bytes.add(n);
+    throughput.update(n);
+  }
+
+  /** Record that {@code n} bytes were transferred by an earlier attempt. */
+  public void resumed(long n) {
+    bytes.add(n);
+  }
+
+  /** Record that a file has been transferred. */
+  public void fileDone() {
+    files.add(1);
+  }
+
+  // The average throughput since starting, in bytes per second.
+  private double average() {
+    double t = timer.elapsed()/1E3;
+    return (t <= 0) ? 0 : bytes.done()/t;
+  }
+
+  /**
+   * Estimate the number of seconds remaining, based on the current
+   * throughput, or the average if nothing is moving right now.
+   *
+   * @return The estimated seconds remaining, or -1 if it can't be estimated.
+   */
+  public synchronized long eta() {
+    double rate = throughput.value();
+    if (rate <= 0)
+      rate = average();
+    if (rate <= 0 || bytes.total() <= 0)
+      return -1;
+    return (long) Math.ceil(Math.max(0, bytes.remaining())/rate);
+  }
+
+  /** Get an ad describing the progress. */
+  public synchronized Ad getAd() {
+    Ad ad = new Ad();
+    ad.put("bytes", Ad.marshal(bytes)
+      .put("avg", (long) average())
+      .put("inst", (long) throughput.value()));
+    ad.put("files", Ad.marshal(files));
+    ad.put("scanned", isScanned());
+    long eta = eta();
+    if (eta >= 0)
+      ad.put("eta", eta);
+    return ad;
+  }
+}
@@ -19,6 +19,7 @@ public class User {
   public String hash;
   public String salt;
   public String name;
+  public double weight = 1;  // The user's share of the job queue.
 
   public ArrayList<Job> jobs = new ArrayList<Job>();
   public LinkedList<URI> history = new LinkedList<URI>();
@@ -62,7 +63,7 @@ public class User {
     // Add a user to this user map based on a registration ad.
     public synchronized User register(Ad ad) {
       // Filter some stuff we don't want from users.
-      ad.remove("jobs", "creds");
+      ad.remove("jobs", "creds", "weight");
 
       User su = new User(ad);
       su.setPassword(ad.get("password"));
@@ -161,6 +162,11 @@ public class User {
     return (name != null) ? name : email;
   }
 
+  // Get the weight of the user's share of turns in the job queue.
+  public synchronized double weight() {
+    return (weight > 0) ? weight : 1;
+  }
+
   // Get an anonymous user.
   public static User anonymous() {
     return new User() {
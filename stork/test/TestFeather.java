@@ -1,13 +1,25 @@
 package stork.test;
 
+import java.io.*;
+import java.util.*;
+
+import io.netty.buffer.*;
+import io.netty.util.*;
+import org.junit.After;
+import org.junit.BeforeClass;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
 import stork.feather.*;
 import stork.feather.util.*;
+import stork.module.ftp.*;
 
 /** Tests for Feather. */
 public class TestFeather {
+  @BeforeClass public static void detectLeaks() {
+    ResourceLeakDetector.setLevel(ResourceLeakDetector.Level.PARANOID);
+  }
+
   @Test(timeout = 3000)
   public void testBell() {
     Bell<String> a = new Bell<String>();
@@ -29,6 +41,34 @@ public class TestFeather {
     new Bell().deadline(.5).sync();
   }
 
+  @Test(timeout = 3000)
+  public void testBellTimers() {
+    Bell<String> early = new Bell<String>().deadline(.05);
+    early.ring("early");
+    Bell late = Bell.timerBell(6);  // More than one turn of the wheel.
+    Bell.timerBell(.1).sync();
+    assertEquals("Cancelled deadline fired.", "early", early.sync());
+    Bell<String> shorter = new Bell<String>().deadline(60).deadline(.05);
+    try {
+      shorter.sync();
+      fail("Earlier deadline did not fire.");
+    } catch (RuntimeException e) { }
+    assertFalse("Timer rang too early.", late.isDone());
+    late.cancel();
+  }
+
+  @Test(timeout = 3000)
+  public void testBellAllAny() {
+    Bell a = new Bell(), b = new Bell(), c = new Bell();
+    Bell all = Bell.all(a, b, c), any = Bell.any(a, b, c);
+    b.ring();
+    any.sync();
+    assertFalse("All-bell rang early.", all.isDone());
+    a.ring();
+    c.ring();
+    all.sync();
+  }
+
   @Test(timeout = 3000)
   public void testBellAsMethod() {
     Bell a = new Bell();
@@ -41,6 +81,75 @@ public class TestFeather {
       fail("As-bell rang with bad value: "+s);
   }
 
+  @Test(timeout = 3000)
+  public void testDispatcherOrdering() {
+    final List<Integer> order =
+      Collections.synchronizedList(new ArrayList<Integer>());
+    final Object key = new Object();
+    Dispatcher.threads(4);
+    try {
+      Bell<Integer> last = null;
+      for (int i = 0; i < 100; i++) {
+        final int n = i;
+        last = new Bell<Integer>() {
+          public void done(Integer i) { order.add(n); }
+        }.affinity(key);
+        last.ring(i);
+      }
+      last.promise(new Bell<Integer>()).sync();
+      for (int i = 0; i < 100; i++)
+        assertEquals("Handlers ran out of order.", i, (int) order.get(i));
+    } finally {
+      Dispatcher.threads(1);
+    }
+  }
+
+  @Test public void testDispatcherInline() {
+    List<Integer> order = new ArrayList<Integer>();
+    Bell<Integer> end = new Bell<Integer>();
+    // Longer than the inline limit, so the chain has to spill over.
+    chain(order, 0, 1000, end);
+    end.sync();
+    for (int i = 0; i <= 1000; i++)
+      assertEquals("Inline handlers ran out of order.", i, (int) order.get(i));
+  }
+
+  // Promise a handler on a rung bell which records i and then does the same
+  // for i+1.
+  private static void chain(final List<Integer> order, final int i,
+                            final int n, final Bell<Integer> end) {
+    Bell.rungBell().promise(new Bell() {
+      public void done() {
+        order.add(i);
+        if (i < n)
+          chain(order, i+1, n, end);
+        else
+          end.ring(i);
+      }
+    });
+  }
+
+  @Test public void testConcurrentPromise() throws Exception {
+    final Bell<String> shared = new Bell<String>();
+    final List<Bell<String>> bells =
+      Collections.synchronizedList(new ArrayList<Bell<String>>());
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        public void run() {
+          for (int j = 0; j < 1000; j++)
+            bells.add(shared.promise(new Bell<String>()));
+        }
+      };
+      threads[i].start();
+    }
+    shared.ring("rung");
+    for (Thread t : threads)
+      t.join();
+    for (Bell<String> b : bells)
+      assertEquals("Promise was lost.", "rung", b.sync());
+  }
+
   @Test public void testEmitter() {
     Emitter<String> emitter = new Emitter<String>();
     Bell<String> a, b, c;
@@ -81,4 +190,512 @@ public class TestFeather {
     assertEquals("Second queued emit failed.", b.sync(), "two");
     assertEquals("Third queued emit failed.", c.sync(), "three");
   }
+
+  @Test(timeout = 3000)
+  public void testEmitterDrained() {
+    Emitter<String> emitter = new Emitter<String>();
+    assertTrue("Empty emitter is not drained.", emitter.drained(2).isDone());
+
+    emitter.emit("one");
+    emitter.emit("two");
+    emitter.emit("three");
+    Bell drained = emitter.drained(2);
+    assertFalse("Backlogged emitter is drained.", drained.isDone());
+    emitter.get();
+    assertFalse("Emitter drained too early.", drained.isDone());
+    emitter.get();
+    assertTrue("Emitter did not drain.", drained.isDone());
+
+    // Finishing the emitter releases the producer.
+    drained = emitter.drained(1);
+    emitter.ring();
+    drained.sync();
+  }
+
+  @Test
+  public void testCheckpointCollapse() {
+    Checkpoint cp = new Checkpoint();
+    cp.done(Path.create("/d/a"));
+    cp.started(Path.create("/d/b"), 10);
+    cp.written(Path.create("/d/b"), 0, 5);
+    cp.done(Path.create("/e"));
+    cp.done(Path.create("/d"));
+    assertTrue("Directory did not cover what is in it.",
+               cp.isDone(Path.create("/d/b")));
+    assertFalse("Sibling was taken to be done.",
+                cp.isDone(Path.create("/f")));
+    assertEquals("Directory kept entries for what is in it.",
+                 "=/d\n=/e\n", cp.encode());
+
+    Path odd = Path.ROOT.appendLiteral("a\nb\\n");
+    cp = new Checkpoint();
+    cp.done(odd);
+    cp = Checkpoint.decode(cp.encode());
+    assertTrue("Path with a line break was not kept.", cp.isDone(odd));
+    assertFalse("Path with a line break was split.",
+                cp.isDone(Path.create("/a")));
+  }
+
+  @Test(timeout = 3000)
+  public void testSessionPool() {
+    SessionPool pool = new SessionPool();
+    pool.max_per_host = 1;
+    Session a = hostSession(), b = hostSession();
+    assertSame("Pool did not open the given session.", a, pool.lease(a).sync());
+    a.max_listings = 16;
+    Bell<Session> second = pool.lease(b);
+    assertFalse("Pool went over its limit.", second.isDone());
+    pool.release(a);
+    assertSame("Idle session was not reused.", a, second.sync());
+    assertEquals("Settings carried over to the next lease.",
+                 b.max_listings, a.max_listings);
+    pool.release(a);
+    a.close();
+    assertSame("Closed session was reused.", b, pool.lease(b).sync());
+  }
+
+  @Test(timeout = 3000)
+  public void testSessionPoolGroupLease() {
+    SessionPool pool = new SessionPool();
+    pool.max_per_host = 2;
+    Session a = hostSession(), b = hostSession(),
+            c = hostSession(), d = hostSession();
+    pool.lease(a).sync();
+    Bell<List<Session>> pair = pool.lease(b, c);
+    assertFalse("Pair was leased without room for both.", pair.isDone());
+    Bell<Session> single = pool.lease(d);
+    assertFalse("Later lease went ahead of the pair.", single.isDone());
+    pool.release(a);
+    List<Session> got = pair.sync();
+    assertEquals("Pair lease got the wrong number of sessions.",
+                 2, got.size());
+    assertNotSame("Pair got one session twice.", got.get(0), got.get(1));
+    assertFalse("Pool went over its limit.", single.isDone());
+    pool.release(got.get(0));
+    assertSame("Idle session was not reused.", got.get(0), single.sync());
+  }
+
+  @Test(timeout = 3000)
+  public void testSessionPoolUnpooled() {
+    SessionPool pool = new SessionPool();
+    pool.max_per_host = 1;
+    LocalSession a = new LocalSession(), b = new LocalSession(),
+                 c = new LocalSession();
+    assertSame("Pool did not hand out a local session.",
+               a, pool.lease(a).sync());
+    assertEquals("Local sessions were limited.",
+                 Arrays.<Session>asList(b, c), pool.lease(b, c).sync());
+    assertNotNull("Local session could not be tried.", pool.tryLease(a));
+    pool.release(a);
+    assertTrue("Released local session was kept.", a.isClosed());
+    pool.release(b);
+    pool.release(c);
+  }
+
+  // A session to a host which needs nothing to initialize.
+  private static Session hostSession() {
+    return new Session(URI.create("test://host")) {
+      public Resource select(Path path) {
+        return new Resource(this, path) { };
+      }
+    };
+  }
+
+  @Test(timeout = 3000)
+  public void testStatCache() {
+    StatCache cache = new StatCache();
+    cache.max_entries = 3;
+    LocalSession session = new LocalSession();
+    LocalResource dir = session.select(Path.create("/dir"));
+    LocalResource a = session.select(Path.create("/dir/a"));
+    LocalResource b = session.select(Path.create("/b"));
+    Stat listing = new Stat("dir");
+    listing.files = new Stat[] { new Stat("a") };
+
+    cache.put(dir, listing);
+    cache.put(b, new Stat("b"));
+    assertSame("Listing was not cached.", listing, cache.get(dir));
+    cache.put(a, new Stat("a"));
+    assertNull("Least recently used entry was not evicted.", cache.get(b));
+    assertEquals(1, cache.evictions());
+
+    cache.invalidate(a);
+    assertNull("Parent listing was not invalidated.", cache.get(dir));
+    assertEquals("Cache did not count its entries.", 0, cache.entries());
+
+    cache.ttl = 0;
+    cache.put(b, new Stat("b"));
+    assertNull("Expired entry was returned.", cache.get(b));
+    assertEquals(1, cache.hits());
+    assertEquals(3, cache.misses());
+  }
+
+  // A scratch directory for the test, and the sessions it opened. Both are
+  // cleaned up after each test, whether or not it passed.
+  private File temp;
+  private final List<Session> sessions = new ArrayList<Session>();
+
+  @After public void cleanUp() {
+    for (Session session : sessions)
+      session.close();
+    sessions.clear();
+    if (temp != null)
+      delete(temp);
+    temp = null;
+  }
+
+  // Get the scratch directory, creating it the first time.
+  private File temp() throws IOException {
+    if (temp == null) {
+      temp = File.createTempFile("feather", ".dir");
+      temp.delete();
+      temp.mkdirs();
+    } return temp;
+  }
+
+  // Get a file in the scratch directory.
+  private File temp(String name) throws IOException {
+    return new File(temp(), name);
+  }
+
+  // Open a local session at dir, to be closed after the test.
+  private LocalSession session(File dir) {
+    LocalSession session = new LocalSession(Path.create(dir.getPath()));
+    sessions.add(session);
+    return session;
+  }
+
+  // Create a transfer between two paths of a session.
+  private static Transfer transfer(LocalSession session,
+                                   String src, String dest) {
+    return session.select(Path.create(src)).transferTo(
+      session.select(Path.create(dest)));
+  }
+
+  // Get size bytes of random data.
+  private static byte[] random(int size, long seed) {
+    byte[] data = new byte[size];
+    new Random(seed).nextBytes(data);
+    return data;
+  }
+
+  // Write data to a file, creating the directories above it.
+  private static void write(File file, byte[] data) throws IOException {
+    file.getParentFile().mkdirs();
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(data);
+    } finally {
+      out.close();
+    }
+  }
+
+  // Read the whole of a file.
+  private static byte[] read(File file) throws IOException {
+    byte[] data = new byte[(int) file.length()];
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    try {
+      in.readFully(data);
+    } finally {
+      in.close();
+    } return data;
+  }
+
+  // Delete a file, or a directory and everything in it.
+  private static void delete(File file) {
+    File[] files = file.listFiles();
+    if (files != null) for (File f : files)
+      delete(f);
+    file.delete();
+  }
+
+  // A listener which counts the bytes moved and resumed, and counts finished
+  // files as the total of moved.
+  private static class Counter implements Transfer.Listener {
+    final Progress moved = new Progress(), resumed = new Progress();
+    public void transferred(long bytes) { moved.add(bytes); }
+    public void resumed(long bytes) { resumed.add(bytes); }
+    public void fileDone() { moved.add(0, 1); }
+  }
+
+  @Test(timeout = 5000)
+  public void testCrawler() throws Exception {
+    for (int i = 0; i < 3; i++) for (int j = 0; j < 5; j++)
+      write(temp("sub"+i+"/file"+j), new byte[0]);
+
+    final List<Path> order =
+      Collections.synchronizedList(new ArrayList<Path>());
+    final Bell resume = new Bell();
+    Crawler<LocalResource> crawler =
+      new Crawler<LocalResource>(session(temp()).root(), true) {
+        protected Bell operate(Path path, LocalResource r, Stat stat) {
+          order.add(path);
+          if (order.size() == 4)
+            pauseUntil(resume);
+          return null;
+        }
+      };
+    crawler.concurrency = 1;
+    crawler.depth_first = true;
+    crawler.bottom_up = true;
+    crawler.start();
+
+    Bell.timerBell(.2).sync();
+    assertFalse("Paused crawler finished.", crawler.isDone());
+    resume.ring();
+    crawler.sync();
+
+    assertEquals("Crawler missed resources.", 19, order.size());
+    assertEquals("Root was not operated on last.", Path.ROOT, order.get(18));
+    for (int i = 0; i < order.size(); i++) {
+      Path p = order.get(i);
+      if (!p.isRoot() && p.up().isRoot()) for (int j = i; j < 18; j++)
+        assertFalse("Directory was operated on before its contents.",
+                    p.prefixes(order.get(j)) && !p.equals(order.get(j)));
+    }
+  }
+
+  @Test(timeout = 5000)
+  public void testTreeScan() throws Exception {
+    for (int i = 1; i <= 4; i++)
+      write(temp((i%2 == 0) ? "sub/file"+i : "file"+i), new byte[100*i]);
+
+    Progress bytes = new Progress(), files = new Progress();
+    TreeScan<LocalResource> scan =
+      new TreeScan<LocalResource>(session(temp()).root(), bytes, files);
+    scan.start();
+    scan.sync();
+
+    assertEquals("Wrong byte total.", 1000, bytes.total());
+    assertEquals("Wrong file total.", 4, files.total());
+  }
+
+  @Test(timeout = 3000)
+  public void testSliceRelease() throws Exception {
+    checkLocalTap(new LocalSession(), 10000);
+  }
+
+  @Test(timeout = 3000)
+  public void testMappedTap() throws Exception {
+    LocalSession session = new LocalSession();
+    session.mmap_threshold = 1;
+    session.mmap_window = 3*4096;
+    checkLocalTap(session, 100000);
+  }
+
+  // Tap a file of random data with a local session, and check that the data
+  // came through and every slice was released.
+  private void checkLocalTap(LocalSession session, int size)
+  throws Exception {
+    sessions.add(session);
+    File file = temp("data");
+    byte[] data = random(size, 1);
+    write(file, data);
+
+    final List<Slice> slices = new ArrayList<Slice>();
+    final ByteArrayOutputStream copy = new ByteArrayOutputStream();
+    final Bell done = new Bell();
+    Tap tap = session.select(Path.create(file.getPath())).tap();
+    tap.attach(new Sink(Resources.anonymous()) {
+      public Bell drain(Slice slice) {
+        slices.add(slice);
+        copy.write(slice.asBytes(), 0, slice.length());
+        slice.release();
+        return null;
+      } public void finish() {
+        done.ring();
+      }
+    });
+    tap.start();
+    done.sync();
+
+    assertArrayEquals("Slices did not carry the file.", data,
+                      copy.toByteArray());
+    for (Slice slice : slices)
+      assertEquals("Slice was not released.", 0, slice.refCnt());
+  }
+
+  @Test(timeout = 5000)
+  public void testRegionTransfer() throws Exception {
+    byte[] data = random(100000, 2);
+    write(temp("src"), data);
+
+    Counter counter = new Counter();
+    Transfer t = transfer(session(temp()), "src", "dest").listen(counter);
+    t.starter.ring();
+    t.stopper.sync();
+    assertEquals("Listener missed data.", data.length, counter.moved.done());
+    assertEquals("Listener missed the file.", 1, counter.moved.total());
+    assertEquals("Nothing was resumed.", 0, counter.resumed.done());
+    assertArrayEquals("Region transfer corrupted data.",
+                      data, read(temp("dest")));
+
+    RandomAccessFile raf = new RandomAccessFile(temp("src"), "r");
+    Slice slice = new Region(raf.getChannel(), 10, 100).read();
+    raf.close();
+    assertArrayEquals("Region read the wrong data.",
+      Arrays.copyOfRange(data, 10, 110), slice.asBytes());
+    assertEquals("Region slice has the wrong offset.", 10, slice.offset());
+    slice.release();
+  }
+
+  @Test(timeout = 5000)
+  public void testFailedFileFailsTransfer() throws Exception {
+    write(temp("src/a"), new byte[1000]);
+    temp("dest/a").mkdirs();
+
+    Transfer t = transfer(session(temp()), "src", "dest");
+    t.starter.ring();
+    try {
+      t.stopper.sync();
+      fail("Transfer succeeded with a failed file.");
+    } catch (RuntimeException e) {
+      // The file's destination is a directory.
+    }
+  }
+
+  @Test(timeout = 5000)
+  public void testResumedTransfer() throws Exception {
+    byte[] a = random(1000, 3), b = random(100000, 4);
+    write(temp("src/a"), a);
+    write(temp("src/b"), b);
+    write(temp("dest/b"), Arrays.copyOf(b, 40000));
+
+    // The first file is done, and the second is partly written.
+    Checkpoint cp = new Checkpoint();
+    cp.done(Path.create("/a"));
+    cp.started(Path.create("/b"), b.length);
+    cp.written(Path.create("/b"), 60000, 10000);
+    cp.written(Path.create("/b"), 0, 40000);
+    cp = Checkpoint.decode(cp.encode());
+    assertEquals("Checkpoint lost an offset.",
+                 40000, cp.offset(Path.create("/b"), b.length));
+
+    Counter counter = new Counter();
+    Transfer t = transfer(session(temp()), "src", "dest");
+    t.listen(counter).checkpoint(cp);
+    t.starter.ring();
+    t.stopper.sync();
+
+    assertFalse("Done file was transferred again.",
+                temp("dest/a").exists());
+    assertEquals("Resumed file was not resumed.",
+                 60000, counter.moved.done());
+    assertEquals("Skipped data was not reported.",
+                 41000, counter.resumed.done());
+    assertEquals("Listener missed a file.", 2, counter.moved.total());
+    assertTrue("Checkpoint missed a file.", cp.isDone(Path.create("/b")));
+    assertEquals("Finished transfer was not collapsed.",
+                 "=/\n", cp.encode());
+    assertArrayEquals("Resumed transfer corrupted data.",
+                      b, read(temp("dest/b")));
+  }
+
+  @Test(timeout = 5000)
+  public void testRetriedTransfer() throws Exception {
+    byte[] a = random(1000, 5), b = random(5000, 6);
+    write(temp("src/a"), a);
+    write(temp("src/b"), b);
+
+    // The second file can't be written the first time around.
+    temp("dest/b").mkdirs();
+    Checkpoint cp = new Checkpoint();
+    LocalSession session = session(temp());
+    Transfer t = transfer(session, "src", "dest").checkpoint(cp);
+    t.starter.ring();
+    try {
+      t.stopper.sync();
+      fail("Transfer succeeded with a failed file.");
+    } catch (RuntimeException e) {
+      // As expected.
+    }
+    assertTrue("Checkpoint missed a file.", cp.isDone(Path.create("/a")));
+    assertFalse("Checkpoint has a failed file.",
+                cp.isDone(Path.create("/b")));
+
+    // Only the failed file is moved when the transfer is retried.
+    temp("dest/b").delete();
+    Counter counter = new Counter();
+    t = transfer(session, "src", "dest");
+    t.listen(counter).checkpoint(Checkpoint.decode(cp.encode()));
+    t.starter.ring();
+    t.stopper.sync();
+
+    assertEquals("Retry moved more than the failed file.",
+                 b.length, counter.moved.done());
+    assertEquals("Retry did not skip the done file.",
+                 a.length, counter.resumed.done());
+    assertEquals("Listener missed a file.", 2, counter.moved.total());
+    assertArrayEquals("Retried transfer corrupted data.",
+                      b, read(temp("dest/b")));
+  }
+
+  @Test(timeout = 5000)
+  public void testStoppedTransferQuiesces() throws Exception {
+    File src = temp("src"), dest = temp("dest");
+    RandomAccessFile raf = new RandomAccessFile(src, "rw");
+    raf.setLength(40 << 20);
+    raf.close();
+
+    // Stop the transfer as soon as any data has been moved.
+    Checkpoint cp = new Checkpoint();
+    final Transfer t = transfer(session(temp()), "src", "dest");
+    t.listen(new Counter() {
+      public void transferred(long bytes) {
+        t.stopper.ring(new java.util.concurrent.CancellationException());
+      }
+    }).checkpoint(cp);
+    t.starter.ring();
+    t.onQuiesce().sync();
+
+    long length = dest.length();
+    Bell.timerBell(.2).sync();
+    assertEquals("Destination grew after the transfer quiesced.",
+                 length, dest.length());
+    assertTrue("Stopped transfer moved the whole file.",
+               length < src.length());
+    assertFalse("Checkpoint has a stopped file.",
+                cp.isDone(Path.create("/")));
+  }
+
+  @Test(timeout = 3000)
+  public void testListParser() throws Exception {
+    checkListing(
+      "modify=20140116141502;perm=adfr;size=300000;type=file;"+
+        "UNIX.mode=0644; a file.dat\r\n"+
+      "modify=20140116141502;perm=flcdmpe;type=dir;UNIX.mode=0755; dir\r\n",
+      1389881702L, "-rw-r--r--");
+    checkListing(
+      "total 8\r\n"+
+      "-rw-r--r--    1 1000     100        300000 Jan 16  2014 a file.dat\r\n"+
+      "drwxr-xr-x    2 1000     100          4096 Jan 16  2014 dir\r\n",
+      -1, "-rw-r--r--");
+    checkListing(
+      "01-16-14  02:15PM               300000 a file.dat\r\n"+
+      "01-16-14  02:15PM       <DIR>          dir\r\n",
+      -1, null);
+  }
+
+  // Parse a listing fed a few bytes at a time, so that lines are split across
+  // chunks, and check that it lists a file and a directory.
+  private static void checkListing(String listing, long time, String perm) {
+    byte[] b = listing.getBytes();
+    FTPListParser parser = new FTPListParser();
+    for (int i = 0; i < b.length; i += 7) {
+      ByteBuf buf = Unpooled.wrappedBuffer(b, i, Math.min(7, b.length-i));
+      parser.write(buf);
+      buf.release();
+    } parser.finish();
+
+    Stat[] files = parser.sync().files;
+    assertEquals("Wrong number of entries.", 2, files.length);
+    assertEquals("a file.dat", files[0].name);
+    assertTrue("Entry is not a file.", files[0].file);
+    assertEquals(300000, files[0].size);
+    if (time >= 0)
+      assertEquals("Wrong modification time.", time, files[0].time);
+    assertEquals(perm, files[0].perm);
+    assertEquals("dir", files[1].name);
+    assertTrue("Entry is not a directory.", files[1].dir);
+  }
 }
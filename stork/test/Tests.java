@@ -3,9 +3,14 @@ package stork.test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 
+import stork.scheduler.*;
+
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
   TestFeather.class,
+  TestFairJobQueue.class,
+  TestAdmissionControl.class,
+  TestRetryControl.class,
 })
 
 public class Tests { }